@@ -45,6 +45,7 @@
 */
 package de.meisterfuu.animexxenger;
 
+import java.io.File;
 import java.security.GeneralSecurityException;
 import javax.net.ssl.SSLContext;
 
@@ -79,6 +80,8 @@ import de.meisterfuu.animexxenger.utils.Status;
 import de.duenndns.ssl.MemorizingTrustManager;
 import de.meisterfuu.animexxenger.R;
 
+import net.java.otr4j.crypto.DHKeyPairPool;
+
 import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
 import org.jivesoftware.smack.Roster;
@@ -232,6 +235,7 @@ public class BeemService extends Service {
 	    unregisterReceiver(mOnOffReceiver);
 	if (mConnection.isAuthentificated() && BeemConnectivity.isConnected(this))
 	    mConnection.disconnect();
+	DHKeyPairPool.shutdownInstance();
 	Log.i(TAG, "Stopping the service");
     }
 
@@ -386,7 +390,7 @@ public class BeemService extends Service {
 
 	//PEP avatar
 	pm.addExtensionProvider("metadata", "urn:xmpp:avatar:metadata", new AvatarMetadataProvider());
-	pm.addExtensionProvider("data", "urn:xmpp:avatar:data", new AvatarProvider());
+	pm.addExtensionProvider("data", "urn:xmpp:avatar:data", new AvatarProvider(new File(getCacheDir(), "avatar-spool")));
 
 //         PEPProvider pep  = new PEPProvider();
 //         AvatarMetadataProvider avaMeta  = new AvatarMetadataProvider();
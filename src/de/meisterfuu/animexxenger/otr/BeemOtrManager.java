@@ -39,6 +39,7 @@ import net.java.otr4j.OtrException;
 import net.java.otr4j.OtrKeyManagerImpl;
 import net.java.otr4j.OtrPolicy;
 import net.java.otr4j.OtrPolicyImpl;
+import net.java.otr4j.crypto.DHKeyPairPool;
 import net.java.otr4j.session.SessionID;
 import net.java.otr4j.session.SessionStatus;
 import android.util.Log;
@@ -67,6 +68,8 @@ public class BeemOtrManager implements OtrEngineHost {
     private BeemOtrManager() {
 	mOtrEngine = new OtrEngineImpl(this);
 	mOtrEngine.addOtrEngineListener(new BeemOtrListener());
+	// the D-H key pairs of the sessions will be ready before they are needed
+	DHKeyPairPool.getInstance().prefill();
 	try {
 	    mOtrKeyManager = new OtrKeyManagerImpl("/sdcard/beem.keystore");
 	} catch (IOException e) {
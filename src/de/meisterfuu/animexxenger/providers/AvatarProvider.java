@@ -46,6 +46,8 @@ package de.meisterfuu.animexxenger.providers;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -57,6 +59,8 @@ import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
+import de.meisterfuu.animexxenger.smack.avatar.DiskLruAvatarCache;
+
 
 /**
  * A simple content provider we expose the differents avatar downloaded.
@@ -74,24 +78,32 @@ public class AvatarProvider extends ContentProvider {
     /** The MIME type of a CONTENT_URI subdirectory of a single Beem avatar.  */
     public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.de.meisterfuu.animexxenger.avatar";
 
+    /** The sizes in pixels of the thumbnails generated for each avatar, in increasing order. */
+    public static final int[] THUMBNAIL_SIZES = {48, 96, 192};
+
 
     private static final String TAG = AvatarProvider.class.getSimpleName();
     private static final String AUTHORITY = "de.meisterfuu.animexxenger.providers.avatarprovider";
 
     private static String[] columnNames = new String[] {Columns.ID, Columns.DATA};
 
+    /** The maximum number of bytes used by the stored avatars. */
+    private static final long MAX_STORE_SIZE = 8 * 1024 * 1024;
+
     private static final int AVATAR = 1;
     private static final int AVATAR_ID = 2;
+    private static final int AVATAR_THUMBNAIL = 3;
     private static final UriMatcher URIMATCHER = new UriMatcher(AVATAR);
 
     static
     {
         URIMATCHER.addURI(AUTHORITY, "*", AVATAR_ID);
+        URIMATCHER.addURI(AUTHORITY, "*/#", AVATAR_THUMBNAIL);
 	// should not be needed if we pass AVATAR on the constructor but it does not work
         URIMATCHER.addURI(AUTHORITY, null, AVATAR);
     }
 
-    private String mDataPath;
+    private static DiskLruAvatarCache sStore;
 
     /**
      * Create an AvatarProvider.
@@ -99,39 +111,124 @@ public class AvatarProvider extends ContentProvider {
     public AvatarProvider() {
     }
 
+    /**
+     * Get the directory where the avatars are stored.
+     *
+     * @return the avatar directory
+     */
+    public static File getAvatarDirectory() {
+	File cacheDir = Environment.getExternalStorageDirectory();
+	return new File(cacheDir, "/Android/data/de.meisterfuu.animexxenger/cache/avatar");
+    }
+
+    /**
+     * Get the store of the avatars.
+     * The store is shared by all the users of the avatar directory in the process.
+     * It is opened on the first call, which reads its journal, so avoid calling this
+     * method first on the main thread.
+     *
+     * @return the avatar store
+     */
+    public static synchronized DiskLruAvatarCache getAvatarStore() {
+	if (sStore == null)
+	    sStore = new DiskLruAvatarCache(getAvatarDirectory(), MAX_STORE_SIZE);
+	return sStore;
+    }
+
+    /**
+     * Get the key of a thumbnail of an avatar in the store.
+     *
+     * @param avatarId the id of the avatar
+     * @param size the size of the thumbnail
+     * @return the key of the thumbnail
+     */
+    public static String getThumbnailKey(String avatarId, int size) {
+	return avatarId + "." + size;
+    }
+
+    /**
+     * Get the uri of an avatar scaled to a size.
+     * The uri points to the smallest thumbnail not smaller than the size,
+     * or to the full avatar if the size is bigger than all the thumbnails.
+     *
+     * @param avatarId the id of the avatar
+     * @param size the size in pixels
+     * @return the uri of the avatar
+     */
+    public static Uri getAvatarUri(String avatarId, int size) {
+	Uri.Builder builder = CONTENT_URI.buildUpon().appendPath(avatarId);
+	for (int thumbnailSize : THUMBNAIL_SIZES) {
+	    if (thumbnailSize >= size) {
+		builder.appendPath(String.valueOf(thumbnailSize));
+		break;
+	    }
+	}
+	return builder.build();
+    }
+
     @Override
     public boolean onCreate() {
-	File cacheDir = Environment.getExternalStorageDirectory();
-	File dataPath = new File(cacheDir, "/Android/data/de.meisterfuu.animexxenger/cache/avatar");
-	dataPath.mkdirs();
-	mDataPath = dataPath.getAbsolutePath();
+	// open the store in background, the first request waits for it if needed
+	new Thread("AvatarStoreOpener") {
+	    @Override
+	    public void run() {
+		getAvatarStore();
+	    }
+	}.start();
 	return true;
     }
 
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode)
 	throws FileNotFoundException {
-    	return openFileHelper(uri, mode);
+	DiskLruAvatarCache store = getAvatarStore();
+	int match = URIMATCHER.match(uri);
+	if (match == AVATAR_THUMBNAIL && "r".equals(mode)) {
+	    String key = getThumbnailOrAvatarKey(uri);
+	    store.touch(key);
+	    return ParcelFileDescriptor.open(store.getFile(key), ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+	if (match != AVATAR_ID)
+	    throw new FileNotFoundException("Unsupported uri " + uri);
+	String id = uri.getPathSegments().get(0);
+	File f = store.getFile(id);
+	int pfdMode;
+	if ("r".equals(mode)) {
+	    pfdMode = ParcelFileDescriptor.MODE_READ_ONLY;
+	    store.touch(id);
+	} else {
+	    f.getParentFile().mkdirs();
+	    if ("rw".equals(mode))
+		pfdMode = ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
+	    else
+		pfdMode = ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+		    | ParcelFileDescriptor.MODE_TRUNCATE;
+	}
+	return ParcelFileDescriptor.open(f, pfdMode);
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
 	MatrixCursor c = new MatrixCursor(columnNames);
+	DiskLruAvatarCache store = getAvatarStore();
 	int match = URIMATCHER.match(uri);
 	switch (match) {
 	    case AVATAR:
-		File[] files = new File(mDataPath).listFiles();
-		if (files != null) {
-		    for (File f : files) {
-			c.newRow().add(f.getName()).add(f.getAbsolutePath());
-		    }
+		for (String key : store.keys()) {
+		    // the thumbnails are not listed as avatars
+		    if (key.indexOf('.') == -1)
+			c.newRow().add(key).add(store.getFile(key).getAbsolutePath());
 		}
 		break;
+	    case AVATAR_THUMBNAIL:
+		String key = getThumbnailOrAvatarKey(uri);
+		if (store.contains(key))
+			c.newRow().add(key).add(store.getFile(key).getAbsolutePath());
+		break;
 	    case AVATAR_ID:
 		String id = uri.getPathSegments().get(0);
-		File f = new File(mDataPath, id);
-		if (f.exists())
-			c.newRow().add(f.getName()).add(f.getAbsolutePath());
+		if (store.contains(id))
+			c.newRow().add(id).add(store.getFile(id).getAbsolutePath());
 		break;
 	    default:
 		Log.w(TAG, "Unsupported uri for query match = " + match);
@@ -156,9 +253,13 @@ public class AvatarProvider extends ContentProvider {
 	if (id == null)
 	    return 0;
 
-	File f = new File(mDataPath, id);
+	DiskLruAvatarCache store = getAvatarStore();
+	File f = store.getFile(id);
 	try {
+	    f.getParentFile().mkdirs();
 	    f.createNewFile();
+	    // the content may have been written with openFile, update its size
+	    store.refresh(id);
 	    getContext().getContentResolver().notifyChange(uri, null);
 	    return 1;
 	} catch (IOException e) {
@@ -183,17 +284,18 @@ public class AvatarProvider extends ContentProvider {
 	    default:
 		Log.w(TAG, "Unsupported uri for query match = " + match);
 	}
-	File[] list = null;
+	DiskLruAvatarCache store = getAvatarStore();
+	List<String> list = new ArrayList<String>();
 	if (id != null) {
-	    list = new File[] {new File(mDataPath, id) };
+	    list.add(id);
+	    for (int size : THUMBNAIL_SIZES)
+		list.add(getThumbnailKey(id, size));
 	} else if (all) {
-	    list = new File(mDataPath).listFiles();
+	    list = store.keys();
 	}
 
-	if (list == null)
-	    return res;
-	for (File data : list) {
-	    if (data.exists() && data.delete())
+	for (String key : list) {
+	    if (store.remove(key))
 		res++;
 	}
 	if (res > 0)
@@ -221,9 +323,12 @@ public class AvatarProvider extends ContentProvider {
 	if (id == null)
 	    return null;
 
-	File f = new File(mDataPath, id);
+	DiskLruAvatarCache store = getAvatarStore();
+	File f = store.getFile(id);
 	try {
+	    f.getParentFile().mkdirs();
 	    f.createNewFile();
+	    store.refresh(id);
 	    if (result != null)
 		getContext().getContentResolver().notifyChange(result, null);
 	    return result;
@@ -240,6 +345,7 @@ public class AvatarProvider extends ContentProvider {
     	    case AVATAR:
     		return CONTENT_TYPE;
     	    case AVATAR_ID:
+    	    case AVATAR_THUMBNAIL:
     		return CONTENT_ITEM_TYPE;
     	    default:
     		Log.w(TAG, "Unsupported uri for query match = " + match);
@@ -247,6 +353,28 @@ public class AvatarProvider extends ContentProvider {
 	return null;
     }
 
+    /**
+     * Get the key of the file to serve for a thumbnail uri.
+     * The full avatar is served if the thumbnail was not generated or if the size is invalid.
+     *
+     * @param uri the uri of the thumbnail
+     * @return the key of the thumbnail or of the avatar
+     */
+    private String getThumbnailOrAvatarKey(Uri uri) {
+	List<String> segments = uri.getPathSegments();
+	int size;
+	try {
+	    size = Integer.parseInt(segments.get(1));
+	} catch (NumberFormatException e) {
+	    Log.w(TAG, "Invalid thumbnail size in " + uri);
+	    return segments.get(0);
+	}
+	String key = getThumbnailKey(segments.get(0), size);
+	if (getAvatarStore().contains(key))
+	    return key;
+	return segments.get(0);
+    }
+
     /**
      * The differents columns available in the AvatarProvider.
      */
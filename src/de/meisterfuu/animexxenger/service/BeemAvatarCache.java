@@ -43,26 +43,28 @@
 */
 package de.meisterfuu.animexxenger.service;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.content.ContentResolver;
 import android.content.Context;
 
-import android.database.Cursor;
-
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 import de.meisterfuu.animexxenger.providers.AvatarProvider;
 import de.meisterfuu.animexxenger.smack.avatar.AvatarCache;
+import de.meisterfuu.animexxenger.smack.avatar.AvatarCacheStats;
+import de.meisterfuu.animexxenger.smack.avatar.DiskLruAvatarCache;
 
 
 /**
  * An implementation of an AvatarCache which store the data of the filesystem.
+ * The avatars are written atomically in the store of the {@link AvatarProvider}
+ * and read through the {@link ContentResolver}.
  */
 public class BeemAvatarCache implements AvatarCache {
 
@@ -70,6 +72,7 @@ public class BeemAvatarCache implements AvatarCache {
 
     private Context mContext;
     private ContentResolver mContentResolver;
+    private DiskLruAvatarCache mStore;
 
     /**
      * Create a BeemAvatarCache.
@@ -79,58 +82,58 @@ public class BeemAvatarCache implements AvatarCache {
     public BeemAvatarCache(final Context ctx) {
 	mContext = ctx;
 	mContentResolver = mContext.getContentResolver();
+	mStore = AvatarProvider.getAvatarStore();
     }
 
 
     @Override
     public void put(String key, byte[] data) throws IOException {
-	Uri uri = AvatarProvider.CONTENT_URI.buildUpon().appendPath(key).build();
-	mContentResolver.insert(uri, null);
-	OutputStream os = new BufferedOutputStream(mContentResolver.openOutputStream(uri));
-	try {
-	    os.write(data);
-	} finally {
-	    os.close();
-	}
+	mStore.put(key, data);
+	notifyChange(key);
     }
 
     @Override
     public void put(String key, InputStream in) throws IOException {
-	Uri uri = AvatarProvider.CONTENT_URI.buildUpon().appendPath(key).build();
-	mContentResolver.insert(uri, null);
-	OutputStream os = new BufferedOutputStream(mContentResolver.openOutputStream(uri));
-	try {
-	    byte[] data = new byte[1024];
-	    int nbread;
-	    while ((nbread = in.read(data)) != -1)
-		    os.write(data, 0, nbread);
-	} finally {
-	    in.close();
-	    os.close();
-	}
+	mStore.put(key, in);
+	notifyChange(key);
     }
 
     @Override
     public byte[] get(String key) throws IOException {
 	Uri uri = AvatarProvider.CONTENT_URI.buildUpon().appendPath(key).build();
-	InputStream is = new BufferedInputStream(mContentResolver.openInputStream(uri));
-	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	ParcelFileDescriptor pfd = mContentResolver.openFileDescriptor(uri, "r");
+	FileChannel fc = new FileInputStream(pfd.getFileDescriptor()).getChannel();
 	try {
-	    byte[] data = new byte[1024];
-	    is.read(data);
-	    bos.write(data);
+	    byte[] data = new byte[(int) fc.size()];
+	    ByteBuffer buffer = ByteBuffer.wrap(data);
+	    while (buffer.hasRemaining()) {
+		if (fc.read(buffer) == -1)
+		    throw new IOException("Avatar " + key + " was truncated while reading");
+	    }
+	    return data;
 	} finally {
-	    is.close();
+	    fc.close();
+	    pfd.close();
 	}
-	return bos.toByteArray();
     }
 
     @Override
     public boolean contains(String key) {
+	return mStore.contains(key);
+    }
+
+    @Override
+    public AvatarCacheStats getStats() {
+	return mStore.getStats();
+    }
+
+    /**
+     * Notify the observers of the AvatarProvider that an avatar was stored.
+     *
+     * @param key the id of the avatar
+     */
+    private void notifyChange(String key) {
 	Uri uri = AvatarProvider.CONTENT_URI.buildUpon().appendPath(key).build();
-	Cursor c = mContentResolver.query(uri, null, null, null, null);
-	boolean res = c.getCount() > 0;
-	c.close();
-	return res;
+	mContentResolver.notifyChange(uri, null);
     }
 }
@@ -44,21 +44,45 @@
 
 package de.meisterfuu.animexxenger.service;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.ConnectivityManager;
 import android.net.Uri;
-import android.provider.MediaStore;
+import android.os.Process;
+import android.os.RemoteException;
 import android.util.Log;
 
+import de.meisterfuu.animexxenger.providers.AvatarProvider;
+import de.meisterfuu.animexxenger.service.aidl.IAvatarPublishListener;
+import de.meisterfuu.animexxenger.smack.avatar.AvatarDownloadScheduler;
 import de.meisterfuu.animexxenger.smack.avatar.AvatarManager;
 import de.meisterfuu.animexxenger.smack.avatar.AvatarCache;
 import de.meisterfuu.animexxenger.smack.avatar.AvatarMetadataExtension;
+import de.meisterfuu.animexxenger.smack.avatar.AvatarPrefetcher;
+import de.meisterfuu.animexxenger.utils.BeemConnectivity;
 
 import java.security.NoSuchAlgorithmException;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import de.meisterfuu.animexxenger.smack.pep.PepSubManager;
 import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
 
 /**
  * An AvatarManager for Beem.
@@ -67,8 +91,17 @@ import org.jivesoftware.smack.Connection;
 public class BeemAvatarManager extends AvatarManager {
     private static final String TAG = BeemAvatarManager.class.getSimpleName();
     private static final int JPEG_QUALITY = 100;
+    /** The size in dip at which the contact avatars are displayed. */
+    private static final int DISPLAY_SIZE = 48;
+    /** The default maximum size in pixels of the published avatars. */
+    private static final int DEFAULT_MAX_PUBLISH_SIZE = 192;
 
     private Context mContext;
+    private final ConnectivityReceiver mConnectivityReceiver = new ConnectivityReceiver();
+    private final ExecutorService mPublishExecutor = Executors.newSingleThreadExecutor();
+    private PublishJob mPublishJob;
+    private volatile int mMaxPublishSize = DEFAULT_MAX_PUBLISH_SIZE;
+    private final AvatarPrefetcher mPrefetcher;
 
     /**
      * Create a BeemAvatarManager.
@@ -77,72 +110,194 @@ public class BeemAvatarManager extends AvatarManager {
      * @param con the connection
      * @param pepMgr the PepSubManager of the connection
      * @param cache the cache which will store the avatars
+     * @param chatManager the chat manager used to prioritize the downloads
      * @param autoDownload tre to enable auto download of avatars
      */
     public BeemAvatarManager(final Context ctx, final Connection con, final PepSubManager pepMgr,
-	    final AvatarCache cache, final boolean autoDownload) {
+	    final AvatarCache cache, final BeemChatManager chatManager, final boolean autoDownload) {
 	super(con, pepMgr, cache, autoDownload);
 	mContext = ctx;
+	getDownloadScheduler().setPolicy(new DownloadPolicy(con.getRoster(), chatManager));
+	// the last known avatars are saved for each account
+	File store = new File(ctx.getFilesDir(), "avatar-ids-" + StringUtils.parseBareAddress(con.getUser()));
+	mPrefetcher = new AvatarPrefetcher(this, cache, store);
+	addAvatarListener(mPrefetcher);
+	mContext.registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     /**
-     * Publish an avatar.
+     * Prefetch the last known avatars of the contacts which are missing from the cache.
+     *
+     * @param jids the jids of the roster contacts
+     */
+    public void prefetchAvatars(Collection<String> jids) {
+	mPrefetcher.prefetch(jids);
+    }
+
+    @Override
+    public void shutdown() {
+	mContext.unregisterReceiver(mConnectivityReceiver);
+	cancelAvatarPublishing();
+	mPublishExecutor.shutdown();
+	mPrefetcher.shutdown();
+	super.shutdown();
+	AvatarProvider.getAvatarStore().flush();
+	Log.d(TAG, "Avatars prefetched: " + mPrefetcher.getPrefetchedCount() + " (" + mPrefetcher.getBytesUsed()
+	    + " bytes)");
+	Log.d(TAG, "Bytes saved by the avatar selection: " + getBytesSaved());
+	Log.d(TAG, "Avatar cache statistics: " + getCacheStats());
+    }
+
+    @Override
+    protected int getTargetSize(boolean bandwidthLimited) {
+	// on a fast network download avatars good enough for all the thumbnails
+	if (!bandwidthLimited)
+	    return AvatarProvider.THUMBNAIL_SIZES[AvatarProvider.THUMBNAIL_SIZES.length - 1];
+	float density = mContext.getResources().getDisplayMetrics().density;
+	return (int) (DISPLAY_SIZE * density + 0.5f);
+    }
+
+    @Override
+    protected boolean isBandwidthLimited() {
+	return BeemConnectivity.isMetered(mContext) || BeemConnectivity.isLowBandwidth(mContext);
+    }
+
+    /**
+     * Set the maximum size of the published avatars.
+     * Bigger images are scaled down to this size before being published.
+     *
+     * @param size the maximum width and height in pixels
+     */
+    public void setMaxPublishSize(int size) {
+	mMaxPublishSize = size;
+    }
+
+    /**
+     * Publish an avatar in background.
+     * The publication in progress is cancelled.
      *
      * @param avatarUri the uri of the avatar
-     * @return true if the avatar was successfully published
+     * @param listener the listener notified of the progress of the publication, may be null
+     * @return true if the publication was started
      */
-    public boolean publishAvatar(Uri avatarUri) {
+    public synchronized boolean publishAvatar(Uri avatarUri, IAvatarPublishListener listener) {
+	cancelAvatarPublishing();
+	PublishJob job = new PublishJob(avatarUri, listener);
 	try {
-	    Bitmap bmp = MediaStore.Images.Media.getBitmap(mContext.getContentResolver(), avatarUri);
-	    return publishAvatar(bmp);
-	} catch (IOException e) {
-	    Log.d(TAG, "Error while publishing avatar " + avatarUri, e);
+	    mPublishExecutor.execute(job);
+	} catch (RejectedExecutionException e) {
+	    Log.w(TAG, "Unable to publish avatar " + avatarUri, e);
+	    return false;
 	}
-	return false;
+	mPublishJob = job;
+	return true;
     }
 
     /**
-     * Publish an avatar.
-     * This will send the XMPP stanza to enable the publication of an avatar.
+     * Cancel the publication of an avatar in progress.
+     */
+    public synchronized void cancelAvatarPublishing() {
+	if (mPublishJob != null) {
+	    mPublishJob.cancel();
+	    mPublishJob = null;
+	}
+    }
+
+    /**
+     * Decode an image with a sample size which keeps it just bigger than a size.
      *
-     * @param bitmap the avatar to publish
-     * @return true on success false otherwise
+     * @param uri the uri of the image
+     * @param maxSize the maximum width and height wanted
+     * @return the bitmap
+     * @throws IOException if the image cannot be read or decoded
      */
-    private boolean publishAvatar(Bitmap bitmap) {
-	//TODO use the metadata available in the mediastore
-	AvatarMetadataExtension meta = new AvatarMetadataExtension();
-	// Probably a bug on prosody but only the last data sent is kept
-	// and in beem we retrieve the first info
-	AvatarMetadataExtension.Info jpeg = publishBitmap(bitmap, Bitmap.CompressFormat.JPEG, JPEG_QUALITY);
-	// The png format is mandatory for interoperability
-	AvatarMetadataExtension.Info png = publishBitmap(bitmap, Bitmap.CompressFormat.PNG, JPEG_QUALITY);
-	if (png == null)
-	    return false;
-	meta.addInfo(png);
-	if (jpeg != null)
-	    meta.addInfo(jpeg);
-	publishAvatarMetaData(png.getId(), meta);
-	return true;
+    private Bitmap decodeBitmap(Uri uri, int maxSize) throws IOException {
+	BitmapFactory.Options options = new BitmapFactory.Options();
+	options.inJustDecodeBounds = true;
+	decodeStream(uri, options);
+	int largest = Math.max(options.outWidth, options.outHeight);
+	if (largest <= 0)
+	    throw new IOException("Unable to decode " + uri);
+	int sample = 1;
+	while (largest / (sample * 2) >= maxSize)
+	    sample *= 2;
+	options.inSampleSize = sample;
+	options.inJustDecodeBounds = false;
+	Bitmap bmp = decodeStream(uri, options);
+	if (bmp == null)
+	    throw new IOException("Unable to decode " + uri);
+	return bmp;
+    }
+
+    /**
+     * Decode a bitmap from the content of an uri.
+     *
+     * @param uri the uri
+     * @param options the decoding options
+     * @return the bitmap or null if it could not be decoded
+     * @throws IOException if an error occurs while reading the uri
+     */
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+	InputStream in = mContext.getContentResolver().openInputStream(uri);
+	try {
+	    return BitmapFactory.decodeStream(in, null, options);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Scale a bitmap down to a maximum size keeping its aspect ratio.
+     * The original bitmap is recycled if a new one is created.
+     *
+     * @param bmp the bitmap
+     * @param maxSize the maximum width and height
+     * @return the scaled bitmap
+     */
+    private Bitmap scaleBitmap(Bitmap bmp, int maxSize) {
+	int largest = Math.max(bmp.getWidth(), bmp.getHeight());
+	if (largest <= maxSize)
+	    return bmp;
+	float ratio = (float) maxSize / largest;
+	Bitmap scaled = Bitmap.createScaledBitmap(bmp, Math.round(bmp.getWidth() * ratio),
+	    Math.round(bmp.getHeight() * ratio), true);
+	if (scaled != bmp)
+	    bmp.recycle();
+	return scaled;
     }
 
     /**
      * Send this bitmap to the avatar data node of the pep server.
+     * The bitmap is encoded once in a file of the publish directory and hashed while being written.
      *
      * @param bmp the avatar bitmap
      * @param format the image format to publish this data
      * @param quality the compression quality use for JPEG compression
      * @return the resulting info associate with this bitmap. null if the operation failed
+     * @throws IOException if the encoded bitmap cannot be written
      */
-    private AvatarMetadataExtension.Info publishBitmap(Bitmap bmp, Bitmap.CompressFormat format, int quality) {
+    private AvatarMetadataExtension.Info publishBitmap(Bitmap bmp, Bitmap.CompressFormat format, int quality)
+	throws IOException {
 	try {
-	    byte[] data = getBitmapByte(bmp, format, quality);
-	    String dataid = getAvatarId(data);
-	    if (!publishAvatarData(data))
+	    File dir = getPublishDirectory();
+	    dir.mkdirs();
+	    File file = File.createTempFile("avatar", ".img", dir);
+	    MessageDigest md = MessageDigest.getInstance("sha-1");
+	    OutputStream os = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(file)), md);
+	    boolean compressed;
+	    try {
+		compressed = bmp.compress(format, quality, os);
+	    } finally {
+		os.close();
+	    }
+	    if (!compressed)
 		return null;
+	    String dataid = StringUtils.encodeHex(md.digest());
+	    publishAvatarData(dataid, file);
 	    String mimetype = "image/png";
 	    if (Bitmap.CompressFormat.JPEG == format)
 		mimetype = "image/jpeg";
-	    AvatarMetadataExtension.Info info = new AvatarMetadataExtension.Info(dataid, mimetype, data.length);
+	    AvatarMetadataExtension.Info info = new AvatarMetadataExtension.Info(dataid, mimetype, (int) file.length());
 	    info.setHeight(bmp.getHeight());
 	    info.setWidth(bmp.getWidth());
 	    return info;
@@ -152,19 +307,187 @@ public class BeemAvatarManager extends AvatarManager {
     }
 
     /**
-     * Convert the bitmap to a byte array.
+     * Get the directory of the encoded avatars waiting to be sent.
      *
-     * @param bitmap the avatar bitmap
-     * @param format the resulting image format
-     * @param quality the compression quality use for JPEG compression
-     * @return the bitmap data or a array of 0 element on error
+     * @return the directory
+     */
+    private File getPublishDirectory() {
+	return new File(mContext.getCacheDir(), "avatar-publish");
+    }
+
+    /**
+     * Delete the encoded avatars of the previous publications.
+     * They are sent when the next publication starts.
      */
-    private byte[] getBitmapByte(Bitmap bitmap, Bitmap.CompressFormat format, int quality) {
-	ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	if (bitmap.compress(format, quality, bos))
-	    return bos.toByteArray();
-	else
-	    return new byte[0];
+    private void clearPublishDirectory() {
+	File[] files = getPublishDirectory().listFiles();
+	if (files == null)
+	    return;
+	for (File f : files)
+	    f.delete();
     }
 
+    /**
+     * Download the avatars of the contacts with an opened chat first, then the avatars of the
+     * available contacts. The downloads are delayed on metered or low bandwidth connections.
+     */
+    private class DownloadPolicy implements AvatarDownloadScheduler.Policy {
+	private final Roster mRoster;
+	private final BeemChatManager mChatManager;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param roster the roster of the connection
+	 * @param chatManager the chat manager of the connection
+	 */
+	public DownloadPolicy(final Roster roster, final BeemChatManager chatManager) {
+	    mRoster = roster;
+	    mChatManager = chatManager;
+	}
+
+	@Override
+	public int getPriority(String jid) {
+	    try {
+		if (mChatManager != null && mChatManager.hasOpenedChat(jid))
+		    return AvatarDownloadScheduler.PRIORITY_HIGH;
+	    } catch (RemoteException e) {
+		Log.d(TAG, "Unable to check the opened chats", e);
+	    }
+	    Presence p = mRoster.getPresence(jid);
+	    if (p != null && p.isAvailable())
+		return AvatarDownloadScheduler.PRIORITY_NORMAL;
+	    return AvatarDownloadScheduler.PRIORITY_LOW;
+	}
+
+	@Override
+	public boolean isDownloadAllowed() {
+	    return BeemConnectivity.isConnected(mContext) && !BeemConnectivity.isMetered(mContext)
+		&& !BeemConnectivity.isLowBandwidth(mContext);
+	}
+    }
+
+    /**
+     * Resume the delayed downloads and stop the prefetch when the connectivity changes.
+     */
+    private class ConnectivityReceiver extends BroadcastReceiver {
+
+	/**
+	 * Constructor.
+	 */
+	public ConnectivityReceiver() {
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+	    // the prefetch is not worth it on a metered network
+	    if (!getDownloadScheduler().isDownloadAllowed())
+		mPrefetcher.stop();
+	    getDownloadScheduler().resume();
+	}
+    }
+
+    /**
+     * The publication of an avatar.
+     * The image is decoded with a sample size, scaled down to the maximum publish size
+     * and encoded once in each published format.
+     */
+    private class PublishJob implements Runnable {
+	private static final int STEPS = 4;
+
+	private final Uri mUri;
+	private final IAvatarPublishListener mListener;
+	private volatile boolean mCancelled;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param uri the uri of the avatar
+	 * @param listener the listener of the publication, may be null
+	 */
+	public PublishJob(final Uri uri, final IAvatarPublishListener listener) {
+	    mUri = uri;
+	    mListener = listener;
+	}
+
+	/**
+	 * Cancel the publication.
+	 * The avatar data already sent are not removed but the metadata will not be published.
+	 */
+	public void cancel() {
+	    mCancelled = true;
+	}
+
+	@Override
+	public void run() {
+	    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+	    boolean success = false;
+	    Bitmap bmp = null;
+	    try {
+		if (mCancelled)
+		    return;
+		clearPublishDirectory();
+		int maxSize = mMaxPublishSize;
+		bmp = scaleBitmap(decodeBitmap(mUri, maxSize), maxSize);
+		fireProgress(1);
+		if (mCancelled)
+		    return;
+		//TODO use the metadata available in the mediastore
+		AvatarMetadataExtension meta = new AvatarMetadataExtension();
+		// Probably a bug on prosody but only the last data sent is kept
+		// and in beem we retrieve the first info
+		AvatarMetadataExtension.Info jpeg = publishBitmap(bmp, Bitmap.CompressFormat.JPEG, JPEG_QUALITY);
+		fireProgress(2);
+		if (mCancelled)
+		    return;
+		// The png format is mandatory for interoperability
+		AvatarMetadataExtension.Info png = publishBitmap(bmp, Bitmap.CompressFormat.PNG, JPEG_QUALITY);
+		fireProgress(3);
+		if (png == null || mCancelled)
+		    return;
+		meta.addInfo(png);
+		if (jpeg != null)
+		    meta.addInfo(jpeg);
+		publishAvatarMetaData(png.getId(), meta);
+		fireProgress(STEPS);
+		success = true;
+	    } catch (IOException e) {
+		Log.d(TAG, "Error while publishing avatar " + mUri, e);
+	    } finally {
+		if (bmp != null)
+		    bmp.recycle();
+		fireFinished(success);
+	    }
+	}
+
+	/**
+	 * Notify the listener of the progress of the publication.
+	 *
+	 * @param step the number of steps done
+	 */
+	private void fireProgress(int step) {
+	    if (mListener == null)
+		return;
+	    try {
+		mListener.onProgress(step, STEPS);
+	    } catch (RemoteException e) {
+		Log.d(TAG, "Error while notifying the avatar publication progress", e);
+	    }
+	}
+
+	/**
+	 * Notify the listener of the end of the publication.
+	 *
+	 * @param success true if the avatar was published
+	 */
+	private void fireFinished(boolean success) {
+	    if (mListener == null)
+		return;
+	    try {
+		mListener.onFinished(success);
+	    } catch (RemoteException e) {
+		Log.d(TAG, "Error while notifying the avatar publication end", e);
+	    }
+	}
+    }
 }
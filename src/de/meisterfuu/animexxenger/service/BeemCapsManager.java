@@ -55,27 +55,25 @@ import android.util.Log;
 import java.io.FileReader;
 import java.io.Reader;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.Writer;
 
 import java.io.File;
-import java.io.IOException;
 
 import android.content.Context;
 
+import de.meisterfuu.animexxenger.smack.caps.CapsDatabase;
 import de.meisterfuu.animexxenger.smack.caps.CapsManager;
 
 /**
  * An implementation of CapsManager which keeps DiscoverInfo on the Cache directory of the android application.
+ * The DiscoverInfo, including the ones which cannot be verified, are kept in a {@link CapsDatabase}
+ * loaded in memory when the manager is created at login.
  */
 public class BeemCapsManager extends CapsManager {
 
     private static final String TAG = "BeemCapsManager";
 
     private Context mContext;
-    private File mCacheDir;
-    private XmlPullParser mParser;
+    private CapsDatabase mDatabase;
 
     /**
      * Create a BeemCapsManager.
@@ -87,66 +85,94 @@ public class BeemCapsManager extends CapsManager {
     public BeemCapsManager(final ServiceDiscoveryManager sdm, final Connection conn, final Context context) {
 	super(sdm, conn);
 	mContext = context;
-	initCacheDirectory();
+	initDatabase();
     }
 
 
+    /**
+     * {@inheritDoc}
+     * The capabilities database is closed.
+     */
+    @Override
+    public void shutdown() {
+	super.shutdown();
+	mDatabase.close();
+    }
+
     @Override
     protected DiscoverInfo load(String ver) {
-	File fver = new File(mCacheDir, sanitizeName(ver));
-	try {
-	    Reader fr = new BufferedReader(new FileReader(fver));
-	    try {
-		if (mParser == null)
-		    mParser = makeParser();
-		mParser.setInput(fr);
-		return (DiscoverInfo) PacketParserUtils.parsePacketExtension("query",
-			"http://jabber.org/protocol/disco#info", mParser);
-
-	    } finally {
-		fr.close();
-	    }
-	} catch (Exception e) {
-	    // The parsePacketExtension throw Exception on error
-	    Log.d(TAG, "Error while loading Capabilities " + ver, e);
-	}
-	return null;
+	return mDatabase.get(ver);
     }
 
     @Override
     protected void store(String ver, DiscoverInfo info) {
+	mDatabase.put(ver, info);
+    }
 
-	File fver = new File(mCacheDir, sanitizeName(ver));
-	try {
-	    Writer fw = new BufferedWriter(new FileWriter(fver));
-	    try {
-		String data  = info.toXML();
-		fw.write(data, 0, data.length());
-	    } finally {
-		fw.close();
-	    }
-	} catch (IOException e) {
-	    Log.d(TAG, "Error while saving Capabilities " + ver, e);
-	}
+    @Override
+    protected DiscoverInfo loadJid(String jid, String ver) {
+	return mDatabase.getJid(jid, ver);
+    }
+
+    @Override
+    protected void storeJid(String jid, String ver, DiscoverInfo info) {
+	mDatabase.putJid(jid, ver, info);
+    }
+
+    @Override
+    protected boolean hasFeature(String ver, String feature) {
+	return mDatabase.hasFeature(ver, feature);
     }
 
     @Override
     protected boolean isInCache(String ver) {
-	boolean result = super.isInCache(ver);
-	if (!result) {
-	    File fver = new File(mCacheDir, sanitizeName(ver));
-	    result = fver.exists();
-	}
-	return result;
+	return super.isInCache(ver) || mDatabase.contains(ver);
     }
 
     /**
-     * Init the cache directory.
+     * Init the capabilities database.
+     * The DiscoverInfo saved in XML files by the previous versions are imported.
      */
-    private void initCacheDirectory() {
+    private void initDatabase() {
 	File dir = mContext.getCacheDir();
-	mCacheDir = new File(dir, "capabilities");
-	mCacheDir.mkdir();
+	mDatabase = new CapsDatabase(new File(dir, "capabilities.db"));
+	File oldDir = new File(dir, "capabilities");
+	File[] files = oldDir.listFiles();
+	if (files == null)
+	    return;
+	XmlPullParser parser = null;
+	for (File f : files) {
+	    try {
+		if (parser == null)
+		    parser = makeParser();
+		DiscoverInfo info = loadXml(f, parser);
+		mDatabase.put(f.getName().replace('.', '/'), info);
+	    } catch (Exception e) {
+		// The parsePacketExtension throw Exception on error
+		Log.d(TAG, "Error while importing Capabilities " + f.getName(), e);
+	    }
+	    f.delete();
+	}
+	oldDir.delete();
+    }
+
+    /**
+     * Load a DiscoverInfo saved in a XML file.
+     *
+     * @param file the file to load
+     * @param parser the parser to use
+     * @return the DiscoverInfo
+     * @throws Exception if an error occurs while parsing the file
+     */
+    private DiscoverInfo loadXml(File file, XmlPullParser parser) throws Exception {
+	Reader fr = new BufferedReader(new FileReader(file));
+	try {
+	    parser.setInput(fr);
+	    return (DiscoverInfo) PacketParserUtils.parsePacketExtension("query",
+		    "http://jabber.org/protocol/disco#info", parser);
+	} finally {
+	    fr.close();
+	}
     }
 
     /**
@@ -160,13 +186,4 @@ public class BeemCapsManager extends CapsManager {
 	fact.setNamespaceAware(true);
 	return fact.newPullParser();
     }
-
-    /**
-     * Sanitize the base64 ver attribute in order to use it as a filename.
-     * @param ver the base64 ver attribute
-     * @return a sanitize filename for the ver attribute
-     */
-    private String sanitizeName(String ver) {
-	return ver.replaceAll("/", ".");
-    }
 }
@@ -48,17 +48,22 @@ package de.meisterfuu.animexxenger.service;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.java.otr4j.OtrException;
 
 import org.jivesoftware.smack.Chat;
 import org.jivesoftware.smack.ChatManager;
 import org.jivesoftware.smack.ChatManagerListener;
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketInterceptor;
 import org.jivesoftware.smack.Roster;
 import org.jivesoftware.smack.RosterListener;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.util.StringUtils;
 
@@ -80,6 +85,7 @@ import de.meisterfuu.animexxenger.service.aidl.IChatManager;
 import de.meisterfuu.animexxenger.service.aidl.IChatManagerListener;
 import de.meisterfuu.animexxenger.service.aidl.IMessageListener;
 import de.meisterfuu.animexxenger.service.aidl.IRoster;
+import de.meisterfuu.animexxenger.smack.caps.CapsManager;
 import de.meisterfuu.animexxenger.utils.Status;
 
 /**
@@ -89,25 +95,47 @@ import de.meisterfuu.animexxenger.utils.Status;
 public class BeemChatManager extends IChatManager.Stub {
 
     private static final String TAG = "BeemChatManager";
+    private static final String CHATSTATES_NAMESPACE = "http://jabber.org/protocol/chatstates";
     private final ChatManager mAdaptee;
-    private final Map<String, ChatAdapter> mChats = new HashMap<String, ChatAdapter>();
+    private final Connection mConnection;
+    // read by the avatar download threads
+    private final Map<String, ChatAdapter> mChats = new ConcurrentHashMap<String, ChatAdapter>();
     private final ChatListener mChatListener = new ChatListener();
     private final RemoteCallbackList<IChatManagerListener> mRemoteChatCreationListeners =
 	new RemoteCallbackList<IChatManagerListener>();
     private final BeemService mService;
     private final ChatRosterListener mChatRosterListn = new ChatRosterListener();
+    private final CapsManager mCapsManager;
+    private final ChatStateFilter mChatStateFilter = new ChatStateFilter();
 
     /**
      * Constructor.
-     * @param chatManager the smack ChatManager to adapt
+     * @param connection the connection whose smack ChatManager is adapted
      * @param service the service which runs the chat manager
      * @param roster roster used to get presences changes
+     * @param capsManager the capabilities manager used to check the features of the contacts, may be null
      */
-    public BeemChatManager(final ChatManager chatManager, final BeemService service, final Roster roster) {
+    public BeemChatManager(final Connection connection, final BeemService service, final Roster roster,
+	final CapsManager capsManager) {
 	mService = service;
-	mAdaptee = chatManager;
+	mConnection = connection;
+	mAdaptee = connection.getChatManager();
+	mCapsManager = capsManager;
 	roster.addRosterListener(mChatRosterListn);
 	mAdaptee.addChatListener(mChatListener);
+	// the interceptors of the connection run after the ones of the ChatManager, including the
+	// interceptor of the ChatStateManager, so the filter sees the chat states it adds
+	if (mCapsManager != null)
+	    mConnection.addPacketInterceptor(mChatStateFilter,
+		new PacketTypeFilter(org.jivesoftware.smack.packet.Message.class));
+    }
+
+    /**
+     * Stop filtering the messages sent on the connection.
+     * This should be called before another BeemChatManager is created for the same connection.
+     */
+    public void shutdown() {
+	mConnection.removePacketInterceptor(mChatStateFilter);
     }
 
     @Override
@@ -143,8 +171,6 @@ public class BeemChatManager extends IChatManager.Stub {
 	    return result;
 	}
 	Chat c = mAdaptee.createChat(key, null);
-	// maybe a little probleme of thread synchronization
-	// if so use an HashTable instead of a HashMap for mChats
 	result = getChat(c);
 	result.addMessageListener(listener);
 	return result;
@@ -228,6 +254,20 @@ public class BeemChatManager extends IChatManager.Stub {
 	return openedChats;
     }
 
+    /**
+     * Check if there is an opened chat session with a contact.
+     * @param jid the bare jid of the contact
+     * @return true if a chat with messages is opened with the contact
+     * @throws RemoteException If a Binder remote-invocation error occurred.
+     */
+    public boolean hasOpenedChat(String jid) throws RemoteException {
+	for (ChatAdapter chat : mChats.values()) {
+	    if (jid.equals(chat.getParticipant().getJID()) && chat.getMessages().size() > 0)
+		return true;
+	}
+	return false;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -237,6 +277,28 @@ public class BeemChatManager extends IChatManager.Stub {
 	    mRemoteChatCreationListeners.unregister(listener);
     }
 
+    /**
+     * Remove the chat states from the messages sent to the contacts known to not support them.
+     */
+    private class ChatStateFilter implements PacketInterceptor {
+
+	/**
+	 * Constructor.
+	 */
+	public ChatStateFilter() {
+	}
+
+	@Override
+	public void interceptPacket(Packet packet) {
+	    String to = packet.getTo();
+	    if (to == null || !mCapsManager.isKnown(to) || mCapsManager.supports(to, CHATSTATES_NAMESPACE))
+		return;
+	    PacketExtension state = packet.getExtension(CHATSTATES_NAMESPACE);
+	    if (state != null)
+		packet.removeExtension(state);
+	}
+    }
+
     /**
      * A listener for all the chat creation event that happens on the connection.
      * @author darisk
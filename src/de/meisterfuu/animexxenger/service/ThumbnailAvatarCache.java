@@ -0,0 +1,190 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import de.meisterfuu.animexxenger.providers.AvatarProvider;
+import de.meisterfuu.animexxenger.smack.avatar.AvatarCache;
+import de.meisterfuu.animexxenger.smack.avatar.AvatarCacheStats;
+import de.meisterfuu.animexxenger.smack.avatar.DiskLruAvatarCache;
+
+/**
+ * An AvatarCache which generates the thumbnails of the avatars when they are stored.
+ * The thumbnails are stored in the underlying cache at the sizes of
+ * {@link AvatarProvider#THUMBNAIL_SIZES}, so the avatars are never decoded at full size to be displayed.
+ */
+public class ThumbnailAvatarCache implements AvatarCache {
+
+    private static final String TAG = ThumbnailAvatarCache.class.getSimpleName();
+
+    private final AvatarCache mCache;
+    private final DiskLruAvatarCache mStore;
+
+    /**
+     * Create a ThumbnailAvatarCache.
+     *
+     * @param cache the cache which stores the avatars and their thumbnails
+     * @param store the store holding the files written by cache, used to decode the streamed avatars
+     */
+    public ThumbnailAvatarCache(final AvatarCache cache, final DiskLruAvatarCache store) {
+	mCache = cache;
+	mStore = store;
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IOException {
+	mCache.put(key, data);
+	storeThumbnails(key, data, null);
+    }
+
+    @Override
+    public void put(String key, InputStream in) throws IOException {
+	mCache.put(key, in);
+	// decode from the file so a streamed avatar is never loaded in the heap
+	storeThumbnails(key, null, mStore.getFile(key));
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+	return mCache.get(key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+	return mCache.contains(key);
+    }
+
+    @Override
+    public AvatarCacheStats getStats() {
+	return mCache.getStats();
+    }
+
+    /**
+     * Generate and store the thumbnails of an avatar.
+     * Only the thumbnails smaller than the avatar are generated.
+     *
+     * @param key the id of the avatar
+     * @param data the avatar data or null to decode file
+     * @param file the avatar file, used when data is null
+     */
+    private void storeThumbnails(String key, byte[] data, File file) {
+	BitmapFactory.Options options = new BitmapFactory.Options();
+	options.inJustDecodeBounds = true;
+	decode(data, file, options);
+	int min = Math.min(options.outWidth, options.outHeight);
+	if (min <= AvatarProvider.THUMBNAIL_SIZES[0])
+	    return;
+	int largest = 0;
+	for (int size : AvatarProvider.THUMBNAIL_SIZES) {
+	    if (size < min)
+		largest = size;
+	}
+	int sample = 1;
+	while (min / (sample * 2) >= largest)
+	    sample *= 2;
+	options.inJustDecodeBounds = false;
+	options.inSampleSize = sample;
+	Bitmap bmp = decode(data, file, options);
+	if (bmp == null) {
+	    Log.w(TAG, "Unable to decode the avatar " + key);
+	    return;
+	}
+	try {
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    for (int size : AvatarProvider.THUMBNAIL_SIZES) {
+		if (size > largest)
+		    break;
+		Bitmap thumbnail = Bitmap.createScaledBitmap(bmp, size, size, true);
+		bos.reset();
+		thumbnail.compress(Bitmap.CompressFormat.PNG, 100, bos);
+		if (thumbnail != bmp)
+		    thumbnail.recycle();
+		mCache.put(AvatarProvider.getThumbnailKey(key, size), bos.toByteArray());
+	    }
+	} catch (IOException e) {
+	    Log.w(TAG, "Error while storing the thumbnails of " + key, e);
+	} finally {
+	    bmp.recycle();
+	}
+    }
+
+    /**
+     * Decode an avatar from its data or from its file.
+     *
+     * @param data the avatar data or null to decode file
+     * @param file the avatar file, used when data is null
+     * @param options the decoding options
+     * @return the decoded bitmap or null if it was not decoded
+     */
+    private Bitmap decode(byte[] data, File file, BitmapFactory.Options options) {
+	if (data != null)
+	    return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	InputStream in = null;
+	try {
+	    in = new BufferedInputStream(new FileInputStream(file));
+	    return BitmapFactory.decodeStream(in, null, options);
+	} catch (IOException e) {
+	    Log.w(TAG, "Unable to read the avatar file " + file, e);
+	    return null;
+	} finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException e) {
+		    Log.w(TAG, "Error while closing the avatar file " + file, e);
+		}
+	    }
+	}
+    }
+}
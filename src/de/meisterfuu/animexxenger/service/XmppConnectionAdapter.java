@@ -43,6 +43,7 @@
  */
 package de.meisterfuu.animexxenger.service;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -58,6 +59,7 @@ import android.util.Log;
 import de.meisterfuu.animexxenger.BeemApplication;
 import de.meisterfuu.animexxenger.BeemService;
 import de.meisterfuu.animexxenger.R;
+import de.meisterfuu.animexxenger.providers.AvatarProvider;
 import de.meisterfuu.animexxenger.service.aidl.IBeemConnectionListener;
 import de.meisterfuu.animexxenger.service.aidl.IChatManager;
 import de.meisterfuu.animexxenger.service.aidl.IRoster;
@@ -65,6 +67,9 @@ import de.meisterfuu.animexxenger.service.aidl.IXmppConnection;
 import de.meisterfuu.animexxenger.smack.avatar.AvatarCache;
 import de.meisterfuu.animexxenger.smack.avatar.AvatarListener;
 import de.meisterfuu.animexxenger.smack.avatar.AvatarMetadataExtension;
+import de.meisterfuu.animexxenger.smack.avatar.HttpAvatarClient;
+import de.meisterfuu.animexxenger.smack.avatar.MemoryAvatarCache;
+import de.meisterfuu.animexxenger.smack.avatar.TieredAvatarCache;
 import de.meisterfuu.animexxenger.smack.pep.PepSubManager;
 import de.meisterfuu.animexxenger.smack.ping.PingExtension;
 import de.meisterfuu.animexxenger.ui.ChangeStatus;
@@ -78,6 +83,7 @@ import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.PrivacyListManager;
 import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterEntry;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.filter.PacketFilter;
@@ -104,6 +110,8 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 	private static final int SMACK_PRIORITY_MIN = -128;
 	private static final int SMACK_PRIORITY_MAX = 128;
 	private static final String TAG = "XMPPConnectionAdapter";
+	private static final long AVATAR_MEMORY_CACHE_SIZE = 1024 * 1024;
+	private static final long AVATAR_MEMORY_CACHE_LIFETIME = 30 * 60 * 1000;
 	private final XMPPConnection mAdaptee;
 	private IChatManager mChatManager;
 	private final String mLogin;
@@ -119,6 +127,8 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 	private final BeemService mService;
 	private BeemApplication mApplication;
 	private BeemAvatarManager mAvatarManager;
+	private BeemCapsManager mCapsManager;
+	private final HttpAvatarClient mHttpAvatarClient = new HttpAvatarClient();
 	private PepSubManager mPepManager;
 	private SharedPreferences mPref;
 	private final RemoteCallbackList<IBeemConnectionListener> mRemoteConnListeners = new RemoteCallbackList<IBeemConnectionListener>();
@@ -263,7 +273,9 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 			mAdaptee.login(mLogin, mPassword, mResource);
 			mUserInfo = new UserInfo(mAdaptee.getUser());
 
-			mChatManager = new BeemChatManager(mAdaptee.getChatManager(), mService, mAdaptee.getRoster());
+			if (mChatManager != null)
+				((BeemChatManager) mChatManager).shutdown();
+			mChatManager = new BeemChatManager(mAdaptee, mService, mAdaptee.getRoster(), mCapsManager);
 			// nikita: I commented this line because of the logs provided in http://www.beem-project.com/issues/321
 			// Also, since the privacylistmanager isn't finished and used, it will be safer to not initialize it
 			// mPrivacyListManager = new PrivacyListManagerAdapter(PrivacyListManager.getInstanceFor(mAdaptee));
@@ -271,6 +283,12 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 			discoverServerFeatures();
 
 			mRoster = new RosterAdapter(mAdaptee.getRoster(), mService, mAvatarManager);
+			if (mAvatarManager != null) {
+				// the avatar events of the previous session are suppressed by the PepSubManager
+				mAvatarManager.replayAvatarEvents();
+				// the prefetches of the avatars requested by the replayed events are merged by the scheduler
+				prefetchAvatars();
+			}
 			mApplication.setConnected(true);
 			int mode = mPref.getInt(BeemApplication.STATUS_KEY, 0);
 			String status = mPref.getString(BeemApplication.STATUS_TEXT_KEY, "");
@@ -364,6 +382,16 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 	}
 
 
+	/**
+	 * Get the CapsManager of this connection.
+	 * 
+	 * @return the CapsManager or null if the features are not initialized
+	 */
+	public BeemCapsManager getCapsManager() {
+		return mCapsManager;
+	}
+
+
 	/**
 	 * get the previous status.
 	 * 
@@ -526,8 +554,11 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 		sdm.addFeature(PingExtension.NAMESPACE);
 
 		mChatStateManager = ChatStateManager.getInstance(mAdaptee);
-		BeemCapsManager caps = new BeemCapsManager(sdm, mAdaptee, mService);
-		caps.setNode("http://www.beem-project.com");
+		// the previous manager would keep its listeners and append to the same database
+		if (mCapsManager != null)
+			mCapsManager.shutdown();
+		mCapsManager = new BeemCapsManager(sdm, mAdaptee, mService);
+		mCapsManager.setNode("http://www.beem-project.com");
 	}
 
 
@@ -552,6 +583,16 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 	}
 
 
+	/**
+	 * Prefetch the avatars of the roster contacts.
+	 */
+	private void prefetchAvatars() {
+		List<String> jids = new ArrayList<String>();
+		for (RosterEntry entry : mAdaptee.getRoster().getEntries())
+			jids.add(entry.getUser());
+		mAvatarManager.prefetchAvatars(jids);
+	}
+
 	/**
 	 * Initialize PEP.
 	 */
@@ -560,9 +601,19 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 		Log.d(TAG, "Pep enabled");
 		// API 8
 		// mService.getExternalCacheDir()
-		mPepManager = new PepSubManager(mAdaptee);
-		AvatarCache avatarCache = new BeemAvatarCache(mService);
-		mAvatarManager = new BeemAvatarManager(mService, mAdaptee, mPepManager, avatarCache, true);
+		// the manager is kept across reconnections to suppress the events sent again by the server
+		if (mPepManager == null)
+			mPepManager = new PepSubManager(mAdaptee);
+		if (mAvatarManager != null)
+			mAvatarManager.shutdown();
+		// hot avatars are served from memory, the others from the AvatarProvider which is written
+		// before the listeners are notified
+		AvatarCache avatarCache = new TieredAvatarCache(
+			new MemoryAvatarCache(AVATAR_MEMORY_CACHE_SIZE, AVATAR_MEMORY_CACHE_LIFETIME),
+			new ThumbnailAvatarCache(new BeemAvatarCache(mService), AvatarProvider.getAvatarStore()));
+		mAvatarManager = new BeemAvatarManager(mService, mAdaptee, mPepManager, avatarCache,
+			(BeemChatManager) mChatManager, true);
+		mAvatarManager.setHttpClient(mHttpAvatarClient);
 		mAvatarManager.addAvatarListener(mUserInfoManager);
 		mApplication.setPepEnabled(true);
 	}
@@ -595,6 +646,7 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 		public void connectionClosed() {
 			Log.d(TAG, "closing connection");
 			mRoster = null;
+			shutdownFeatures();
 			Intent intent = new Intent(BeemBroadcastReceiver.BEEM_CONNECTION_CLOSED);
 			intent.putExtra("message", mService.getString(R.string.BeemBroadcastReceiverDisconnect));
 			intent.putExtra("normally", true);
@@ -611,6 +663,7 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 		public void connectionClosedOnError(Exception exception) {
 			Log.d(TAG, "connectionClosedOnError");
 			mRoster = null;
+			shutdownFeatures();
 			Intent intent = new Intent(BeemBroadcastReceiver.BEEM_CONNECTION_CLOSED);
 			intent.putExtra("message", exception.getMessage());
 			mService.sendBroadcast(intent);
@@ -619,6 +672,27 @@ public class XmppConnectionAdapter extends IXmppConnection.Stub {
 		}
 
 
+		/**
+		 * Stop the avatar, caps and PEP managers of the closed connection.
+		 */
+		private void shutdownFeatures() {
+			if (mAvatarManager != null) {
+				mAvatarManager.shutdown();
+				mAvatarManager = null;
+			}
+			if (mCapsManager != null) {
+				mCapsManager.shutdown();
+				mCapsManager = null;
+			}
+			if (mPepManager != null) {
+				Log.d(TAG, "PEP events suppressed: " + mPepManager.getSuppressedCount() + ", coalesced: "
+						+ mPepManager.getCoalescedCount());
+				mPepManager.shutdown();
+				mPepManager = null;
+			}
+		}
+
+
 		/**
 		 * Connection failed callback.
 		 * 
@@ -47,6 +47,7 @@ import android.net.Uri;
 import android.os.RemoteException;
 
 import de.meisterfuu.animexxenger.BeemService;
+import de.meisterfuu.animexxenger.service.aidl.IAvatarPublishListener;
 import de.meisterfuu.animexxenger.service.aidl.IChatManager;
 import de.meisterfuu.animexxenger.service.aidl.IPrivacyListManager;
 import de.meisterfuu.animexxenger.service.aidl.IRoster;
@@ -162,13 +163,21 @@ public class XmppFacade extends IXmppFacade.Stub {
     }
 
     @Override
-    public boolean publishAvatar(Uri avatarUri) throws RemoteException {
+    public boolean publishAvatar(Uri avatarUri, IAvatarPublishListener listener) throws RemoteException {
     	initConnection();
 	BeemAvatarManager mgr = mConnexion.getAvatarManager();
 	if (mgr == null)
 	    return false;
 
-	return mgr.publishAvatar(avatarUri);
+	return mgr.publishAvatar(avatarUri, listener);
+    }
+
+    @Override
+    public void cancelAvatarPublishing() throws RemoteException {
+    	initConnection();
+	BeemAvatarManager mgr = mConnexion.getAvatarManager();
+	if (mgr != null)
+	    mgr.cancelAvatarPublishing();
     }
 
     @Override
@@ -179,6 +188,13 @@ public class XmppFacade extends IXmppFacade.Stub {
 	    mgr.disableAvatarPublishing();
     }
 
+    @Override
+    public boolean supportsFeature(String jid, String feature) throws RemoteException {
+    	initConnection();
+	BeemCapsManager caps = mConnexion.getCapsManager();
+	return caps != null && caps.supports(jid, feature);
+    }
+
     @Override
     public UserInfo getUserInfo() throws RemoteException {
     	initConnection();
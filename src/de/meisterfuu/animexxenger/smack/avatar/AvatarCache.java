@@ -87,4 +87,11 @@ public interface AvatarCache {
      * @return true if data is in cache false otherwise
      */
     boolean contains(String id);
+
+    /**
+     * Get the statistics of the cache.
+     *
+     * @return a snapshot of the statistics
+     */
+    AvatarCacheStats getStats();
 }
@@ -0,0 +1,138 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+/**
+ * A snapshot of the statistics of an AvatarCache.
+ */
+public class AvatarCacheStats {
+
+    /** The value of the statistics which are not tracked by a cache. */
+    public static final long UNKNOWN = -1;
+
+    private final long mHits;
+    private final long mMisses;
+    private final long mEvictions;
+    private final long mBytes;
+    private final long mCount;
+
+    /**
+     * Create an AvatarCacheStats.
+     *
+     * @param hits the number of successful lookups
+     * @param misses the number of failed lookups
+     * @param evictions the number of avatars removed to free some space or because they expired
+     * @param bytes the number of bytes stored
+     * @param count the number of avatars stored
+     */
+    public AvatarCacheStats(final long hits, final long misses, final long evictions, final long bytes,
+	final long count) {
+	mHits = hits;
+	mMisses = misses;
+	mEvictions = evictions;
+	mBytes = bytes;
+	mCount = count;
+    }
+
+    /**
+     * Get the number of successful lookups.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+	return mHits;
+    }
+
+    /**
+     * Get the number of failed lookups.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+	return mMisses;
+    }
+
+    /**
+     * Get the hit rate of the cache.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public float getHitRate() {
+	long total = mHits + mMisses;
+	return total == 0 ? 0 : (float) mHits / total;
+    }
+
+    /**
+     * Get the number of avatars removed to free some space or because they expired.
+     *
+     * @return the number of evictions or UNKNOWN
+     */
+    public long getEvictions() {
+	return mEvictions;
+    }
+
+    /**
+     * Get the number of bytes stored.
+     *
+     * @return the number of bytes or UNKNOWN
+     */
+    public long getBytes() {
+	return mBytes;
+    }
+
+    /**
+     * Get the number of avatars stored.
+     *
+     * @return the number of avatars or UNKNOWN
+     */
+    public long getCount() {
+	return mCount;
+    }
+
+    @Override
+    public String toString() {
+	return "hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions + " bytes=" + mBytes
+	    + " count=" + mCount;
+    }
+}
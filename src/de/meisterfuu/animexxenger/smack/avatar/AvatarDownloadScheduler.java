@@ -0,0 +1,434 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.meisterfuu.animexxenger.smack.avatar.AvatarMetadataExtension.Info;
+
+/**
+ * Schedule the downloads of the avatars outside of the packet listener threads.
+ * The downloads are run by a bounded pool of threads, the downloads with the highest
+ * priority first. Concurrent downloads of the same avatar are merged, the failed downloads
+ * are retried later and the downloads are delayed while the {@link Policy} does not allow them,
+ * at most {@link #MAX_DEFERRAL_DELAY} milliseconds. The prefetches are dropped instead of delayed.
+ * The listeners of the AvatarManager are notified of the new avatar id when its download is delayed
+ * and again when it is finished.
+ */
+public class AvatarDownloadScheduler {
+
+    /** The priority of the avatars of the other contacts. */
+    public static final int PRIORITY_LOW = 0;
+    /** The priority of the avatars which will probably be displayed. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** The priority of the avatars which are displayed. */
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY = 5000;
+    /** The maximum time in milliseconds a download is delayed by the policy. */
+    public static final long MAX_DEFERRAL_DELAY = 15 * 60 * 1000;
+
+    private final AvatarManager mManager;
+    private final ThreadPoolExecutor mExecutor;
+    private final Timer mRetryTimer = new Timer("avatar-retry", true);
+    private final Map<String, Download> mPending = new HashMap<String, Download>();
+    private final List<Download> mDeferred = new ArrayList<Download>();
+    private Policy mPolicy = new DefaultPolicy();
+    private long mSequence;
+    private boolean mShutdown;
+
+    /**
+     * Create an AvatarDownloadScheduler.
+     *
+     * @param manager the AvatarManager which download the avatars
+     * @param threads the number of threads used to download the avatars
+     */
+    public AvatarDownloadScheduler(final AvatarManager manager, final int threads) {
+	mManager = manager;
+	mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+	    new PriorityBlockingQueue<Runnable>(), new WorkerFactory());
+    }
+
+    /**
+     * Set the policy used to prioritize the downloads.
+     *
+     * @param policy the policy
+     */
+    public synchronized void setPolicy(Policy policy) {
+	mPolicy = policy;
+    }
+
+    /**
+     * Check if the policy currently allows the downloads.
+     *
+     * @return true if the avatars can be downloaded now
+     */
+    public synchronized boolean isDownloadAllowed() {
+	return !mShutdown && mPolicy.isDownloadAllowed();
+    }
+
+    /**
+     * Schedule the download of an avatar.
+     * If the avatar is already scheduled, the download is shared and its priority is raised if needed.
+     *
+     * @param from the jid of the contact
+     * @param avatarId the id of the avatar
+     * @param info the metadata of the avatar to download
+     * @param infos the metadata of all the available formats of the avatar
+     */
+    public synchronized void schedule(String from, String avatarId, Info info, List<Info> infos) {
+	if (mShutdown)
+	    return;
+	int priority = mPolicy.getPriority(from);
+	Download d = mPending.get(avatarId);
+	if (d != null) {
+	    d.mPrefetch = false;
+	    d.addRequester(from, infos);
+	    if (d.mNotified)
+		notifyLater(from, avatarId, infos);
+	    if (priority > d.mPriority) {
+		// requeue to take the new priority into account
+		boolean queued = mExecutor.remove(d);
+		d.mPriority = priority;
+		if (queued)
+		    mExecutor.execute(d);
+	    }
+	    return;
+	}
+	d = new Download(from, avatarId, info, infos, priority, mSequence++);
+	mPending.put(avatarId, d);
+	submit(d);
+    }
+
+    /**
+     * Schedule the prefetch of an avatar with the lowest priority.
+     * Unlike the other downloads, a prefetch is dropped if the policy does not allow it when it is run,
+     * unless the avatar was requested again by {@link #schedule(String, String, Info, List)} in the meantime.
+     *
+     * @param from the jid of the contact
+     * @param avatarId the id of the avatar
+     * @param info the metadata of the avatar to download
+     * @param infos the metadata of all the available formats of the avatar
+     * @return true if the download was scheduled, false if the avatar is already scheduled
+     * or the downloads are not allowed
+     */
+    public synchronized boolean prefetch(String from, String avatarId, Info info, List<Info> infos) {
+	if (mShutdown || !mPolicy.isDownloadAllowed() || mPending.containsKey(avatarId))
+	    return false;
+	Download d = new Download(from, avatarId, info, infos, PRIORITY_LOW, mSequence++);
+	d.mPrefetch = true;
+	mPending.put(avatarId, d);
+	mExecutor.execute(d);
+	return true;
+    }
+
+    /**
+     * Start the downloads delayed by the policy.
+     * This should be called when the conditions checked by the policy change.
+     */
+    public synchronized void resume() {
+	if (mShutdown || !mPolicy.isDownloadAllowed())
+	    return;
+	for (Download d : mDeferred)
+	    mExecutor.execute(d);
+	mDeferred.clear();
+    }
+
+    /**
+     * Get the number of avatars waiting to be downloaded.
+     *
+     * @return the number of pending downloads
+     */
+    public synchronized int getPendingCount() {
+	return mPending.size();
+    }
+
+    /**
+     * Stop the scheduler.
+     * The pending downloads are cancelled.
+     */
+    public synchronized void shutdown() {
+	mShutdown = true;
+	mExecutor.shutdownNow();
+	mRetryTimer.cancel();
+	mPending.clear();
+	mDeferred.clear();
+    }
+
+    /**
+     * Start a download or delay it if the policy does not allow it.
+     *
+     * @param d the download
+     */
+    private synchronized void submit(final Download d) {
+	if (mShutdown)
+	    return;
+	if (d.mForced || mPolicy.isDownloadAllowed()) {
+	    mExecutor.execute(d);
+	    return;
+	}
+	if (d.mPrefetch) {
+	    mPending.remove(d.mAvatarId);
+	    return;
+	}
+	mDeferred.add(d);
+	if (!d.mNotified) {
+	    d.mNotified = true;
+	    synchronized (d) {
+		for (int i = 0; i < d.mFroms.size(); i++)
+		    notifyLater(d.mFroms.get(i), d.mAvatarId, d.mInfos.get(i));
+	    }
+	    mRetryTimer.schedule(new TimerTask() {
+		@Override
+		public void run() {
+		    force(d);
+		}
+	    }, MAX_DEFERRAL_DELAY);
+	}
+    }
+
+    /**
+     * Start a delayed download even if the policy does not allow it.
+     *
+     * @param d the download
+     */
+    private synchronized void force(Download d) {
+	if (mShutdown || !mPending.containsKey(d.mAvatarId))
+	    return;
+	d.mForced = true;
+	if (mDeferred.remove(d))
+	    mExecutor.execute(d);
+    }
+
+    /**
+     * Notify the listeners of the AvatarManager outside of the scheduler lock.
+     *
+     * @param from the jid of the contact
+     * @param avatarId the id of the avatar
+     * @param infos the metadata of all the available formats of the avatar
+     */
+    private void notifyLater(final String from, final String avatarId, final List<Info> infos) {
+	mRetryTimer.schedule(new TimerTask() {
+	    @Override
+	    public void run() {
+		mManager.fireListeners(from, avatarId, infos);
+	    }
+	}, 0);
+    }
+
+    /**
+     * Retry a failed download later.
+     *
+     * @param d the download
+     * @return false if the download should not be retried
+     */
+    private synchronized boolean retry(final Download d) {
+	if (mShutdown || d.mAttempts >= MAX_ATTEMPTS)
+	    return false;
+	long delay = RETRY_DELAY << (d.mAttempts - 1);
+	mRetryTimer.schedule(new TimerTask() {
+	    @Override
+	    public void run() {
+		submit(d);
+	    }
+	}, delay);
+	return true;
+    }
+
+    /**
+     * Remove a download from the pending ones.
+     *
+     * @param d the download
+     */
+    private synchronized void finish(Download d) {
+	mPending.remove(d.mAvatarId);
+    }
+
+    /**
+     * The policy which controls the downloads.
+     */
+    public interface Policy {
+
+	/**
+	 * Get the priority of the avatar of a contact.
+	 *
+	 * @param jid the jid of the contact
+	 * @return the priority, one of PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_HIGH
+	 */
+	int getPriority(String jid);
+
+	/**
+	 * Check if the avatars can be downloaded now.
+	 *
+	 * @return true if the downloads are allowed
+	 */
+	boolean isDownloadAllowed();
+    }
+
+    /**
+     * A policy which allows all the downloads with the same priority.
+     */
+    private static class DefaultPolicy implements Policy {
+
+	/**
+	 * Constructor.
+	 */
+	public DefaultPolicy() {
+	}
+
+	@Override
+	public int getPriority(String jid) {
+	    return PRIORITY_NORMAL;
+	}
+
+	@Override
+	public boolean isDownloadAllowed() {
+	    return true;
+	}
+    }
+
+    /**
+     * The download of an avatar.
+     * The downloads are ordered by priority, then by order of scheduling.
+     */
+    private class Download implements Runnable, Comparable<Download> {
+	private final String mAvatarId;
+	private final Info mInfo;
+	private final List<String> mFroms = new ArrayList<String>();
+	private final List<List<Info>> mInfos = new ArrayList<List<Info>>();
+	private final long mSequence;
+	private volatile int mPriority;
+	private volatile boolean mForced;
+	private boolean mNotified;
+	private boolean mPrefetch;
+	private int mAttempts;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param from the jid of the contact
+	 * @param avatarId the id of the avatar
+	 * @param info the metadata of the avatar to download
+	 * @param infos the metadata of all the available formats of the avatar
+	 * @param priority the priority of the download
+	 * @param sequence the order of scheduling
+	 */
+	public Download(final String from, final String avatarId, final Info info, final List<Info> infos,
+	    final int priority, final long sequence) {
+	    mAvatarId = avatarId;
+	    mInfo = info;
+	    mPriority = priority;
+	    mSequence = sequence;
+	    addRequester(from, infos);
+	}
+
+	/**
+	 * Add a contact waiting for this avatar.
+	 *
+	 * @param from the jid of the contact
+	 * @param infos the metadata of all the available formats of the avatar
+	 */
+	public synchronized void addRequester(String from, List<Info> infos) {
+	    mFroms.add(from);
+	    mInfos.add(infos);
+	}
+
+	@Override
+	public void run() {
+	    if (!mForced && !mPolicy.isDownloadAllowed()) {
+		submit(this);
+		return;
+	    }
+	    mAttempts++;
+	    boolean success = mManager.downloadAvatar(mFroms.get(0), mAvatarId, mInfo);
+	    if (!success && retry(this))
+		return;
+	    finish(this);
+	    synchronized (this) {
+		if (success)
+		    mManager.downloadFinished(mInfo, mInfos.get(0));
+		for (int i = 0; i < mFroms.size(); i++)
+		    mManager.fireListeners(mFroms.get(i), mAvatarId, mInfos.get(i));
+	    }
+	}
+
+	@Override
+	public int compareTo(Download another) {
+	    if (mPriority != another.mPriority)
+		return another.mPriority - mPriority;
+	    return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+	}
+    }
+
+    /**
+     * Create the low priority daemon threads of the pool.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+	private int mCount;
+
+	/**
+	 * Constructor.
+	 */
+	public WorkerFactory() {
+	}
+
+	@Override
+	public synchronized Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "avatar-download-" + mCount++);
+	    t.setDaemon(true);
+	    t.setPriority(Thread.MIN_PRIORITY);
+	    return t;
+	}
+    }
+}
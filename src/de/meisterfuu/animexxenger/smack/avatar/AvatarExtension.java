@@ -43,17 +43,30 @@
 */
 package de.meisterfuu.animexxenger.smack.avatar;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.jivesoftware.smack.util.Base64;
 import org.jivesoftware.smack.packet.PacketExtension;
 
 /**
  * PacketExtension to represent the Avatar data.
  * XML namespace urn:xmpp:avatar:data
+ * The data can be backed by a file, in which case they are encoded or decoded by chunks.
  *
  */
 public class AvatarExtension implements PacketExtension {
 
+    private static final int BUFFER_SIZE = 4096;
+
     private String mData;
+    private File mFile;
+    private boolean mTemporary;
 
     /**
      * Create an AvatarExtension.
@@ -71,13 +84,36 @@ public class AvatarExtension implements PacketExtension {
 	mData = Base64.encodeBytes(data);
     }
 
+    /**
+     * Create an AvatarExtension.
+     * The file must exist until the extension is sent.
+     * @param file the file containing the data of the avatar
+     */
+    public AvatarExtension(final File file) {
+	this(file, false);
+    }
+
+    /**
+     * Create an AvatarExtension.
+     * @param file the file containing the data of the avatar
+     * @param temporary true if the file must be deleted by {@link #release()}
+     */
+    AvatarExtension(final File file, final boolean temporary) {
+	mFile = file;
+	mTemporary = temporary;
+    }
+
     /**
      * Get the avatar data as a Base64 string.
      *
      * @return a base64 string.
      */
     public String getBase64() {
-	return mData;
+	if (mData != null)
+	    return mData;
+	StringBuilder builder = new StringBuilder(getEncodedLength());
+	appendBase64(builder);
+	return builder.toString();
     }
 
     /**
@@ -86,7 +122,46 @@ public class AvatarExtension implements PacketExtension {
      * @return the decoded data
      */
     public byte[] getData() {
-	return Base64.decode(mData);
+	if (mData != null)
+	    return Base64.decode(mData);
+	try {
+	    InputStream in = openStream();
+	    ByteArrayOutputStream os = new ByteArrayOutputStream((int) mFile.length());
+	    try {
+		byte[] data = new byte[BUFFER_SIZE];
+		int nbread;
+		while ((nbread = in.read(data)) != -1) {
+		    os.write(data, 0, nbread);
+		}
+	    } finally {
+		in.close();
+	    }
+	    return os.toByteArray();
+	} catch (IOException e) {
+	    System.err.println("Error while reading avatar data " + e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * Open a stream on the avatar data.
+     *
+     * @return the decoded data
+     * @throws IOException if the data cannot be read
+     */
+    public InputStream openStream() throws IOException {
+	if (mData != null)
+	    return new ByteArrayInputStream(Base64.decode(mData));
+	return new FileInputStream(mFile);
+    }
+
+    /**
+     * Release the resources used by the avatar data.
+     * The data can not be read after that.
+     */
+    public void release() {
+	if (mTemporary && mFile != null)
+	    mFile.delete();
     }
 
     @Override
@@ -101,11 +176,50 @@ public class AvatarExtension implements PacketExtension {
 
     @Override
     public String toXML() {
-	StringBuilder builder = new StringBuilder("<data xmlns=\"");
-	builder.append(getNamespace()).append("\">");
-	builder.append(mData);
+	String namespace = getNamespace();
+	int length = mData != null ? mData.length() : getEncodedLength();
+	StringBuilder builder = new StringBuilder(length + namespace.length() + 24);
+	builder.append("<data xmlns=\"");
+	builder.append(namespace).append("\">");
+	if (mData != null)
+	    builder.append(mData);
+	else
+	    appendBase64(builder);
 	builder.append("</data>");
 	return builder.toString();
     }
 
+    /**
+     * Get the length of the base64 encoding of the data file.
+     *
+     * @return the length in characters
+     */
+    private int getEncodedLength() {
+	return (int) ((mFile.length() + 2) / 3 * 4);
+    }
+
+    /**
+     * Encode the data file in base64 by chunks.
+     *
+     * @param builder the builder where to append the encoded data
+     */
+    private void appendBase64(StringBuilder builder) {
+	try {
+	    InputStream in = new Base64.InputStream(new BufferedInputStream(new FileInputStream(mFile)),
+		Base64.ENCODE | Base64.DONT_BREAK_LINES);
+	    try {
+		byte[] data = new byte[BUFFER_SIZE];
+		int nbread;
+		while ((nbread = in.read(data)) != -1) {
+		    for (int i = 0; i < nbread; i++)
+			builder.append((char) data[i]);
+		}
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException e) {
+	    System.err.println("Error while encoding avatar data " + e.getMessage());
+	}
+    }
+
 }
@@ -43,11 +43,13 @@
 */
 package de.meisterfuu.animexxenger.smack.avatar;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import de.meisterfuu.animexxenger.smack.avatar.AvatarMetadataExtension.Info;
 import de.meisterfuu.animexxenger.smack.pep.PEPListener;
@@ -72,11 +74,19 @@ public class AvatarManager {
     /**  The pubsub node for avatar metadata. */
     public static final String AVATARMETADATA_NODE = "urn:xmpp:avatar:metadata";
 
+    private static final int DOWNLOAD_THREADS = 2;
+    private static final long MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+    private static final List<String> SUPPORTED_TYPES = Arrays.asList("image/png", "image/jpeg", "image/gif");
+
     private PepSubManager mPep;
     private Connection mCon;
     private boolean mAutoDownload;
     private AvatarCache mCache;
-    private final List<AvatarListener> mListeners = new LinkedList<AvatarListener>();
+    private HttpAvatarClient mHttpClient;
+    private long mBytesSaved;
+    private final AvatarDownloadScheduler mScheduler = new AvatarDownloadScheduler(this, DOWNLOAD_THREADS);
+    private final CopyOnWriteArrayList<AvatarListener> mListeners = new CopyOnWriteArrayList<AvatarListener>();
+    private final Listener mPepListener = new Listener();
 
     /**
      * Create an AvatarManager.
@@ -92,7 +102,7 @@ public class AvatarManager {
 	mPep = pepMgr;
 	mAutoDownload = autoDownload;
 	mCache = cache;
-	mPep.addPEPListener(new Listener());
+	mPep.addPEPListener(AVATARMETADATA_NODE, mPepListener);
     }
 
     /**
@@ -106,8 +116,17 @@ public class AvatarManager {
 	mCon = con;
 	mPep = pepMgr;
 	mAutoDownload = autoDownload;
-	mPep.addPEPListener(new Listener());
-	mCache = new MemoryAvatarCache(100, 1800000);
+	mPep.addPEPListener(AVATARMETADATA_NODE, mPepListener);
+	mCache = new MemoryAvatarCache(MEMORY_CACHE_SIZE, 1800000);
+    }
+
+    /**
+     * Dispatch again the last avatar events received by the PepSubManager.
+     * This should be called once the AvatarListener are added if the PepSubManager
+     * was used before this manager was created.
+     */
+    public void replayAvatarEvents() {
+	mPep.replayLastEvents(AVATARMETADATA_NODE, mPepListener);
     }
 
     /**
@@ -126,14 +145,66 @@ public class AvatarManager {
 	}
     }
 
+    /**
+     * Get the statistics of the avatar cache.
+     *
+     * @return the statistics
+     */
+    public AvatarCacheStats getCacheStats() {
+	return mCache.getStats();
+    }
+
+    /**
+     * Get the scheduler of the avatar downloads.
+     *
+     * @return the download scheduler
+     */
+    public AvatarDownloadScheduler getDownloadScheduler() {
+	return mScheduler;
+    }
+
+    /**
+     * Stop the AvatarManager.
+     * The pending downloads are cancelled.
+     */
+    public void shutdown() {
+	mPep.removePEPListener(AVATARMETADATA_NODE, mPepListener);
+	mScheduler.shutdown();
+	if (mCache instanceof TieredAvatarCache)
+	    ((TieredAvatarCache) mCache).shutdown();
+	synchronized (this) {
+	    if (mHttpClient != null)
+		mHttpClient.closeIdleConnections();
+	}
+    }
+
+    /**
+     * Set the client used to download the avatars over HTTP.
+     *
+     * @param client the client
+     */
+    public synchronized void setHttpClient(HttpAvatarClient client) {
+	mHttpClient = client;
+    }
+
+    /**
+     * Get the client used to download the avatars over HTTP.
+     *
+     * @return the client
+     */
+    public synchronized HttpAvatarClient getHttpClient() {
+	if (mHttpClient == null)
+	    mHttpClient = new HttpAvatarClient();
+	return mHttpClient;
+    }
+
     /**
      * Add an AvatarListener.
      *
      * @param listener the AvatarListener to add
      */
     public void addAvatarListener(AvatarListener listener) {
-	if (!mListeners.contains(listener))
-	    mListeners.add(listener);
+	mListeners.addIfAbsent(listener);
     }
 
     /**
@@ -155,9 +226,8 @@ public class AvatarManager {
      */
     public boolean downloadAvatar(String from, String avatarId, Info info) {
 	try {
-	    AvatarRetriever retriever = AvatarRetrieverFactory.getRetriever(mCon, from, info);
-	    byte[] avatar = retriever.getAvatar();
-	    mCache.put(avatarId, avatar);
+	    AvatarRetriever retriever = AvatarRetrieverFactory.getRetriever(mCon, getHttpClient(), from, info);
+	    retriever.storeAvatar(mCache, avatarId);
 	    return true;
 	} catch (IOException e) {
 	    System.err.println("Error while downloading avatar");
@@ -204,16 +274,83 @@ public class AvatarManager {
 	node.publish(item);
     }
 
+    /**
+     * Get the number of bytes saved by downloading a smaller avatar than the first one published.
+     *
+     * @return the number of bytes saved
+     */
+    public synchronized long getBytesSaved() {
+	return mBytesSaved;
+    }
+
     /**
      * Select the avatar to download.
      * Subclass should override this method to take control over the selection process.
-     * This implementation select the first element.
+     * This implementation select the smallest avatar in bytes which is at least as big as
+     * the size returned by {@link #getTargetSize(boolean)}. If there is none, the biggest avatar is selected.
+     * The avatars in a format which may not be decoded are only selected if there is no other choice.
      *
      * @param available list of the avatar metadata information
      * @return the metadata of the avatar to download
      */
     protected Info selectAvatar(List<Info> available) {
-	return available.get(0);
+	int target = getTargetSize(isBandwidthLimited());
+	Info best = null;
+	for (Info info : available) {
+	    if (best == null || isBetterAvatar(info, best, target))
+		best = info;
+	}
+	return best;
+    }
+
+    /**
+     * Get the id under which a selected avatar is stored in the cache.
+     * The avatars are stored under the id of the selected format so the cache stays content addressed,
+     * the id of the metadata item is only the id of the first format.
+     *
+     * @param itemId the id of the metadata item
+     * @param info the metadata of the selected avatar
+     * @return the id of the avatar in the cache
+     */
+    protected String getStoredAvatarId(String itemId, Info info) {
+	String id = info.getId();
+	return id != null ? id : itemId;
+    }
+
+    /**
+     * Count the bytes saved by a finished download.
+     *
+     * @param info the metadata of the downloaded avatar
+     * @param infos the metadata of all the available formats of the avatar
+     */
+    void downloadFinished(Info info, List<Info> infos) {
+	int saved = infos.get(0).getBytes() - info.getBytes();
+	if (saved > 0) {
+	    synchronized (this) {
+		mBytesSaved += saved;
+	    }
+	}
+    }
+
+    /**
+     * Get the size in pixels the avatars should have to be displayed.
+     * This implementation returns 0 which selects the smallest avatar.
+     *
+     * @param bandwidthLimited true if the network has a limited bandwidth
+     * @return the size in pixels
+     */
+    protected int getTargetSize(boolean bandwidthLimited) {
+	return 0;
+    }
+
+    /**
+     * Check if the network has a limited bandwidth.
+     * This implementation returns false.
+     *
+     * @return true if the bandwidth is limited
+     */
+    protected boolean isBandwidthLimited() {
+	return false;
     }
 
 
@@ -230,13 +367,62 @@ public class AvatarManager {
 	return StringUtils.encodeHex(hash);
     }
 
+    /**
+     * Compare two avatars for the selection.
+     *
+     * @param info the avatar to compare
+     * @param best the best avatar found so far
+     * @param target the size in pixels the avatars should have
+     * @return true if info is a better choice than best
+     */
+    private boolean isBetterAvatar(Info info, Info best, int target) {
+	boolean supported = SUPPORTED_TYPES.contains(info.getType());
+	if (supported != SUPPORTED_TYPES.contains(best.getType()))
+	    return supported;
+	int size = getMinSize(info);
+	int bestSize = getMinSize(best);
+	boolean adequate = size == 0 || size >= target;
+	boolean bestAdequate = bestSize == 0 || bestSize >= target;
+	if (adequate != bestAdequate)
+	    return adequate;
+	if (!adequate && size != bestSize)
+	    return size > bestSize;
+	return info.getBytes() < best.getBytes();
+    }
+
+    /**
+     * Get the smallest dimension of an avatar.
+     *
+     * @param info the avatar metadata information
+     * @return the smallest dimension in pixels or 0 if it is unknown
+     */
+    private int getMinSize(Info info) {
+	if (info.getWidth() <= 0 || info.getHeight() <= 0)
+	    return 0;
+	return Math.min(info.getWidth(), info.getHeight());
+    }
+
+    /**
+     * Publish an avatar data.
+     * The data are encoded from the file when the item is sent, so the file must exist until then.
+     *
+     * @param id the id of the avatar data
+     * @param data the file containing the data of the avatar
+     */
+    protected void publishAvatarData(String id, File data) {
+	AvatarExtension avatar = new AvatarExtension(data);
+	PayloadItem<AvatarExtension> item = new PayloadItem<AvatarExtension>(id, avatar);
+	LeafNode node = mPep.getPEPNode(AVATARDATA_NODE);
+	node.publish(item);
+    }
+
     /**
      * Publish an avatar data.
      *
      * @param id the id of the avatar data
      * @param data the data of the avatar
      */
-    private void publishAvatarData(String id, byte[] data) {
+    protected void publishAvatarData(String id, byte[] data) {
 	AvatarExtension avatar = new AvatarExtension(data);
 	PayloadItem<AvatarExtension> item = new PayloadItem<AvatarExtension>(id, avatar);
 	LeafNode node = mPep.getPEPNode(AVATARDATA_NODE);
@@ -250,7 +436,7 @@ public class AvatarManager {
      * @param avatarId the new avatar id
      * @param avatarInfos the metadata infos of the avatar
      */
-    private void fireListeners(String from, String avatarId, List<Info> avatarInfos) {
+    void fireListeners(String from, String avatarId, List<Info> avatarInfos) {
 	for (AvatarListener l : mListeners)
 	    l.onAvatarChange(from, avatarId, avatarInfos);
     }
@@ -269,8 +455,6 @@ public class AvatarManager {
 
 	@Override
 	public void eventReceived(String from, String node, List<Item> items) {
-	    if (!"urn:xmpp:avatar:metadata".equals(node))
-		return;
 	    Item i = items.get(0);
 	    if (i instanceof PayloadItem) {
 		PayloadItem<PacketExtension> pi = (PayloadItem<PacketExtension>) i;
@@ -281,8 +465,12 @@ public class AvatarManager {
 		    List<Info> infos = ext.getInfos();
 		    if (infos.size() > 0 && mAutoDownload) {
 			Info info = selectAvatar(infos);
-			if (!mCache.contains(id))
-			    downloadAvatar(from, id, info);
+			id = getStoredAvatarId(id, info);
+			if (!mCache.contains(id)) {
+			    // the listeners will be fired by the scheduler when the download is delayed or finished
+			    mScheduler.schedule(from, id, info, infos);
+			    return;
+			}
 		    }
 		    fireListeners(from, id, infos);
 		}
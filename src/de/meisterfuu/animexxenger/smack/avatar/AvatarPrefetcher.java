@@ -0,0 +1,385 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import de.meisterfuu.animexxenger.smack.avatar.AvatarMetadataExtension.Info;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * Prefetch the avatars of the roster contacts when connecting.
+ * The last known avatar metadata of each contact is recorded from the avatar events and saved in a file.
+ * At the next connection the avatars missing from the cache are downloaded by the {@link AvatarDownloadScheduler}
+ * with the lowest priority and a limited number of bytes, so they are merged with the downloads requested
+ * by the avatar events. The prefetch stops as soon as the policy of the scheduler does not allow
+ * the downloads, for example on a metered network.
+ * The avatars already in the cache are announced to the listeners without waiting for the avatar events.
+ */
+public class AvatarPrefetcher implements AvatarListener {
+
+    /** The default number of bytes which can be downloaded by a prefetch. */
+    public static final long DEFAULT_BYTE_BUDGET = 1024 * 1024;
+
+    private static final int STORE_VERSION = 1;
+    private static final long SAVE_DELAY = 5000;
+
+    private final AvatarManager mManager;
+    private final AvatarCache mCache;
+    private final File mStore;
+    private final long mByteBudget;
+    private final Timer mSaveTimer = new Timer("avatar-prefetch-save", true);
+    private final Set<String> mScheduled = new HashSet<String>();
+    private long mBytesUsed;
+    private Map<String, Known> mKnown;
+    private boolean mSaveScheduled;
+    private volatile boolean mStopped;
+    private int mPrefetched;
+
+    /**
+     * Create an AvatarPrefetcher.
+     *
+     * @param manager the AvatarManager which downloads the avatars
+     * @param cache the cache where the avatars are stored
+     * @param store the file where the last known avatars are saved
+     * @param byteBudget the maximum number of bytes downloaded by the prefetches
+     */
+    public AvatarPrefetcher(final AvatarManager manager, final AvatarCache cache, final File store,
+	    final long byteBudget) {
+	mManager = manager;
+	mCache = cache;
+	mStore = store;
+	mByteBudget = byteBudget;
+    }
+
+    /**
+     * Create an AvatarPrefetcher with the default limits.
+     *
+     * @param manager the AvatarManager which downloads the avatars
+     * @param cache the cache where the avatars are stored
+     * @param store the file where the last known avatars are saved
+     */
+    public AvatarPrefetcher(final AvatarManager manager, final AvatarCache cache, final File store) {
+	this(manager, cache, store, DEFAULT_BYTE_BUDGET);
+    }
+
+    /**
+     * Prefetch the last known avatars of some contacts.
+     *
+     * @param jids the jids of the contacts
+     */
+    public void prefetch(Collection<String> jids) {
+	List<Known> toFetch = new ArrayList<Known>();
+	synchronized (this) {
+	    loadKnown();
+	    for (String jid : jids) {
+		Known known = mKnown.get(StringUtils.parseBareAddress(jid));
+		if (known != null)
+		    toFetch.add(known);
+	    }
+	}
+	AvatarDownloadScheduler scheduler = mManager.getDownloadScheduler();
+	for (Known known : toFetch) {
+	    if (mCache.contains(known.mAvatarId)) {
+		mManager.fireListeners(known.mJid, known.mAvatarId, known.mInfos);
+		continue;
+	    }
+	    if (mStopped)
+		continue;
+	    Info info = mManager.selectAvatar(known.mInfos);
+	    String avatarId = mManager.getStoredAvatarId(known.mAvatarId, info);
+	    if (mCache.contains(avatarId)) {
+		mManager.fireListeners(known.mJid, avatarId, known.mInfos);
+		continue;
+	    }
+	    if (!scheduler.isDownloadAllowed()) {
+		stop();
+		continue;
+	    }
+	    synchronized (this) {
+		// the budget is only charged for the downloads which are not already scheduled
+		if (mBytesUsed + info.getBytes() > mByteBudget) {
+		    stop();
+		    continue;
+		}
+		if (scheduler.prefetch(known.mJid, avatarId, info, known.mInfos)) {
+		    mBytesUsed += info.getBytes();
+		    mScheduled.add(avatarId);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Stop the prefetch.
+     * The prefetches already scheduled are still downloaded while the policy allows them.
+     */
+    public void stop() {
+	mStopped = true;
+    }
+
+    /**
+     * Get the number of avatars downloaded by the prefetch.
+     *
+     * @return the number of avatars
+     */
+    public synchronized int getPrefetchedCount() {
+	return mPrefetched;
+    }
+
+    /**
+     * Get the number of bytes used from the budget.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getBytesUsed() {
+	return mBytesUsed;
+    }
+
+    /**
+     * Stop the prefetcher and save the last known avatars.
+     */
+    public void shutdown() {
+	stop();
+	mSaveTimer.cancel();
+	save();
+    }
+
+    @Override
+    public void onAvatarChange(String from, String avatarId, List<Info> avatarInfos) {
+	String bare = StringUtils.parseBareAddress(from);
+	synchronized (this) {
+	    if (avatarId != null && mScheduled.remove(avatarId) && mCache.contains(avatarId))
+		mPrefetched++;
+	    loadKnown();
+	    if (avatarId == null || avatarInfos.isEmpty()) {
+		if (mKnown.remove(bare) == null)
+		    return;
+	    } else {
+		Known old = mKnown.get(bare);
+		if (old != null && avatarId.equals(old.mAvatarId))
+		    return;
+		mKnown.put(bare, new Known(bare, avatarId, new ArrayList<Info>(avatarInfos)));
+	    }
+	    if (!mSaveScheduled) {
+		mSaveScheduled = true;
+		try {
+		    mSaveTimer.schedule(new SaveTask(), SAVE_DELAY);
+		} catch (IllegalStateException e) {
+		    // the prefetcher is shutdown
+		    mSaveScheduled = false;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Load the last known avatars from the file if it is not already done.
+     */
+    private void loadKnown() {
+	if (mKnown != null)
+	    return;
+	mKnown = new HashMap<String, Known>();
+	DataInputStream in = null;
+	try {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStore)));
+	    if (in.readInt() != STORE_VERSION)
+		return;
+	    int count = in.readInt();
+	    for (int i = 0; i < count; i++) {
+		Known k = readKnown(in);
+		mKnown.put(k.mJid, k);
+	    }
+	} catch (FileNotFoundException e) {
+	    return;
+	} catch (IOException e) {
+	    System.err.println("Error while reading the last known avatars " + e.getMessage());
+	} finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Save the last known avatars in the file.
+     * The file is replaced atomically.
+     */
+    private synchronized void save() {
+	mSaveScheduled = false;
+	if (mKnown == null)
+	    return;
+	File tmp = new File(mStore.getPath() + ".tmp");
+	DataOutputStream out = null;
+	try {
+	    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	    out.writeInt(STORE_VERSION);
+	    out.writeInt(mKnown.size());
+	    for (Known k : mKnown.values())
+		writeKnown(out, k);
+	    out.close();
+	    out = null;
+	    if (!tmp.renameTo(mStore))
+		System.err.println("Unable to save the last known avatars in " + mStore);
+	} catch (IOException e) {
+	    System.err.println("Error while saving the last known avatars " + e.getMessage());
+	} finally {
+	    if (out != null) {
+		try {
+		    out.close();
+		} catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Read the last known avatar of a contact.
+     *
+     * @param in the stream to read
+     * @return the last known avatar
+     * @throws IOException if an error occurs
+     */
+    private static Known readKnown(DataInputStream in) throws IOException {
+	String jid = in.readUTF();
+	String avatarId = in.readUTF();
+	int count = in.readInt();
+	List<Info> infos = new ArrayList<Info>(count);
+	for (int i = 0; i < count; i++) {
+	    Info info = new Info(in.readUTF(), in.readUTF(), in.readInt());
+	    info.setWidth(in.readInt());
+	    info.setHeight(in.readInt());
+	    if (in.readBoolean())
+		info.setUrl(in.readUTF());
+	    infos.add(info);
+	}
+	return new Known(jid, avatarId, infos);
+    }
+
+    /**
+     * Write the last known avatar of a contact.
+     *
+     * @param out the stream to write
+     * @param known the last known avatar
+     * @throws IOException if an error occurs
+     */
+    private static void writeKnown(DataOutputStream out, Known known) throws IOException {
+	out.writeUTF(known.mJid);
+	out.writeUTF(known.mAvatarId);
+	out.writeInt(known.mInfos.size());
+	for (Info info : known.mInfos) {
+	    out.writeUTF(info.getId());
+	    out.writeUTF(info.getType());
+	    out.writeInt(info.getBytes());
+	    out.writeInt(info.getWidth());
+	    out.writeInt(info.getHeight());
+	    String url = info.getUrl();
+	    out.writeBoolean(url != null);
+	    if (url != null)
+		out.writeUTF(url);
+	}
+    }
+
+    /**
+     * The last known avatar of a contact.
+     */
+    private static class Known {
+	private final String mJid;
+	private final String mAvatarId;
+	private final List<Info> mInfos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param jid the bare jid of the contact
+	 * @param avatarId the id of the avatar
+	 * @param infos the metadata of the available formats of the avatar
+	 */
+	public Known(final String jid, final String avatarId, final List<Info> infos) {
+	    mJid = jid;
+	    mAvatarId = avatarId;
+	    mInfos = infos;
+	}
+    }
+
+    /**
+     * Save the last known avatars after a delay.
+     */
+    private class SaveTask extends TimerTask {
+
+	/**
+	 * Constructor.
+	 */
+	public SaveTask() {
+	}
+
+	@Override
+	public void run() {
+	    save();
+	}
+    }
+}
@@ -43,40 +43,114 @@
 */
 package de.meisterfuu.animexxenger.smack.avatar;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
+import org.jivesoftware.smack.util.Base64;
 import org.xmlpull.v1.XmlPullParser;
 
 /**
  * A PacketExtensionProvider to parse the Avatar data.
  * XML namespace urn:xmpp:avatar:data
+ * The base64 data are decoded while parsing into a spool file, so the avatar is never
+ * fully loaded in memory.
  */
 public class AvatarProvider implements PacketExtensionProvider {
 
+    private static final String SPOOL_PREFIX = "avatar";
+    private static final String SPOOL_SUFFIX = ".spool";
+    private static final int BUFFER_SIZE = 4096;
+
+    private final File mSpoolDir;
+
     /**
      * Creates a new AvatarProvider.
      * ProviderManager requires that every PacketExtensionProvider has a public, no-argument constructor
+     * The avatars are spooled in the default temporary directory.
      */
     public AvatarProvider() {
+	this(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Creates a new AvatarProvider.
+     * The spool files left by a previous run are deleted.
+     *
+     * @param spoolDir the directory where the avatar data are spooled
+     */
+    public AvatarProvider(final File spoolDir) {
+	mSpoolDir = spoolDir;
+	mSpoolDir.mkdirs();
+	File[] files = mSpoolDir.listFiles();
+	if (files != null) {
+	    for (File f : files) {
+		String name = f.getName();
+		if (name.startsWith(SPOOL_PREFIX) && name.endsWith(SPOOL_SUFFIX))
+		    f.delete();
+	    }
+	}
     }
 
     @Override
     public PacketExtension parseExtension(XmlPullParser parser)
 	throws Exception {
-	AvatarMetadataExtension metadata = new AvatarMetadataExtension();
 	boolean done = false;
-	StringBuilder buffer = new StringBuilder();
 	while (!done) {
 	    int eventType = parser.getEventType();
 	    if (eventType == XmlPullParser.START_TAG) {
 		if ("data".equals(parser.getName())) {
-		    String data = parser.nextText();
-		    AvatarExtension avatar = new AvatarExtension(data);
-		    return avatar;
+		    return parseData(parser);
 		}
+	    } else if (eventType == XmlPullParser.END_DOCUMENT) {
+		done = true;
 	    }
 	    parser.next();
 	}
 	return null;
     }
+
+    /**
+     * Decode the content of the data element into a spool file.
+     *
+     * @param parser the parser positioned on the data element
+     * @return the avatar extension backed by the spool file
+     * @throws Exception if an error occurs while parsing or decoding
+     */
+    private AvatarExtension parseData(XmlPullParser parser) throws Exception {
+	File spool = File.createTempFile(SPOOL_PREFIX, SPOOL_SUFFIX, mSpoolDir);
+	OutputStream out = new Base64.OutputStream(new BufferedOutputStream(new FileOutputStream(spool)),
+	    Base64.DECODE);
+	try {
+	    byte[] buffer = new byte[BUFFER_SIZE];
+	    int[] holder = new int[2];
+	    int eventType = parser.next();
+	    while (eventType != XmlPullParser.END_TAG) {
+		if (eventType == XmlPullParser.TEXT) {
+		    // read the text in the parser buffer without creating a String
+		    char[] chars = parser.getTextCharacters(holder);
+		    int start = holder[0];
+		    int end = start + holder[1];
+		    while (start < end) {
+			int len = Math.min(BUFFER_SIZE, end - start);
+			for (int i = 0; i < len; i++)
+			    buffer[i] = (byte) chars[start + i];
+			out.write(buffer, 0, len);
+			start += len;
+		    }
+		}
+		eventType = parser.next();
+	    }
+	    out.close();
+	} catch (IOException e) {
+	    out.close();
+	    spool.delete();
+	    throw e;
+	}
+	return new AvatarExtension(spool, true);
+    }
 }
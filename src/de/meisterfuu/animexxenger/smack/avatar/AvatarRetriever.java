@@ -57,4 +57,13 @@ public interface AvatarRetriever {
      * @throws IOException if an IO error occurs while retrieving the avatar
      */
     byte[] getAvatar() throws IOException;
+
+    /**
+     * Retrieve the avatar directly in a cache.
+     *
+     * @param cache the cache which will store the avatar
+     * @param key the key of the avatar in the cache
+     * @throws IOException if an IO error occurs while retrieving the avatar
+     */
+    void storeAvatar(AvatarCache cache, String key) throws IOException;
 }
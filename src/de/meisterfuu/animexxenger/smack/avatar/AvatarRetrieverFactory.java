@@ -69,11 +69,27 @@ public final class AvatarRetrieverFactory {
      * @return an AvatarRetriever null if none can retrieve this avatar
      */
     public static AvatarRetriever getRetriever(Connection con, String from, Info info) {
+	return getRetriever(con, null, from, info);
+    }
+
+    /**
+     * Get a AvatarRetriever to retrieve this avatar.
+     *
+     * @param con the connection
+     * @param httpClient the client used to retrieve the avatars over HTTP or null to use a new one
+     * @param from the user which own the avatar
+     * @param info the metadata information of the avatar to retrieve
+     * @return an AvatarRetriever null if none can retrieve this avatar
+     */
+    public static AvatarRetriever getRetriever(Connection con, HttpAvatarClient httpClient, String from,
+	Info info) {
 	String url = info.getUrl();
 	if (url != null) {
 	    // return new HttpAvatarRetriever(url);
 	    // HttpClient client = AndroidHttpClient.newInstance("Beem");
-	    return new HttpClientAvatarRetriever(url);
+	    if (httpClient == null)
+		return new HttpClientAvatarRetriever(url);
+	    return new HttpClientAvatarRetriever(httpClient, url);
 	}
 	return new XmppAvatarRetriever(con, from, info.getId());
     }
@@ -0,0 +1,482 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An AvatarCache which store the avatars on the filesystem with a limit on the total size.
+ * The least recently used avatars are removed when the limit is exceeded.
+ * The state of the cache is kept in memory and in a journal file appended on each operation,
+ * so the cache is restored without scanning the store directory. The journal is only
+ * rewritten when it contains more than {@link #REBUILD_THRESHOLD} redundant records.
+ * The reads are recorded in the journal buffer, which is flushed with the next write, after
+ * {@link #READ_FLUSH_THRESHOLD} reads or when {@link #flush()} is called.
+ * The avatars are stored by a {@link NioAvatarCache}.
+ */
+public class DiskLruAvatarCache implements AvatarCache {
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String MAGIC = "avatar-journal 1";
+    private static final String PUT = "P";
+    private static final String READ = "R";
+    private static final String DELETE = "D";
+    private static final int REBUILD_THRESHOLD = 2000;
+    private static final int READ_FLUSH_THRESHOLD = 64;
+
+    private final File mDirectory;
+    private final NioAvatarCache mStore;
+    private final long mMaxBytes;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private long mSize;
+    private int mRedundantOps;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private int mPendingReads;
+    private Writer mJournal;
+
+    /**
+     * Create a DiskLruAvatarCache.
+     *
+     * @param directory the directory used to store the avatars and the journal
+     * @param maxBytes the maximum number of bytes used by the avatars
+     */
+    public DiskLruAvatarCache(final File directory, final long maxBytes) {
+	mDirectory = directory;
+	mStore = new NioAvatarCache(directory);
+	mMaxBytes = maxBytes;
+	try {
+	    File journal = new File(mDirectory, JOURNAL_FILE);
+	    boolean reusable = false;
+	    if (journal.exists()) {
+		reusable = readJournal(journal);
+	    } else {
+		scanDirectory();
+	    }
+	    boolean migrated = addMigratedAvatars();
+	    if (!reusable || migrated || mRedundantOps >= REBUILD_THRESHOLD)
+		rebuildJournal();
+	    else
+		mJournal = new BufferedWriter(new FileWriter(journal, true));
+	} catch (IOException e) {
+	    System.err.println("Error while opening the avatar journal: " + e.getMessage());
+	}
+	trimToSize();
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IOException {
+	mStore.put(key, data);
+	recordPut(key, data.length);
+    }
+
+    @Override
+    public void put(String key, InputStream in) throws IOException {
+	mStore.put(key, in);
+	recordPut(key, mStore.getFile(key).length());
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+	byte[] data;
+	try {
+	    data = mStore.get(key);
+	} catch (IOException e) {
+	    synchronized (this) {
+		mMisses++;
+	    }
+	    throw e;
+	}
+	touch(key);
+	return data;
+    }
+
+    /**
+     * Write an avatar in an OutputStream.
+     *
+     * @param key the key id of the avatar
+     * @param out the stream to write to. It is not closed by this method
+     * @return the number of bytes written
+     * @throws IOException if an IO error occurs while reading or writing the data
+     * @see NioAvatarCache#get(String, OutputStream)
+     */
+    public long get(String key, OutputStream out) throws IOException {
+	long res = mStore.get(key, out);
+	touch(key);
+	return res;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The file is checked as it may have been deleted outside of the cache,
+     * for example when the user clears the application cache.
+     */
+    @Override
+    public synchronized boolean contains(String key) {
+	if (!mEntries.containsKey(key))
+	    return false;
+	if (mStore.getFile(key).exists())
+	    return true;
+	Entry e = mEntries.remove(key);
+	mSize -= e.mSize;
+	appendJournal(DELETE + " " + key, true);
+	return false;
+    }
+
+    @Override
+    public synchronized AvatarCacheStats getStats() {
+	return new AvatarCacheStats(mHits, mMisses, mEvictions, mSize, mEntries.size());
+    }
+
+    /**
+     * Get the file which contains an avatar.
+     * Use {@link #touch(String)} when the file is read directly.
+     *
+     * @param key the key id of the avatar
+     * @return the file of the avatar
+     */
+    public File getFile(String key) {
+	return mStore.getFile(key);
+    }
+
+    /**
+     * Update the size of an avatar which was written directly in its file.
+     *
+     * @param key the key id of the avatar
+     */
+    public void refresh(String key) {
+	File f = mStore.getFile(key);
+	if (f.exists())
+	    recordPut(key, f.length());
+    }
+
+    /**
+     * Remove an avatar from the cache.
+     *
+     * @param key the key id of the avatar
+     * @return true if the avatar was removed
+     */
+    public synchronized boolean remove(String key) {
+	Entry e = mEntries.remove(key);
+	if (e == null)
+	    return false;
+	mSize -= e.mSize;
+	mStore.remove(key);
+	appendJournal(DELETE + " " + key, true);
+	return true;
+    }
+
+    /**
+     * Get the ids of the avatars in the cache, from the least recently used to the most recently used.
+     *
+     * @return the list of ids
+     */
+    public synchronized List<String> keys() {
+	return new ArrayList<String>(mEntries.keySet());
+    }
+
+    /**
+     * Get the time of the last access to an avatar.
+     *
+     * @param key the key id of the avatar
+     * @return the time in milliseconds or 0 if the avatar is not in the cache
+     */
+    public synchronized long getLastAccess(String key) {
+	Entry e = mEntries.get(key);
+	return e == null ? 0 : e.mLastAccess;
+    }
+
+    /**
+     * Get the number of bytes used by the avatars.
+     *
+     * @return the size of the cache
+     */
+    public synchronized long size() {
+	return mSize;
+    }
+
+    /**
+     * Record the write of an avatar and remove the oldest ones if the cache is too big.
+     *
+     * @param key the key id of the avatar
+     * @param size the size of the avatar
+     */
+    private synchronized void recordPut(String key, long size) {
+	long now = System.currentTimeMillis();
+	Entry previous = mEntries.put(key, new Entry(size, now));
+	if (previous != null) {
+	    mSize -= previous.mSize;
+	    mRedundantOps++;
+	}
+	mSize += size;
+	appendJournal(PUT + " " + key + " " + size + " " + now, true);
+	trimToSize();
+    }
+
+    /**
+     * Record the access to an avatar.
+     *
+     * @param key the key id of the avatar
+     */
+    public synchronized void touch(String key) {
+	Entry e = mEntries.get(key);
+	if (e == null)
+	    return;
+	mHits++;
+	e.mLastAccess = System.currentTimeMillis();
+	mRedundantOps++;
+	mPendingReads++;
+	appendJournal(READ + " " + key + " " + e.mLastAccess, mPendingReads >= READ_FLUSH_THRESHOLD);
+    }
+
+    /**
+     * Write the buffered read records in the journal.
+     */
+    public synchronized void flush() {
+	if (mJournal == null || mPendingReads == 0)
+	    return;
+	try {
+	    mJournal.flush();
+	    mPendingReads = 0;
+	} catch (IOException e) {
+	    System.err.println("Error while writing the avatar journal: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Remove the least recently used avatars until the size is under the limit.
+     */
+    private synchronized void trimToSize() {
+	Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+	while (mSize > mMaxBytes && it.hasNext()) {
+	    Map.Entry<String, Entry> eldest = it.next();
+	    it.remove();
+	    mSize -= eldest.getValue().mSize;
+	    mEvictions++;
+	    mStore.remove(eldest.getKey());
+	    appendJournal(DELETE + " " + eldest.getKey(), true);
+	}
+    }
+
+    /**
+     * Append an operation to the journal.
+     * The journal is compacted when it contains too many redundant operations.
+     *
+     * @param line the operation
+     * @param flush true to write the journal buffer to the file
+     */
+    private void appendJournal(String line, boolean flush) {
+	if (mJournal == null)
+	    return;
+	try {
+	    mJournal.write(line);
+	    mJournal.write('\n');
+	    if (flush) {
+		mJournal.flush();
+		mPendingReads = 0;
+	    }
+	    if (mRedundantOps >= REBUILD_THRESHOLD && mRedundantOps >= mEntries.size())
+		rebuildJournal();
+	} catch (IOException e) {
+	    System.err.println("Error while writing the avatar journal: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Restore the state of the cache from the journal.
+     * The number of redundant records of the journal is counted in {@link #mRedundantOps}.
+     *
+     * @param journal the journal file
+     * @return false if the journal is invalid or ends with a truncated record and must be rebuilt
+     * @throws IOException if an error occurs while reading the journal
+     */
+    private boolean readJournal(File journal) throws IOException {
+	BufferedReader reader = new BufferedReader(new FileReader(journal));
+	try {
+	    if (!MAGIC.equals(reader.readLine())) {
+		scanDirectory();
+		return false;
+	    }
+	    int records = 0;
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		records++;
+		String[] parts = line.split(" ");
+		try {
+		    if (PUT.equals(parts[0]) && parts.length == 4) {
+			Entry e = new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+			Entry previous = mEntries.put(parts[1], e);
+			if (previous != null)
+			    mSize -= previous.mSize;
+			mSize += e.mSize;
+		    } else if (READ.equals(parts[0]) && parts.length == 3) {
+			Entry e = mEntries.get(parts[1]);
+			if (e != null)
+			    e.mLastAccess = Long.parseLong(parts[2]);
+		    } else if (DELETE.equals(parts[0]) && parts.length == 2) {
+			Entry e = mEntries.remove(parts[1]);
+			if (e != null)
+			    mSize -= e.mSize;
+		    }
+		} catch (NumberFormatException e) {
+		    // probably a line truncated by a crash, ignore it
+		    continue;
+		}
+	    }
+	    mRedundantOps = records - mEntries.size();
+	} finally {
+	    reader.close();
+	}
+	// appending after a truncated record would corrupt the next one
+	return endsWithNewLine(journal);
+    }
+
+    /**
+     * Check that a file ends with a complete line.
+     *
+     * @param file the file
+     * @return true if the last character of the file is a new line
+     * @throws IOException if an error occurs while reading the file
+     */
+    private static boolean endsWithNewLine(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    long length = raf.length();
+	    if (length == 0)
+		return false;
+	    raf.seek(length - 1);
+	    return raf.read() == '\n';
+	} finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Restore the state of the cache by scanning the store directory.
+     * This is only used when there is no valid journal.
+     */
+    private void scanDirectory() {
+	mEntries.clear();
+	mSize = 0;
+	File[] dirs = mDirectory.listFiles();
+	if (dirs == null)
+	    return;
+	for (File dir : dirs) {
+	    File[] files = dir.listFiles();
+	    if (files == null)
+		continue;
+	    for (File f : files) {
+		mEntries.put(f.getName(), new Entry(f.length(), f.lastModified()));
+		mSize += f.length();
+	    }
+	}
+    }
+
+    /**
+     * Add to the cache the avatars moved from the flat layout by the store.
+     *
+     * @return true if avatars were added
+     */
+    private boolean addMigratedAvatars() {
+	boolean added = false;
+	for (String key : mStore.getMigratedKeys()) {
+	    if (mEntries.containsKey(key))
+		continue;
+	    File f = mStore.getFile(key);
+	    mEntries.put(key, new Entry(f.length(), f.lastModified()));
+	    mSize += f.length();
+	    added = true;
+	}
+	return added;
+    }
+
+    /**
+     * Write a new compact journal with the current state of the cache.
+     *
+     * @throws IOException if an error occurs while writing the journal
+     */
+    private synchronized void rebuildJournal() throws IOException {
+	if (mJournal != null)
+	    mJournal.close();
+	File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+	Writer w = new BufferedWriter(new FileWriter(tmp));
+	try {
+	    w.write(MAGIC);
+	    w.write('\n');
+	    for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+		Entry entry = e.getValue();
+		w.write(PUT + " " + e.getKey() + " " + entry.mSize + " " + entry.mLastAccess + "\n");
+	    }
+	} finally {
+	    w.close();
+	}
+	File journal = new File(mDirectory, JOURNAL_FILE);
+	if (!tmp.renameTo(journal))
+	    throw new IOException("Unable to replace the avatar journal");
+	mRedundantOps = 0;
+	mPendingReads = 0;
+	mJournal = new BufferedWriter(new FileWriter(journal, true));
+    }
+
+    /**
+     * The state of an avatar in the cache.
+     */
+    private static class Entry {
+	private final long mSize;
+	private long mLastAccess;
+
+	/**
+	 * Create an Entry.
+	 *
+	 * @param size the size of the avatar
+	 * @param lastAccess the time of the last access
+	 */
+	public Entry(final long size, final long lastAccess) {
+	    mSize = size;
+	    mLastAccess = lastAccess;
+	}
+    }
+}
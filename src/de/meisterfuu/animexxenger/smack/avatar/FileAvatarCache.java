@@ -43,15 +43,16 @@
 */
 package de.meisterfuu.animexxenger.smack.avatar;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An implementation of an AvatarCache which store the data of the filesystem.
@@ -59,6 +60,8 @@ import java.io.OutputStream;
 public class FileAvatarCache implements AvatarCache {
 
     private File mStoreDir;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
 
     /**
      * Create a FileAvatarCache.
@@ -101,16 +104,27 @@ public class FileAvatarCache implements AvatarCache {
     @Override
     public byte[] get(String key) throws IOException {
 	File f = new File(mStoreDir, key);
-	InputStream is = new BufferedInputStream(new FileInputStream(f));
-	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	DataInputStream is;
 	try {
-	    byte[] data = new byte[1024];
-	    is.read(data);
-	    bos.write(data);
+	    is = new DataInputStream(new FileInputStream(f));
+	} catch (FileNotFoundException e) {
+	    mMisses.incrementAndGet();
+	    throw e;
+	}
+	mHits.incrementAndGet();
+	try {
+	    byte[] data = new byte[(int) f.length()];
+	    is.readFully(data);
+	    return data;
 	} finally {
 	    is.close();
 	}
-	return bos.toByteArray();
+    }
+
+    @Override
+    public AvatarCacheStats getStats() {
+	return new AvatarCacheStats(mHits.get(), mMisses.get(), AvatarCacheStats.UNKNOWN, AvatarCacheStats.UNKNOWN,
+	    AvatarCacheStats.UNKNOWN);
     }
 
     @Override
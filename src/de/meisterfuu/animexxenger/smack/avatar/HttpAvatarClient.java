@@ -0,0 +1,438 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * An HTTP client to download the avatars.
+ * One instance should be shared as it pools its connections. The size of the downloaded
+ * avatars is limited and the avatars already downloaded from an url are revalidated with
+ * the ETag and Last-Modified headers of the previous response.
+ */
+public class HttpAvatarClient {
+
+    /** The default maximum size of an avatar. */
+    public static final int DEFAULT_MAX_SIZE = 512 * 1024;
+
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int TIMEOUT = 20000;
+    private static final int MAX_VALIDATORS = 128;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final HttpClient mClient;
+    private volatile int mMaxSize = DEFAULT_MAX_SIZE;
+    private final Map<String, Validator> mValidators = new LinkedHashMap<String, Validator>(16, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Validator> eldest) {
+	    return size() > MAX_VALIDATORS;
+	}
+    };
+
+    /**
+     * Create an HttpAvatarClient with a pool of connections.
+     */
+    public HttpAvatarClient() {
+	this(createPooledClient());
+    }
+
+    /**
+     * Create an HttpAvatarClient.
+     *
+     * @param client the HttpClient used to download. It must support concurrent requests.
+     */
+    public HttpAvatarClient(final HttpClient client) {
+	mClient = client;
+    }
+
+    /**
+     * Set the maximum size of an avatar.
+     * The downloads of bigger avatars fail.
+     *
+     * @param maxSize the maximum size in bytes
+     */
+    public void setMaxSize(int maxSize) {
+	mMaxSize = maxSize;
+    }
+
+    /**
+     * Get the maximum size of an avatar.
+     *
+     * @return the maximum size in bytes
+     */
+    public int getMaxSize() {
+	return mMaxSize;
+    }
+
+    /**
+     * Download an avatar.
+     *
+     * @param url the url of the avatar
+     * @return the avatar data
+     * @throws IOException if the avatar cannot be downloaded or is too big
+     */
+    public byte[] get(String url) throws IOException {
+	HttpGet request = createRequest(url);
+	try {
+	    HttpResponse response = mClient.execute(request);
+	    checkStatus(url, response.getStatusLine().getStatusCode());
+	    HttpEntity entity = response.getEntity();
+	    long length = entity.getContentLength();
+	    InputStream in = openContent(request, entity);
+	    ByteArrayOutputStream os = new ByteArrayOutputStream(length > 0 ? (int) length : BUFFER_SIZE);
+	    try {
+		byte[] data = new byte[BUFFER_SIZE];
+		int nbread;
+		while ((nbread = in.read(data)) != -1) {
+		    os.write(data, 0, nbread);
+		}
+	    } finally {
+		in.close();
+	    }
+	    return os.toByteArray();
+	} catch (IOException e) {
+	    request.abort();
+	    throw e;
+	}
+    }
+
+    /**
+     * Download an avatar directly in an AvatarCache.
+     * If the avatar was already downloaded from this url and is still in the cache, it is only
+     * downloaded again if it has changed on the server.
+     *
+     * @param url the url of the avatar
+     * @param cache the cache which will store the avatar
+     * @param key the key of the avatar in the cache
+     * @throws IOException if the avatar cannot be downloaded or is too big
+     */
+    public void store(String url, AvatarCache cache, String key) throws IOException {
+	HttpGet request = createRequest(url);
+	Validator validator;
+	synchronized (mValidators) {
+	    validator = mValidators.get(url);
+	}
+	if (validator != null && cache.contains(validator.mKey)) {
+	    if (validator.mETag != null)
+		request.addHeader("If-None-Match", validator.mETag);
+	    if (validator.mLastModified != null)
+		request.addHeader("If-Modified-Since", validator.mLastModified);
+	} else {
+	    validator = null;
+	}
+	try {
+	    HttpResponse response = mClient.execute(request);
+	    int status = response.getStatusLine().getStatusCode();
+	    HttpEntity entity = response.getEntity();
+	    if (status == HttpStatus.SC_NOT_MODIFIED && validator != null) {
+		if (entity != null)
+		    entity.consumeContent();
+		if (copyCached(cache, validator.mKey, key))
+		    return;
+		// the avatar was removed from the cache since the check, download it again
+		synchronized (mValidators) {
+		    mValidators.remove(url);
+		}
+		store(url, cache, key);
+		return;
+	    }
+	    checkStatus(url, status);
+	    InputStream in = openContent(request, entity);
+	    try {
+		cache.put(key, in);
+	    } finally {
+		in.close();
+	    }
+	    Header etag = response.getFirstHeader("ETag");
+	    Header lastModified = response.getFirstHeader("Last-Modified");
+	    if (etag != null || lastModified != null) {
+		synchronized (mValidators) {
+		    mValidators.put(url, new Validator(key, etag == null ? null : etag.getValue(),
+			lastModified == null ? null : lastModified.getValue()));
+		}
+	    }
+	} catch (IOException e) {
+	    request.abort();
+	    throw e;
+	}
+    }
+
+    /**
+     * Make an avatar of the cache available under a key.
+     *
+     * @param cache the cache
+     * @param cachedKey the key of the avatar in the cache
+     * @param key the key wanted for the avatar
+     * @return false if the avatar is not in the cache anymore
+     */
+    private boolean copyCached(AvatarCache cache, String cachedKey, String key) {
+	try {
+	    if (cachedKey.equals(key))
+		return cache.contains(key);
+	    byte[] data = cache.get(cachedKey);
+	    if (data == null)
+		return false;
+	    cache.put(key, data);
+	    return true;
+	} catch (IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Close the idle connections of the pool.
+     */
+    public void closeIdleConnections() {
+	mClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the request to download an avatar.
+     *
+     * @param url the url of the avatar
+     * @return the request
+     * @throws IOException if the url is invalid
+     */
+    private HttpGet createRequest(String url) throws IOException {
+	try {
+	    return new HttpGet(url);
+	} catch (IllegalArgumentException e) {
+	    IOException ioe = new IOException("Invalid url " + url);
+	    ioe.initCause(e);
+	    throw ioe;
+	}
+    }
+
+    /**
+     * Check the status of a response.
+     *
+     * @param url the url of the avatar
+     * @param status the status code of the response
+     * @throws IOException if the status is not a success
+     */
+    private void checkStatus(String url, int status) throws IOException {
+	if (status != HttpStatus.SC_OK)
+	    throw new IOException("Unable to download " + url + " status " + status);
+    }
+
+    /**
+     * Open the content of a response.
+     * The returned stream aborts the request and fails if the content exceeds the maximum size,
+     * so the rest of the response is never read.
+     *
+     * @param request the request
+     * @param entity the entity of the response
+     * @return the content
+     * @throws IOException if the content is too big or cannot be opened
+     */
+    private InputStream openContent(HttpUriRequest request, HttpEntity entity) throws IOException {
+	if (entity == null)
+	    throw new IOException("Empty response");
+	int max = mMaxSize;
+	if (entity.getContentLength() > max)
+	    throw new IOException("Avatar too big: " + entity.getContentLength() + " bytes");
+	return new LimitedInputStream(entity.getContent(), max, request);
+    }
+
+    /**
+     * Create an HttpClient with a pool of connections.
+     *
+     * @return the client
+     */
+    private static HttpClient createPooledClient() {
+	HttpParams params = new BasicHttpParams();
+	ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+	HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
+	HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+	HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+	SchemeRegistry registry = new SchemeRegistry();
+	registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+	registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+	return new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    }
+
+    /**
+     * The validators of the last response for an url.
+     */
+    private static class Validator {
+	private final String mKey;
+	private final String mETag;
+	private final String mLastModified;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key the key of the avatar in the cache
+	 * @param etag the ETag header or null
+	 * @param lastModified the Last-Modified header or null
+	 */
+	public Validator(final String key, final String etag, final String lastModified) {
+	    mKey = key;
+	    mETag = etag;
+	    mLastModified = lastModified;
+	}
+    }
+
+    /**
+     * An InputStream which aborts its request when too many bytes are read or a read fails.
+     * Once aborted, closing the stream does not read the rest of the response.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+	private final long mLimit;
+	private final HttpUriRequest mRequest;
+	private long mCount;
+	private boolean mAborted;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in the underlying stream
+	 * @param limit the maximum number of bytes to read
+	 * @param request the request to abort when the limit is exceeded
+	 */
+	public LimitedInputStream(final InputStream in, final long limit, final HttpUriRequest request) {
+	    super(in);
+	    mLimit = limit;
+	    mRequest = request;
+	}
+
+	@Override
+	public void close() throws IOException {
+	    if (mAborted)
+		return;
+	    super.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+	    int b;
+	    try {
+		b = super.read();
+	    } catch (IOException e) {
+		abort();
+		throw e;
+	    }
+	    if (b != -1)
+		count(1);
+	    return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+	    int n;
+	    try {
+		n = super.read(b, off, len);
+	    } catch (IOException e) {
+		abort();
+		throw e;
+	    }
+	    if (n > 0)
+		count(n);
+	    return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+	    long skipped;
+	    try {
+		skipped = super.skip(n);
+	    } catch (IOException e) {
+		abort();
+		throw e;
+	    }
+	    count(skipped);
+	    return skipped;
+	}
+
+	/**
+	 * Abort the request, the connection is closed without reading the rest of the response.
+	 */
+	private void abort() {
+	    if (!mAborted) {
+		mAborted = true;
+		mRequest.abort();
+	    }
+	}
+
+	/**
+	 * Count the bytes read.
+	 *
+	 * @param n the number of bytes read
+	 * @throws IOException if the limit is exceeded
+	 */
+	private void count(long n) throws IOException {
+	    mCount += n;
+	    if (mCount > mLimit) {
+		abort();
+		throw new IOException("Avatar bigger than " + mLimit + " bytes");
+	    }
+	}
+    }
+}
@@ -93,4 +93,16 @@ public  class HttpAvatarRetriever implements AvatarRetriever {
 	return os.toByteArray();
     }
 
+    @Override
+    public void storeAvatar(AvatarCache cache, String key) throws IOException {
+	if (mUrl == null)
+	    mUrl = new URL(mUrlString);
+	InputStream in = mUrl.openStream();
+	try {
+	    cache.put(key, in);
+	} finally {
+	    in.close();
+	}
+    }
+
 }
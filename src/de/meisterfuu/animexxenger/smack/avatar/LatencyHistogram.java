@@ -0,0 +1,139 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with buckets growing by powers of two.
+ * The first bucket counts the latencies under 16 microseconds and the last one
+ * the latencies over about 1 second. The histogram can be updated concurrently.
+ */
+public class LatencyHistogram {
+
+    private static final int FIRST_BUCKET_SHIFT = 14;
+    private static final int BUCKETS = 17;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Create a LatencyHistogram.
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+	int bucket = 0;
+	long limit = nanos >> FIRST_BUCKET_SHIFT;
+	while (limit > 0 && bucket < BUCKETS - 1) {
+	    limit >>= 1;
+	    bucket++;
+	}
+	mBuckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * Get the number of latencies recorded.
+     *
+     * @return the number of latencies
+     */
+    public long getCount() {
+	long count = 0;
+	for (int i = 0; i < BUCKETS; i++)
+	    count += mBuckets.get(i);
+	return count;
+    }
+
+    /**
+     * Get an upper bound of a percentile of the latencies.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the upper bound of the bucket containing the percentile in nanoseconds,
+     * or Long.MAX_VALUE if it is in the last bucket
+     */
+    public long getPercentile(int percentile) {
+	long count = getCount();
+	long rank = (count * percentile + 99) / 100;
+	long seen = 0;
+	for (int i = 0; i < BUCKETS - 1; i++) {
+	    seen += mBuckets.get(i);
+	    if (seen >= rank)
+		return getUpperBound(i);
+	}
+	return Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the upper bound of a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the upper bound in nanoseconds
+     */
+    private long getUpperBound(int bucket) {
+	return 1L << (FIRST_BUCKET_SHIFT + bucket);
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder builder = new StringBuilder();
+	for (int i = 0; i < BUCKETS; i++) {
+	    long n = mBuckets.get(i);
+	    if (n == 0)
+		continue;
+	    if (builder.length() > 0)
+		builder.append(' ');
+	    if (i == BUCKETS - 1)
+		builder.append(">=").append(getUpperBound(i - 1) / 1000);
+	    else
+		builder.append('<').append(getUpperBound(i) / 1000);
+	    builder.append("us:").append(n);
+	}
+	return builder.toString();
+    }
+}
@@ -32,30 +32,57 @@ package de.meisterfuu.animexxenger.smack.avatar;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-
-import org.jivesoftware.smack.util.Cache;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An avatar cache which store the avatars in memory.
+ * The cache is bounded by the number of bytes of the avatars. When it is full, the least
+ * recently used avatars are removed. The avatars are read without locking the cache.
  */
 public class MemoryAvatarCache implements AvatarCache {
+
     private static final int BUFFER_SIZE = 1024;
-    private Cache<String, byte[]> mCache;
+
+    private final ConcurrentHashMap<String, Entry> mCache = new ConcurrentHashMap<String, Entry>();
+    private final long mMaxBytes;
+    private final long mMaxLifetime;
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private long mBytes;
 
     /**
      * Create a MemoryAvatarCache.
      *
-     * @param maxSize the maximum number of objects the cache will hold. -1 means the cache has no max size.
+     * @param maxBytes the maximum number of bytes the cache will hold. -1 means the cache has no max size.
      * @param maxlifetime the maximum amount of time (in ms) objects can exist in cache before being deleted.
      *	-1 means objects never expire.
      */
-    public MemoryAvatarCache(final int maxSize, final long maxlifetime) {
-	mCache = new Cache<String, byte[]>(maxSize, maxlifetime);
+    public MemoryAvatarCache(final long maxBytes, final long maxlifetime) {
+	mMaxBytes = maxBytes;
+	mMaxLifetime = maxlifetime;
     }
 
     @Override
     public void put(String key, byte[] data) throws IOException {
-	mCache.put(key, data);
+	long expiration = mMaxLifetime < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + mMaxLifetime;
+	Entry entry = new Entry(data, expiration, mClock.incrementAndGet());
+	synchronized (this) {
+	    if (mMaxBytes >= 0 && data.length > mMaxBytes) {
+		// too big to be cached, just drop the previous value
+		remove(key, mCache.get(key));
+		return;
+	    }
+	    Entry previous = mCache.put(key, entry);
+	    if (previous != null)
+		mBytes -= previous.mData.length;
+	    mBytes += data.length;
+	    trimToSize();
+	}
     }
 
     @Override
@@ -70,16 +97,114 @@ public class MemoryAvatarCache implements AvatarCache {
 	    in.close();
 	    os.close();
 	}
-	mCache.put(key, os.toByteArray());
+	put(key, os.toByteArray());
     }
 
     @Override
     public byte[] get(String key) throws IOException {
-	return mCache.get(key);
+	Entry entry = getEntry(key);
+	if (entry == null) {
+	    mMisses.incrementAndGet();
+	    return null;
+	}
+	entry.mLastAccess = mClock.incrementAndGet();
+	mHits.incrementAndGet();
+	return entry.mData;
     }
 
     @Override
     public boolean contains(String key) {
-	return mCache.containsKey(key);
+	return getEntry(key) != null;
+    }
+
+    @Override
+    public AvatarCacheStats getStats() {
+	synchronized (this) {
+	    return new AvatarCacheStats(mHits.get(), mMisses.get(), mEvictions.get(), mBytes, mCache.size());
+	}
+    }
+
+    /**
+     * Get the entry of an avatar which has not expired.
+     * The expired entry is removed.
+     *
+     * @param key the key id of the avatar
+     * @return the entry or null
+     */
+    private Entry getEntry(String key) {
+	Entry entry = mCache.get(key);
+	if (entry == null)
+	    return null;
+	if (entry.mExpiration < System.currentTimeMillis()) {
+	    synchronized (this) {
+		remove(key, entry);
+	    }
+	    return null;
+	}
+	return entry;
+    }
+
+    /**
+     * Remove an entry if it is still the current one for its key.
+     * This method must be called with the lock held.
+     *
+     * @param key the key id of the avatar
+     * @param entry the entry to remove
+     */
+    private void remove(String key, Entry entry) {
+	if (entry != null && mCache.remove(key, entry)) {
+	    mBytes -= entry.mData.length;
+	    mEvictions.incrementAndGet();
+	}
+    }
+
+    /**
+     * Remove the expired entries then the least recently used ones until the cache fits in its budget.
+     * This method must be called with the lock held.
+     */
+    private void trimToSize() {
+	if (mMaxBytes < 0 || mBytes <= mMaxBytes)
+	    return;
+	long now = System.currentTimeMillis();
+	for (Iterator<Map.Entry<String, Entry>> it = mCache.entrySet().iterator(); it.hasNext();) {
+	    Map.Entry<String, Entry> e = it.next();
+	    if (e.getValue().mExpiration < now)
+		remove(e.getKey(), e.getValue());
+	}
+	while (mBytes > mMaxBytes) {
+	    String eldestKey = null;
+	    Entry eldest = null;
+	    for (Map.Entry<String, Entry> e : mCache.entrySet()) {
+		if (eldest == null || e.getValue().mLastAccess < eldest.mLastAccess) {
+		    eldestKey = e.getKey();
+		    eldest = e.getValue();
+		}
+	    }
+	    if (eldest == null)
+		break;
+	    remove(eldestKey, eldest);
+	}
+    }
+
+    /**
+     * An avatar in the cache.
+     */
+    private static class Entry {
+	private final byte[] mData;
+	private final long mExpiration;
+	private volatile long mLastAccess;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param data the avatar data
+	 * @param expiration the time when the avatar expires
+	 * @param lastAccess the logical time of the last access
+	 */
+	public Entry(final byte[] data, final long expiration, final long lastAccess) {
+	    mData = data;
+	    mExpiration = expiration;
+	    mLastAccess = lastAccess;
+	}
     }
 }
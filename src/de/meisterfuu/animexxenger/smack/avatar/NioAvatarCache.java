@@ -0,0 +1,287 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An implementation of an AvatarCache which store the data on the filesystem using {@link FileChannel}.
+ * The avatars are stored by their id, which is the sha-1 of their content, in sub directories named
+ * after the first characters of the id. The files are written in a temporary file which is renamed
+ * when complete, so a reader never sees a partially written avatar.
+ * When the store is opened, the avatars stored directly in the store directory by the previous
+ * versions are moved to their sub directory and the temporary files left by an interrupted write
+ * are deleted.
+ */
+public class NioAvatarCache implements AvatarCache {
+
+    private static final int PREFIX_LENGTH = 2;
+    private static final long TRANSFER_CHUNK = 64 * 1024;
+    private static final int SHA1_HEX_LENGTH = 40;
+    private static final String TMP_PREFIX = "avatar";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mStoreDir;
+    private final List<String> mMigratedKeys;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Create a NioAvatarCache.
+     *
+     * @param storedir The directory used to store the data.
+     */
+    public NioAvatarCache(final File storedir) {
+	if (storedir.exists() && !storedir.isDirectory())
+	    throw new IllegalArgumentException("The store directory must be a directory");
+	mStoreDir = storedir;
+	mStoreDir.mkdirs();
+	mMigratedKeys = Collections.unmodifiableList(migrate());
+    }
+
+    /**
+     * Get the keys of the avatars moved from the previous flat layout when the store was opened.
+     *
+     * @return the list of keys
+     */
+    public List<String> getMigratedKeys() {
+	return mMigratedKeys;
+    }
+
+    /**
+     * Get the file which contains an avatar.
+     * The file may not exist.
+     *
+     * @param key the key id of the avatar
+     * @return the file of the avatar
+     */
+    public File getFile(String key) {
+	String prefix = key.length() > PREFIX_LENGTH ? key.substring(0, PREFIX_LENGTH) : "_";
+	return new File(new File(mStoreDir, prefix), key);
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IOException {
+	File tmp = createTempFile();
+	FileChannel fc = new FileOutputStream(tmp).getChannel();
+	try {
+	    ByteBuffer buffer = ByteBuffer.wrap(data);
+	    while (buffer.hasRemaining())
+		fc.write(buffer);
+	} catch (IOException e) {
+	    fc.close();
+	    tmp.delete();
+	    throw e;
+	}
+	fc.close();
+	commit(tmp, key);
+    }
+
+    @Override
+    public void put(String key, InputStream in) throws IOException {
+	File tmp = createTempFile();
+	FileChannel fc = new FileOutputStream(tmp).getChannel();
+	ReadableByteChannel src = Channels.newChannel(in);
+	try {
+	    long pos = 0;
+	    long nbread;
+	    while ((nbread = fc.transferFrom(src, pos, TRANSFER_CHUNK)) > 0)
+		pos += nbread;
+	} catch (IOException e) {
+	    fc.close();
+	    tmp.delete();
+	    throw e;
+	} finally {
+	    in.close();
+	}
+	fc.close();
+	commit(tmp, key);
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+	FileChannel fc;
+	try {
+	    fc = new FileInputStream(getFile(key)).getChannel();
+	} catch (FileNotFoundException e) {
+	    mMisses.incrementAndGet();
+	    throw e;
+	}
+	mHits.incrementAndGet();
+	try {
+	    long size = fc.size();
+	    if (size > Integer.MAX_VALUE)
+		throw new IOException("Avatar " + key + " is too big");
+	    byte[] data = new byte[(int) size];
+	    ByteBuffer buffer = ByteBuffer.wrap(data);
+	    while (buffer.hasRemaining()) {
+		if (fc.read(buffer) == -1)
+		    throw new IOException("Avatar " + key + " was truncated while reading");
+	    }
+	    return data;
+	} finally {
+	    fc.close();
+	}
+    }
+
+    /**
+     * Write an avatar in an OutputStream.
+     * The data is transfered directly from the file without being copied in the java heap
+     * when the platform allows it.
+     *
+     * @param key the key id of the avatar
+     * @param out the stream to write to. It is not closed by this method
+     * @return the number of bytes written
+     * @throws IOException if an IO error occurs while reading or writing the data
+     */
+    public long get(String key, OutputStream out) throws IOException {
+	FileChannel fc = new FileInputStream(getFile(key)).getChannel();
+	try {
+	    WritableByteChannel dst = Channels.newChannel(out);
+	    long size = fc.size();
+	    long pos = 0;
+	    while (pos < size)
+		pos += fc.transferTo(pos, size - pos, dst);
+	    return pos;
+	} finally {
+	    fc.close();
+	}
+    }
+
+    @Override
+    public AvatarCacheStats getStats() {
+	return new AvatarCacheStats(mHits.get(), mMisses.get(), AvatarCacheStats.UNKNOWN, AvatarCacheStats.UNKNOWN,
+	    AvatarCacheStats.UNKNOWN);
+    }
+
+    @Override
+    public boolean contains(String key) {
+	return getFile(key).exists();
+    }
+
+    /**
+     * Remove an avatar from the cache.
+     *
+     * @param key the key id of the avatar
+     * @return true if the avatar was removed
+     */
+    public boolean remove(String key) {
+	return getFile(key).delete();
+    }
+
+    /**
+     * Move the avatars of the flat layout to their sub directory and delete the
+     * temporary files left in the store directory.
+     * The avatars are recognized by their sha-1 id, the other files of the store directory
+     * are left untouched.
+     *
+     * @return the keys of the moved avatars
+     */
+    private List<String> migrate() {
+	List<String> migrated = new ArrayList<String>();
+	File[] files = mStoreDir.listFiles();
+	if (files == null)
+	    return migrated;
+	for (File f : files) {
+	    if (!f.isFile())
+		continue;
+	    String name = f.getName();
+	    if (name.startsWith(TMP_PREFIX) && name.endsWith(TMP_SUFFIX)) {
+		f.delete();
+	    } else if (isSha1(name)) {
+		File dest = getFile(name);
+		dest.getParentFile().mkdirs();
+		if (dest.exists() || !f.renameTo(dest)) {
+		    f.delete();
+		} else {
+		    migrated.add(name);
+		}
+	    }
+	}
+	return migrated;
+    }
+
+    /**
+     * Test if a file name is an hexadecimal sha-1.
+     *
+     * @param name the file name
+     * @return true if the name is a sha-1
+     */
+    private static boolean isSha1(String name) {
+	if (name.length() != SHA1_HEX_LENGTH)
+	    return false;
+	for (int i = 0; i < name.length(); i++) {
+	    if (Character.digit(name.charAt(i), 16) == -1)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Create a temporary file in the store directory.
+     *
+     * @return the temporary file
+     * @throws IOException if the file cannot be created
+     */
+    private File createTempFile() throws IOException {
+	return File.createTempFile(TMP_PREFIX, TMP_SUFFIX, mStoreDir);
+    }
+
+    /**
+     * Move a completely written temporary file to its final place.
+     *
+     * @param tmp the temporary file
+     * @param key the key id of the avatar
+     * @throws IOException if the file cannot be renamed
+     */
+    private void commit(File tmp, String key) throws IOException {
+	File dest = getFile(key);
+	dest.getParentFile().mkdirs();
+	if (!tmp.renameTo(dest)) {
+	    tmp.delete();
+	    throw new IOException("Unable to store avatar " + key);
+	}
+    }
+}
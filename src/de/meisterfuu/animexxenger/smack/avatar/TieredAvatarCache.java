@@ -0,0 +1,287 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An AvatarCache composed of several tiers, from the fastest to the slowest.
+ * The avatars are read from the first tier which contains them and promoted in the faster tiers.
+ * The first and the last tiers are written by the caller, so an avatar is persisted when the write returns,
+ * while the intermediate tiers are written in background, in the order of the writes.
+ * The avatars waiting to be written are still readable.
+ * The last tier holds every avatar written in this cache.
+ * The latency of the reads of each tier is recorded in a {@link LatencyHistogram}.
+ */
+public class TieredAvatarCache implements AvatarCache {
+
+    private static final long WRITER_KEEP_ALIVE = 30;
+
+    private final AvatarCache[] mTiers;
+    private final LatencyHistogram[] mHistograms;
+    private final ConcurrentHashMap<String, byte[]> mPending = new ConcurrentHashMap<String, byte[]>();
+    private final ExecutorService mWriter;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Create a TieredAvatarCache.
+     *
+     * @param tiers the caches composing the tiers, from the fastest to the slowest
+     */
+    public TieredAvatarCache(final AvatarCache... tiers) {
+	if (tiers.length == 0)
+	    throw new IllegalArgumentException("At least one tier is needed");
+	mTiers = tiers.clone();
+	mHistograms = new LatencyHistogram[tiers.length];
+	for (int i = 0; i < tiers.length; i++)
+	    mHistograms[i] = new LatencyHistogram();
+	mWriter = new ThreadPoolExecutor(0, 1, WRITER_KEEP_ALIVE, TimeUnit.SECONDS,
+	    new LinkedBlockingQueue<Runnable>(), new WriterFactory());
+    }
+
+    /**
+     * {@inheritDoc}
+     * The avatar is written synchronously in the last and the first tiers and in background in the other ones.
+     */
+    @Override
+    public void put(String key, byte[] data) throws IOException {
+	int last = mTiers.length - 1;
+	mTiers[last].put(key, data);
+	if (last > 0)
+	    mTiers[0].put(key, data);
+	if (last > 1)
+	    writeBehind(key, data, 1, last);
+    }
+
+    /**
+     * {@inheritDoc}
+     * As the stream can only be read once, the avatar is written synchronously in the slowest tier only.
+     * It will be promoted in the faster tiers when read.
+     */
+    @Override
+    public void put(String key, InputStream in) throws IOException {
+	mTiers[mTiers.length - 1].put(key, in);
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+	byte[] data = mPending.get(key);
+	if (data != null) {
+	    mHits.incrementAndGet();
+	    return data;
+	}
+	IOException error = null;
+	for (int i = 0; i < mTiers.length; i++) {
+	    AvatarCache tier = mTiers[i];
+	    if (!tier.contains(key))
+		continue;
+	    long start = System.nanoTime();
+	    try {
+		data = tier.get(key);
+	    } catch (IOException e) {
+		error = e;
+		data = null;
+	    }
+	    mHistograms[i].record(System.nanoTime() - start);
+	    if (data != null) {
+		mHits.incrementAndGet();
+		promote(key, data, i);
+		return data;
+	    }
+	}
+	mMisses.incrementAndGet();
+	if (error != null)
+	    throw error;
+	return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Only the first and the last tiers are checked as the last one holds every avatar.
+     */
+    @Override
+    public boolean contains(String key) {
+	return mTiers[0].contains(key) || mTiers[mTiers.length - 1].contains(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The statistics of each tier are available with {@link #getTier(int)}.
+     */
+    @Override
+    public AvatarCacheStats getStats() {
+	return new AvatarCacheStats(mHits.get(), mMisses.get(), AvatarCacheStats.UNKNOWN, AvatarCacheStats.UNKNOWN,
+	    AvatarCacheStats.UNKNOWN);
+    }
+
+    /**
+     * Get the number of tiers.
+     *
+     * @return the number of tiers
+     */
+    public int getTierCount() {
+	return mTiers.length;
+    }
+
+    /**
+     * Get a tier.
+     *
+     * @param index the index of the tier, 0 being the fastest
+     * @return the cache of the tier
+     */
+    public AvatarCache getTier(int index) {
+	return mTiers[index];
+    }
+
+    /**
+     * Get the histogram of the read latencies of a tier.
+     *
+     * @param index the index of the tier, 0 being the fastest
+     * @return the histogram
+     */
+    public LatencyHistogram getLatencyHistogram(int index) {
+	return mHistograms[index];
+    }
+
+    /**
+     * Stop the background writes.
+     * The pending writes are still done.
+     */
+    public void shutdown() {
+	mWriter.shutdown();
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder builder = new StringBuilder(getStats().toString());
+	for (int i = 0; i < mTiers.length; i++) {
+	    builder.append("\ntier ").append(i).append(' ').append(mTiers[i].getClass().getSimpleName());
+	    builder.append(" [").append(mTiers[i].getStats()).append("] ").append(mHistograms[i]);
+	}
+	return builder.toString();
+    }
+
+    /**
+     * Copy an avatar found in a tier in the faster tiers.
+     *
+     * @param key the key id of the avatar
+     * @param data the avatar data
+     * @param tier the tier where the avatar was found
+     */
+    private void promote(String key, byte[] data, int tier) {
+	if (tier == 0)
+	    return;
+	try {
+	    mTiers[0].put(key, data);
+	} catch (IOException e) {
+	    System.err.println("Error while promoting avatar " + key + " " + e.getMessage());
+	}
+	if (tier > 1)
+	    writeBehind(key, data, 1, tier);
+    }
+
+    /**
+     * Write an avatar in some tiers in background.
+     *
+     * @param key the key id of the avatar
+     * @param data the avatar data
+     * @param from the index of the first tier to write
+     * @param to the index after the last tier to write
+     */
+    private void writeBehind(final String key, final byte[] data, final int from, final int to) {
+	mPending.put(key, data);
+	Runnable write = new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    for (int i = from; i < to; i++) {
+			try {
+			    mTiers[i].put(key, data);
+			} catch (IOException e) {
+			    System.err.println("Error while writing avatar " + key + " in tier " + i + " "
+				+ e.getMessage());
+			}
+		    }
+		} finally {
+		    mPending.remove(key, data);
+		}
+	    }
+	};
+	try {
+	    mWriter.execute(write);
+	} catch (RejectedExecutionException e) {
+	    write.run();
+	}
+    }
+
+    /**
+     * Create the daemon thread writing the slow tiers.
+     */
+    private static class WriterFactory implements ThreadFactory {
+
+	/**
+	 * Constructor.
+	 */
+	public WriterFactory() {
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "avatar-cache-writer");
+	    t.setDaemon(true);
+	    t.setPriority(Thread.MIN_PRIORITY);
+	    return t;
+	}
+    }
+}
@@ -0,0 +1,251 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smackx.pubsub.Item;
+import org.jivesoftware.smackx.pubsub.LeafNode;
+import org.jivesoftware.smackx.pubsub.PayloadItem;
+
+/**
+ * Retrieve the avatar data of the contacts over pubsub.
+ * There is only one fetcher per connection. It does not register any listener on the
+ * connection and reuses the handles of the avatar data nodes of the contacts.
+ * Several avatars of a contact can be requested in one query if the server supports it.
+ */
+public final class XmppAvatarFetcher {
+
+    private static final int MAX_NODES = 64;
+    private static final Map<Connection, XmppAvatarFetcher> INSTANCES = new WeakHashMap<Connection, XmppAvatarFetcher>();
+
+    private final Connection mCon;
+    private final Map<String, LeafNode> mNodes = new LinkedHashMap<String, LeafNode>(MAX_NODES, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, LeafNode> eldest) {
+	    return size() > MAX_NODES;
+	}
+    };
+    private volatile boolean mMultipleItemsSupported = true;
+
+    /**
+     * Create a XmppAvatarFetcher.
+     *
+     * @param con the connection
+     */
+    private XmppAvatarFetcher(final Connection con) {
+	mCon = con;
+    }
+
+    /**
+     * Get the XmppAvatarFetcher of a connection.
+     *
+     * @param con the connection
+     * @return the fetcher
+     */
+    public static XmppAvatarFetcher getInstanceFor(Connection con) {
+	synchronized (INSTANCES) {
+	    XmppAvatarFetcher fetcher = INSTANCES.get(con);
+	    if (fetcher == null) {
+		fetcher = new XmppAvatarFetcher(con);
+		INSTANCES.put(con, fetcher);
+	    }
+	    return fetcher;
+	}
+    }
+
+    /**
+     * Retrieve an avatar.
+     *
+     * @param from the contact which publish the avatar
+     * @param id the id of the avatar
+     * @return the avatar data
+     * @throws IOException if the avatar cannot be retrieved
+     */
+    public byte[] fetch(String from, String id) throws IOException {
+	AvatarExtension avatar = fetchItem(from, id);
+	try {
+	    byte[] data = avatar.getData();
+	    if (data == null)
+		throw new IOException("Unable to read the avatar " + id);
+	    return data;
+	} finally {
+	    avatar.release();
+	}
+    }
+
+    /**
+     * Retrieve an avatar directly in a cache.
+     * The avatar data are streamed from the spool file of the response.
+     *
+     * @param from the contact which publish the avatar
+     * @param id the id of the avatar
+     * @param cache the cache which will store the avatar
+     * @param key the key of the avatar in the cache
+     * @throws IOException if the avatar cannot be retrieved or stored
+     */
+    public void store(String from, String id, AvatarCache cache, String key) throws IOException {
+	AvatarExtension avatar = fetchItem(from, id);
+	try {
+	    InputStream in = avatar.openStream();
+	    try {
+		cache.put(key, in);
+	    } finally {
+		in.close();
+	    }
+	} finally {
+	    avatar.release();
+	}
+    }
+
+    /**
+     * Retrieve several avatars of a contact.
+     * The avatars are requested in one query. If the server returns only some of them,
+     * the missing ones are requested one by one and the next calls will do so directly.
+     *
+     * @param from the contact which publish the avatars
+     * @param ids the ids of the avatars
+     * @return the avatar data indexed by id. The avatars which cannot be retrieved are missing.
+     * @throws IOException if the avatars cannot be retrieved
+     */
+    public Map<String, byte[]> fetch(String from, List<String> ids) throws IOException {
+	Map<String, AvatarExtension> avatars = new HashMap<String, AvatarExtension>();
+	if (ids.size() <= 1 || !mMultipleItemsSupported) {
+	    for (String id : ids)
+		avatars.putAll(fetchItems(from, Arrays.asList(id)));
+	} else {
+	    avatars.putAll(fetchItems(from, ids));
+	    if (avatars.size() < ids.size()) {
+		if (avatars.size() <= 1)
+		    mMultipleItemsSupported = false;
+		for (String id : ids) {
+		    if (!avatars.containsKey(id))
+			avatars.putAll(fetchItems(from, Arrays.asList(id)));
+		}
+	    }
+	}
+	Map<String, byte[]> result = new HashMap<String, byte[]>();
+	for (Map.Entry<String, AvatarExtension> e : avatars.entrySet()) {
+	    byte[] data = e.getValue().getData();
+	    e.getValue().release();
+	    if (data != null)
+		result.put(e.getKey(), data);
+	}
+	return result;
+    }
+
+    /**
+     * Request one item of the avatar data node of a contact.
+     *
+     * @param from the contact which publish the avatar
+     * @param id the id of the item
+     * @return the avatar data
+     * @throws IOException if the request failed or the item was not found
+     */
+    private AvatarExtension fetchItem(String from, String id) throws IOException {
+	Map<String, AvatarExtension> avatars = fetchItems(from, Arrays.asList(id));
+	AvatarExtension avatar = avatars.remove(id);
+	for (AvatarExtension other : avatars.values())
+	    other.release();
+	if (avatar == null)
+	    throw new IOException("Avatar " + id + " not found on the node of " + from);
+	return avatar;
+    }
+
+    /**
+     * Request some items of the avatar data node of a contact.
+     *
+     * @param from the contact which publish the avatars
+     * @param ids the ids of the items
+     * @return the avatar data indexed by id. They must be released by the caller.
+     * @throws IOException if the request failed
+     */
+    private Map<String, AvatarExtension> fetchItems(String from, List<String> ids) throws IOException {
+	try {
+	    List<Item> items = getNode(from).getItems(new ArrayList<String>(ids));
+	    Map<String, AvatarExtension> result = new HashMap<String, AvatarExtension>();
+	    for (Item i : items) {
+		if (!(i instanceof PayloadItem))
+		    continue;
+		PacketExtension ext = ((PayloadItem<PacketExtension>) i).getPayload();
+		if (ext instanceof AvatarExtension)
+		    result.put(i.getId(), (AvatarExtension) ext);
+	    }
+	    return result;
+	} catch (XMPPException e) {
+	    IOException ex = new IOException("Unable to retrieve the avatars of " + from);
+	    ex.initCause(e);
+	    throw ex;
+	}
+    }
+
+    /**
+     * Get the handle of the avatar data node of a contact.
+     *
+     * @param from the contact
+     * @return the node
+     */
+    private LeafNode getNode(String from) {
+	synchronized (mNodes) {
+	    LeafNode node = mNodes.get(from);
+	    if (node == null) {
+		node = new LeafNode(mCon, AvatarManager.AVATARDATA_NODE);
+		node.setTo(from);
+		mNodes.put(from, node);
+	    }
+	    return node;
+	}
+    }
+}
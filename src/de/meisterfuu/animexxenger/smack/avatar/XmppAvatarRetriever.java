@@ -43,23 +43,17 @@
 */
 package de.meisterfuu.animexxenger.smack.avatar;
 
-import java.util.List;
-import java.util.Arrays;
-import org.jivesoftware.smack.Connection;
-import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smackx.pubsub.LeafNode;
-import org.jivesoftware.smackx.pubsub.Item;
-import org.jivesoftware.smackx.pubsub.PayloadItem;
+import java.io.IOException;
 
-import de.meisterfuu.animexxenger.smack.pep.PepSubManager;
+import org.jivesoftware.smack.Connection;
 
 /**
  * An AvatarRetriever which retrieve the avatar over the XMPP connection.
+ * The avatar is retrieved with the {@link XmppAvatarFetcher} of the connection.
  */
 public class XmppAvatarRetriever implements AvatarRetriever {
 
-    private static String AVATARDATANODE = "urn:xmpp:avatar:data";
-    private PepSubManager mPubsub;
+    private XmppAvatarFetcher mFetcher;
     private String mFrom;
     private String mId;
 
@@ -71,22 +65,19 @@ public class XmppAvatarRetriever implements AvatarRetriever {
      * @param id the id of the avatar to retrieve
      */
     public XmppAvatarRetriever(final Connection con, final String from, final String id) {
-	mPubsub = new PepSubManager(con, from);
+	mFetcher = XmppAvatarFetcher.getInstanceFor(con);
 	mFrom = from;
 	mId = id;
     }
 
     @Override
-    public byte[] getAvatar() {
-	try {
-	    LeafNode node = mPubsub.getPEPNode(AVATARDATANODE);
-	    List<Item> items = node.getItems(Arrays.asList(mId));
-	    PayloadItem<AvatarExtension> item = (PayloadItem<AvatarExtension>) items.get(0);
-	    AvatarExtension avatar = item.getPayload();
-	    return avatar.getData();
-	} catch (XMPPException e) {
-	    return null;
-	}
+    public byte[] getAvatar() throws IOException {
+	return mFetcher.fetch(mFrom, mId);
+    }
+
+    @Override
+    public void storeAvatar(AvatarCache cache, String key) throws IOException {
+	mFetcher.store(mFrom, mId, cache, key);
     }
 
 }
@@ -0,0 +1,701 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.caps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+/**
+ * A compact database of the DiscoverInfo of the capabilities, stored in a single file.
+ * The whole database is kept in memory. The features are interned and each ver attribute
+ * is stored as its identities and a bitset of its features.
+ * The DiscoverInfo which cannot be verified are stored for each jid, in a bounded LRU with a lifetime.
+ * The new entries are appended to a log which is compacted when it contains too many
+ * redundant records or entries, or corrupted records.
+ * Each record is encoded in memory and appended only when complete. If the log cannot be written,
+ * the database is marked dirty and the log is rewritten from memory by a compaction.
+ */
+public class CapsDatabase {
+
+    /** The maximum number of ver attributes kept when the log is compacted. */
+    public static final int MAX_ENTRIES = 1000;
+
+    /** The maximum number of jids kept. */
+    public static final int MAX_JID_ENTRIES = 500;
+    /** The lifetime in milliseconds of the DiscoverInfo of a jid. */
+    public static final long JID_ENTRY_LIFETIME = 7 * 24 * 60 * 60 * 1000L;
+
+    /** The number of entries over the maximum which triggers a compaction. */
+    private static final int COMPACTION_SLACK = MAX_ENTRIES / 4;
+
+    private static final int MAGIC = 0x43415053;
+    private static final int VERSION = 1;
+    private static final byte RECORD_FEATURE = 1;
+    private static final byte RECORD_VER = 2;
+    private static final byte RECORD_JID = 3;
+    private static final int BITS_PER_WORD = 64;
+
+    private final File mFile;
+    private final List<String> mFeatures = new ArrayList<String>();
+    private final Map<String, Integer> mFeatureIds = new HashMap<String, Integer>();
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private final Map<String, JidEntry> mJidEntries = new LinkedHashMap<String, JidEntry>(16, 0.75f, true);
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+    private FileOutputStream mLog;
+    private boolean mDirty;
+    private int mVerRecords;
+    private int mJidRecords;
+
+    /**
+     * Create a CapsDatabase.
+     * The file is loaded immediately.
+     *
+     * @param file the file of the database
+     */
+    public CapsDatabase(final File file) {
+	mFile = file;
+	load();
+    }
+
+    /**
+     * Check if the database contains the DiscoverInfo of a ver attribute.
+     *
+     * @param ver the ver attribute
+     * @return true if the DiscoverInfo is stored
+     */
+    public synchronized boolean contains(String ver) {
+	return mEntries.containsKey(ver);
+    }
+
+    /**
+     * Check if a ver attribute includes a feature.
+     * No DiscoverInfo is built for this check.
+     *
+     * @param ver the ver attribute
+     * @param feature the feature
+     * @return true if the feature is included, false if it is not or if the ver attribute is unknown
+     */
+    public synchronized boolean hasFeature(String ver, String feature) {
+	Entry e = mEntries.get(ver);
+	Integer id = mFeatureIds.get(feature);
+	return e != null && id != null && e.mFeatures.get(id);
+    }
+
+    /**
+     * Get the DiscoverInfo of a ver attribute.
+     *
+     * @param ver the ver attribute
+     * @return a new DiscoverInfo or null if it is not stored
+     */
+    public synchronized DiscoverInfo get(String ver) {
+	Entry e = mEntries.get(ver);
+	if (e == null)
+	    return null;
+	return toDiscoverInfo(e);
+    }
+
+    /**
+     * Get the DiscoverInfo of a jid.
+     * The DiscoverInfo is returned only if it was stored for the same ver attribute and has not expired.
+     *
+     * @param jid the jid
+     * @param ver the ver attribute currently announced by the jid
+     * @return a new DiscoverInfo or null if it is not stored
+     */
+    public synchronized DiscoverInfo getJid(String jid, String ver) {
+	JidEntry e = mJidEntries.get(jid);
+	if (e == null)
+	    return null;
+	if (e.mExpiration < System.currentTimeMillis()) {
+	    mJidEntries.remove(jid);
+	    return null;
+	}
+	if (!e.mVer.equals(ver))
+	    return null;
+	return toDiscoverInfo(e.mEntry);
+    }
+
+    /**
+     * Store the DiscoverInfo of a jid.
+     * The least recently used jids are removed if there are too many.
+     *
+     * @param jid the jid
+     * @param ver the ver attribute announced by the jid
+     * @param info the DiscoverInfo
+     */
+    public synchronized void putJid(String jid, String ver, DiscoverInfo info) {
+	List<String> newFeatures = new ArrayList<String>();
+	JidEntry e = new JidEntry(ver, System.currentTimeMillis() + JID_ENTRY_LIFETIME, toEntry(info, newFeatures));
+	try {
+	    mRecord.reset();
+	    for (String f : newFeatures)
+		writeFeature(mRecordOut, f);
+	    writeJid(mRecordOut, jid, e);
+	} catch (IOException ex) {
+	    System.err.println("Unable to store the capabilities of " + jid + " " + ex.getMessage());
+	    uninternFeatures(newFeatures);
+	    return;
+	}
+	mJidEntries.put(jid, e);
+	Iterator<JidEntry> it = mJidEntries.values().iterator();
+	for (int i = mJidEntries.size(); i > MAX_JID_ENTRIES; i--) {
+	    it.next();
+	    it.remove();
+	}
+	if (appendRecord())
+	    mJidRecords++;
+	if (needsCompaction())
+	    compact();
+    }
+
+    /**
+     * Build a DiscoverInfo from an entry.
+     *
+     * @param e the entry
+     * @return the DiscoverInfo
+     */
+    private DiscoverInfo toDiscoverInfo(Entry e) {
+	DiscoverInfo info = new DiscoverInfo();
+	for (int i = 0; i < e.mIdentities.length; i += 3) {
+	    DiscoverInfo.Identity identity = new DiscoverInfo.Identity(e.mIdentities[i], e.mIdentities[i + 2]);
+	    identity.setType(e.mIdentities[i + 1]);
+	    info.addIdentity(identity);
+	}
+	for (int i = e.mFeatures.nextSetBit(0); i >= 0; i = e.mFeatures.nextSetBit(i + 1))
+	    info.addFeature(mFeatures.get(i));
+	return info;
+    }
+
+    /**
+     * Store the DiscoverInfo of a ver attribute.
+     * The entry is appended to the log.
+     *
+     * @param ver the ver attribute
+     * @param info the DiscoverInfo
+     */
+    public synchronized void put(String ver, DiscoverInfo info) {
+	List<String> newFeatures = new ArrayList<String>();
+	Entry e = toEntry(info, newFeatures);
+	try {
+	    mRecord.reset();
+	    for (String f : newFeatures)
+		writeFeature(mRecordOut, f);
+	    writeVer(mRecordOut, ver, e);
+	} catch (IOException ex) {
+	    System.err.println("Unable to store the capabilities " + ver + " " + ex.getMessage());
+	    uninternFeatures(newFeatures);
+	    return;
+	}
+	mEntries.remove(ver);
+	mEntries.put(ver, e);
+	if (appendRecord())
+	    mVerRecords++;
+	if (needsCompaction())
+	    compact();
+    }
+
+    /**
+     * Append the record encoded in the scratch buffer to the log.
+     * If the database is dirty or the record cannot be written, the log is rewritten by a compaction instead.
+     *
+     * @return true if the record was appended, false if a compaction was needed
+     */
+    private boolean appendRecord() {
+	if (!mDirty) {
+	    try {
+		FileOutputStream out = openLog();
+		mRecord.writeTo(out);
+		return true;
+	    } catch (IOException ex) {
+		System.err.println("Error while writing the capabilities database " + ex.getMessage());
+		mDirty = true;
+	    }
+	}
+	compact();
+	return false;
+    }
+
+    /**
+     * Build an entry from a DiscoverInfo.
+     * The unknown features are interned.
+     *
+     * @param info the DiscoverInfo
+     * @param newFeatures the list where the newly interned features are added
+     * @return the entry
+     */
+    private Entry toEntry(DiscoverInfo info, List<String> newFeatures) {
+	BitSet features = new BitSet();
+	Iterator<DiscoverInfo.Feature> it = info.getFeatures();
+	while (it.hasNext()) {
+	    String var = it.next().getVar();
+	    Integer id = mFeatureIds.get(var);
+	    if (id == null) {
+		id = internFeature(var);
+		newFeatures.add(var);
+	    }
+	    features.set(id);
+	}
+	List<String> identities = new ArrayList<String>();
+	Iterator<DiscoverInfo.Identity> ids = info.getIdentities();
+	while (ids.hasNext()) {
+	    DiscoverInfo.Identity identity = ids.next();
+	    identities.add(identity.getCategory());
+	    identities.add(identity.getType());
+	    identities.add(identity.getName());
+	}
+	return new Entry(identities.toArray(new String[identities.size()]), features);
+    }
+
+    /**
+     * Get the number of ver attributes stored.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+	return mEntries.size();
+    }
+
+    /**
+     * Close the log.
+     * It will be opened again if an entry is stored.
+     */
+    public synchronized void close() {
+	closeLog();
+    }
+
+    /**
+     * Load the database from the file and compact it if needed.
+     */
+    private void load() {
+	boolean corrupted = false;
+	DataInputStream in = null;
+	try {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+	    if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+		corrupted = true;
+	    } else {
+		while (true) {
+		    int type = in.read();
+		    if (type == -1)
+			break;
+		    if (type == RECORD_FEATURE) {
+			internFeature(in.readUTF());
+		    } else if (type == RECORD_VER) {
+			String ver = in.readUTF();
+			Entry e = readEntry(in);
+			mEntries.remove(ver);
+			mEntries.put(ver, e);
+			mVerRecords++;
+		    } else if (type == RECORD_JID) {
+			String jid = in.readUTF();
+			String ver = in.readUTF();
+			long expiration = in.readLong();
+			mJidEntries.put(jid, new JidEntry(ver, expiration, readEntry(in)));
+			mJidRecords++;
+		    } else {
+			corrupted = true;
+			break;
+		    }
+		}
+	    }
+	} catch (FileNotFoundException e) {
+	    return;
+	} catch (EOFException e) {
+	    // a record was partially written
+	    corrupted = true;
+	} catch (IOException e) {
+	    System.err.println("Error while reading the capabilities database " + e.getMessage());
+	    corrupted = true;
+	} finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+	mDirty = corrupted;
+	if (corrupted || needsCompaction())
+	    compact();
+    }
+
+    /**
+     * Check if the log contains too many redundant records or entries.
+     *
+     * @return true if the log should be compacted
+     */
+    private boolean needsCompaction() {
+	int size = mEntries.size();
+	int jids = mJidEntries.size();
+	return mVerRecords - size > size || size > MAX_ENTRIES + COMPACTION_SLACK
+	    || mJidRecords - jids > Math.max(jids, MAX_JID_ENTRIES / 4) || jids > MAX_JID_ENTRIES;
+    }
+
+    /**
+     * Rewrite the log with only the live entries and the features they use.
+     * The features are renumbered only if the new log replaced the old one.
+     */
+    private void compact() {
+	closeLog();
+	// keep the most recent entries
+	Iterator<String> it = mEntries.keySet().iterator();
+	for (int i = mEntries.size(); i > MAX_ENTRIES; i--) {
+	    it.next();
+	    it.remove();
+	}
+	long now = System.currentTimeMillis();
+	Iterator<JidEntry> jids = mJidEntries.values().iterator();
+	for (int i = mJidEntries.size(); jids.hasNext(); i--) {
+	    JidEntry e = jids.next();
+	    if (i > MAX_JID_ENTRIES || e.mExpiration < now)
+		jids.remove();
+	}
+	// renumber the features still in use
+	BitSet used = new BitSet();
+	for (Entry e : mEntries.values())
+	    used.or(e.mFeatures);
+	for (JidEntry e : mJidEntries.values())
+	    used.or(e.mEntry.mFeatures);
+	int[] remap = new int[mFeatures.size()];
+	List<String> features = new ArrayList<String>();
+	for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+	    remap[i] = features.size();
+	    features.add(mFeatures.get(i));
+	}
+	Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	for (Map.Entry<String, Entry> e : mEntries.entrySet())
+	    entries.put(e.getKey(), e.getValue().remap(remap, features.size()));
+	Map<String, JidEntry> jidEntries = new LinkedHashMap<String, JidEntry>();
+	for (Map.Entry<String, JidEntry> e : mJidEntries.entrySet()) {
+	    JidEntry je = e.getValue();
+	    jidEntries.put(e.getKey(), new JidEntry(je.mVer, je.mExpiration, je.mEntry.remap(remap, features.size())));
+	}
+	File tmp = new File(mFile.getPath() + ".tmp");
+	if (!write(tmp, features, entries, jidEntries) || !tmp.renameTo(mFile)) {
+	    System.err.println("Unable to compact the capabilities database");
+	    tmp.delete();
+	    return;
+	}
+	mEntries.clear();
+	mEntries.putAll(entries);
+	mJidEntries.clear();
+	mJidEntries.putAll(jidEntries);
+	mFeatures.clear();
+	mFeatureIds.clear();
+	for (String f : features)
+	    internFeature(f);
+	mVerRecords = mEntries.size();
+	mJidRecords = mJidEntries.size();
+	mDirty = false;
+    }
+
+    /**
+     * Write a whole database in a file.
+     *
+     * @param file the file to write
+     * @param features the features
+     * @param entries the entries of the ver attributes
+     * @param jidEntries the entries of the jids
+     * @return true if the file was written
+     */
+    private static boolean write(File file, List<String> features, Map<String, Entry> entries,
+	Map<String, JidEntry> jidEntries) {
+	DataOutputStream out = null;
+	try {
+	    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    for (String f : features)
+		writeFeature(out, f);
+	    for (Map.Entry<String, Entry> e : entries.entrySet())
+		writeVer(out, e.getKey(), e.getValue());
+	    for (Map.Entry<String, JidEntry> e : jidEntries.entrySet())
+		writeJid(out, e.getKey(), e.getValue());
+	    out.close();
+	    out = null;
+	    return true;
+	} catch (IOException e) {
+	    System.err.println("Error while writing the capabilities database " + e.getMessage());
+	    return false;
+	} finally {
+	    if (out != null) {
+		try {
+		    out.close();
+		} catch (IOException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Intern a feature.
+     *
+     * @param feature the feature
+     * @return the id of the feature
+     */
+    private int internFeature(String feature) {
+	int id = mFeatures.size();
+	mFeatures.add(feature);
+	mFeatureIds.put(feature, id);
+	return id;
+    }
+
+    /**
+     * Remove the features interned last.
+     *
+     * @param features the features to remove, which must be the last ones interned
+     */
+    private void uninternFeatures(List<String> features) {
+	for (String f : features) {
+	    mFeatureIds.remove(f);
+	    mFeatures.remove(mFeatures.size() - 1);
+	}
+    }
+
+    /**
+     * Open the log for appending.
+     * The log is not buffered as the records are written whole.
+     *
+     * @return the stream to write the log
+     * @throws IOException if the log cannot be opened
+     */
+    private FileOutputStream openLog() throws IOException {
+	if (mLog == null) {
+	    boolean exists = mFile.length() > 0;
+	    mLog = new FileOutputStream(mFile, true);
+	    if (!exists) {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		header.writeTo(mLog);
+	    }
+	}
+	return mLog;
+    }
+
+    /**
+     * Close the log.
+     */
+    private void closeLog() {
+	if (mLog == null)
+	    return;
+	try {
+	    mLog.close();
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	mLog = null;
+    }
+
+    /**
+     * Write a feature record.
+     *
+     * @param out the stream to write
+     * @param feature the feature
+     * @throws IOException if an error occurs
+     */
+    private static void writeFeature(DataOutputStream out, String feature) throws IOException {
+	out.writeByte(RECORD_FEATURE);
+	out.writeUTF(feature);
+    }
+
+    /**
+     * Write a ver record.
+     *
+     * @param out the stream to write
+     * @param ver the ver attribute
+     * @param e the entry of the ver attribute
+     * @throws IOException if an error occurs
+     */
+    private static void writeVer(DataOutputStream out, String ver, Entry e) throws IOException {
+	out.writeByte(RECORD_VER);
+	out.writeUTF(ver);
+	writeEntry(out, e);
+    }
+
+    /**
+     * Write a jid record.
+     *
+     * @param out the stream to write
+     * @param jid the jid
+     * @param e the entry of the jid
+     * @throws IOException if an error occurs
+     */
+    private static void writeJid(DataOutputStream out, String jid, JidEntry e) throws IOException {
+	out.writeByte(RECORD_JID);
+	out.writeUTF(jid);
+	out.writeUTF(e.mVer);
+	out.writeLong(e.mExpiration);
+	writeEntry(out, e.mEntry);
+    }
+
+    /**
+     * Write the identities and the features of an entry.
+     *
+     * @param out the stream to write
+     * @param e the entry
+     * @throws IOException if an error occurs
+     */
+    private static void writeEntry(DataOutputStream out, Entry e) throws IOException {
+	out.writeShort(e.mIdentities.length);
+	for (String s : e.mIdentities) {
+	    out.writeBoolean(s != null);
+	    if (s != null)
+		out.writeUTF(s);
+	}
+	BitSet features = e.mFeatures;
+	int words = (features.length() + BITS_PER_WORD - 1) / BITS_PER_WORD;
+	out.writeShort(words);
+	for (int w = 0; w < words; w++) {
+	    long word = 0;
+	    int start = w * BITS_PER_WORD;
+	    for (int i = features.nextSetBit(start); i >= 0 && i < start + BITS_PER_WORD;
+		i = features.nextSetBit(i + 1))
+		word |= 1L << (i - start);
+	    out.writeLong(word);
+	}
+    }
+
+    /**
+     * Read the identities and the features of an entry.
+     *
+     * @param in the stream to read
+     * @return the entry
+     * @throws IOException if an error occurs
+     */
+    private Entry readEntry(DataInputStream in) throws IOException {
+	String[] identities = new String[in.readUnsignedShort()];
+	for (int i = 0; i < identities.length; i++)
+	    identities[i] = in.readBoolean() ? in.readUTF() : null;
+	int words = in.readUnsignedShort();
+	BitSet features = new BitSet(words * BITS_PER_WORD);
+	for (int w = 0; w < words; w++) {
+	    long word = in.readLong();
+	    for (int b = 0; word != 0; b++, word >>>= 1) {
+		if ((word & 1) != 0)
+		    features.set(w * BITS_PER_WORD + b);
+	    }
+	}
+	if (features.length() > mFeatures.size())
+	    throw new IOException("Unknown feature in capabilities database");
+	return new Entry(identities, features);
+    }
+
+    /**
+     * The information stored for a ver attribute.
+     */
+    private static class Entry {
+	private final String[] mIdentities;
+	private final BitSet mFeatures;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param identities the category, type and name of each identity
+	 * @param features the ids of the features
+	 */
+	public Entry(final String[] identities, final BitSet features) {
+	    mIdentities = identities;
+	    mFeatures = features;
+	}
+
+	/**
+	 * Renumber the features.
+	 *
+	 * @param remap the new id of each old id
+	 * @param size the number of features
+	 * @return a new entry with the renumbered features
+	 */
+	public Entry remap(int[] remap, int size) {
+	    BitSet remapped = new BitSet(size);
+	    for (int i = mFeatures.nextSetBit(0); i >= 0; i = mFeatures.nextSetBit(i + 1))
+		remapped.set(remap[i]);
+	    return new Entry(mIdentities, remapped);
+	}
+    }
+
+    /**
+     * The information stored for a jid.
+     */
+    private static class JidEntry {
+	private final String mVer;
+	private final long mExpiration;
+	private final Entry mEntry;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ver the ver attribute announced by the jid
+	 * @param expiration the expiration date in milliseconds
+	 * @param entry the identities and features
+	 */
+	public JidEntry(final String ver, final long expiration, final Entry entry) {
+	    mVer = ver;
+	    mExpiration = expiration;
+	    mEntry = entry;
+	}
+    }
+}
@@ -44,9 +44,11 @@
 package de.meisterfuu.animexxenger.smack.caps;
 
 import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.PacketCollector;
 import org.jivesoftware.smack.PacketInterceptor;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.Presence;
@@ -56,7 +58,11 @@ import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.filter.PacketExtensionFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Iterator;
 import java.util.Comparator;
@@ -65,23 +71,51 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.security.NoSuchAlgorithmException;
 import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.jivesoftware.smack.util.StringUtils;
 
 /**
  * Capabilities manager to implements XEP-0115.
  * The DiscoverInfo are cached in memory.
+ * The unknown capabilities are resolved outside of the packet listener thread, with a single
+ * query for each node and ver attribute whatever the number of contacts announcing them.
  *
  */
 public class CapsManager {
+    /** The time in milliseconds to wait for the answer of a capabilities query. */
+    private static final long RESOLVE_TIMEOUT = 10000;
+    private static final int RESOLVER_THREADS = 2;
+
     // the verCache should be stored on disk
-    private Map<String, DiscoverInfo> mVerCache = new ReferenceMap<String, DiscoverInfo>();
-    private Map<String, DiscoverInfo> mJidCache = new ReferenceMap<String, DiscoverInfo>();
+    // the caches are filled by the resolver threads
+    private Map<String, DiscoverInfo> mVerCache =
+	Collections.synchronizedMap(new ReferenceMap<String, DiscoverInfo>());
+    // the DiscoverInfo which cannot be verified, used by the default loadJid and storeJid
+    private final Map<String, JidInfo> mJidCache = new LinkedHashMap<String, JidInfo>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, JidInfo> eldest) {
+	    return size() > CapsDatabase.MAX_JID_ENTRIES;
+	}
+    };
 
     private ServiceDiscoveryManager mSdm;
     private Connection mConnection;
     private String mNode;
     private List<String> mSupportedAlgorithm = new ArrayList<String>();
+    private final Map<String, PendingQuery> mPendingQueries = new HashMap<String, PendingQuery>();
+    private final ExecutorService mResolver = Executors.newFixedThreadPool(RESOLVER_THREADS, new ResolverFactory());
+    private PacketListener mCapsListener;
+    private PacketListener mPresenceListener;
+    private PacketInterceptor mCapsInterceptor;
+    private volatile OwnCaps mOwnCaps;
+    // the ver attribute announced by each available resource
+    private final Map<String, String> mJidVers = new ConcurrentHashMap<String, String>();
 
     /**
      * Create a CapsManager.
@@ -117,11 +151,42 @@ public class CapsManager {
 	if (info == null) {
 	    info = load(ver);
 	    if (info == null)
-		info = mJidCache.get(jid);
+		info = loadJid(jid, ver);
 	}
 	return info;
     }
 
+    /**
+     * Check if the current resource of a contact supports a feature.
+     * The capabilities of the contact must already be known, otherwise this returns false.
+     * No DiscoverInfo is walked if the implementation of {@link #hasFeature(String, String)} does not need it.
+     *
+     * @param jid the full jid of the contact
+     * @param feature the feature to check
+     * @return true if the contact is known to support the feature
+     */
+    public boolean supports(String jid, String feature) {
+	String ver = mJidVers.get(jid);
+	if (ver == null)
+	    return false;
+	if (hasFeature(ver, feature))
+	    return true;
+	DiscoverInfo info = loadJid(jid, ver);
+	return info != null && info.containsFeature(feature);
+    }
+
+    /**
+     * Check if the capabilities of the current resource of a contact are known.
+     * If they are not, {@link #supports(String, String)} returns false for all the features.
+     *
+     * @param jid the full jid of the contact
+     * @return true if the capabilities are known
+     */
+    public boolean isKnown(String jid) {
+	String ver = mJidVers.get(jid);
+	return ver != null && (isInCache(ver) || loadJid(jid, ver) != null);
+    }
+
     /**
      * Set the node attribute to send in your capability.
      * This is usually an uri to identify the client.
@@ -130,6 +195,30 @@ public class CapsManager {
      */
     public void setNode(String node) {
 	mNode = node;
+	invalidateOwnCapabilities();
+    }
+
+    /**
+     * Force the computation of your own capability for the next presence.
+     * The capability is already recomputed when the features, the identity or the node change.
+     */
+    public void invalidateOwnCapabilities() {
+	mOwnCaps = null;
+    }
+
+    /**
+     * Stop this CapsManager.
+     * The pending capabilities queries are cancelled and the packet listeners and interceptor are removed
+     * from the connection. A new CapsManager should be created for the next session.
+     */
+    public void shutdown() {
+	mConnection.removePacketListener(mCapsListener);
+	mConnection.removePacketListener(mPresenceListener);
+	mConnection.removePacketInterceptor(mCapsInterceptor);
+	mResolver.shutdownNow();
+	synchronized (mPendingQueries) {
+	    mPendingQueries.clear();
+	}
     }
 
     /**
@@ -153,6 +242,57 @@ public class CapsManager {
     protected void store(String ver, DiscoverInfo info) {
     }
 
+    /**
+     * Load the DiscoverInfo of a jid which announced a capability with an unsupported hash algorithm.
+     * This implementation checks a bounded memory cache where the entries expire after
+     * {@link CapsDatabase#JID_ENTRY_LIFETIME}.
+     *
+     * @param jid the jid
+     * @param ver the ver attribute announced by the jid
+     * @return the discover info or null if it is unknown, expired or stored for another ver attribute
+     */
+    protected DiscoverInfo loadJid(String jid, String ver) {
+	synchronized (mJidCache) {
+	    JidInfo e = mJidCache.get(jid);
+	    if (e == null)
+		return null;
+	    if (e.mExpiration < System.currentTimeMillis()) {
+		mJidCache.remove(jid);
+		return null;
+	    }
+	    return ver.equals(e.mVer) ? e.mInfo : null;
+	}
+    }
+
+    /**
+     * Store the DiscoverInfo of a jid which announced a capability with an unsupported hash algorithm.
+     * This implementation keeps it in a bounded memory cache.
+     *
+     * @param jid the jid
+     * @param ver the ver attribute announced by the jid
+     * @param info the DiscoverInfo
+     */
+    protected void storeJid(String jid, String ver, DiscoverInfo info) {
+	synchronized (mJidCache) {
+	    mJidCache.put(jid, new JidInfo(ver, System.currentTimeMillis() + CapsDatabase.JID_ENTRY_LIFETIME, info));
+	}
+    }
+
+    /**
+     * Check if the discover info corresponding to a ver hash includes a feature.
+     * This implementation checks the memory cache and the persistent DiscoverInfo.
+     *
+     * @param ver the ver hash
+     * @param feature the feature to check
+     * @return true if the feature is included, false if it is not or if the discover info is unknown
+     */
+    protected boolean hasFeature(String ver, String feature) {
+	DiscoverInfo info = mVerCache.get(ver);
+	if (info == null)
+	    info = load(ver);
+	return info != null && info.containsFeature(feature);
+    }
+
     /**
      * Check if the discover info correspondig to the ver hash is in cache.
      * This implementation checks the memory cache.
@@ -171,49 +311,75 @@ public class CapsManager {
     private void init() {
 	initSupportedAlgorithm();
 	PacketFilter filter = new PacketExtensionFilter("c", "http://jabber.org/protocol/caps");
-	mConnection.addPacketListener(new PacketListener() {
+	mCapsListener = new PacketListener() {
 	    public void processPacket(Packet packet) {
 		if (packet.getFrom().equals(mConnection.getUser()))
 		    return;
 		PacketExtension p = packet.getExtension("c", "http://jabber.org/protocol/caps");
 		CapsExtension caps = (CapsExtension) p;
-		if (!isInCache(caps.getVer())) {
-		    validate(packet.getFrom(), caps.getNode(), caps.getVer(), caps.getHash());
+		if (packet instanceof Presence && ((Presence) packet).isAvailable())
+		    mJidVers.put(packet.getFrom(), caps.getVer());
+		if (!isInCache(caps.getVer()) && loadJid(packet.getFrom(), caps.getVer()) == null) {
+		    resolve(packet.getFrom(), caps.getNode(), caps.getVer(), caps.getHash());
 		}
 	    }
-	}, filter);
-	mConnection.addPacketInterceptor(new PacketInterceptor() {
+	};
+	mConnection.addPacketListener(mCapsListener, filter);
+	mPresenceListener = new PacketListener() {
+	    public void processPacket(Packet packet) {
+		if (!((Presence) packet).isAvailable())
+		    mJidVers.remove(packet.getFrom());
+	    }
+	};
+	mConnection.addPacketListener(mPresenceListener, new PacketTypeFilter(Presence.class));
+	mCapsInterceptor = new PacketInterceptor() {
 
 	    public void interceptPacket(Packet packet) {
-		DiscoverInfo info = getOwnInformation();
-		if (mSupportedAlgorithm.size() > 0) {
-		    try {
-			String algo = mSupportedAlgorithm.get(0);
-			String ver = calculateVer(info, algo);
-			CapsExtension caps = new CapsExtension(algo, mNode, ver);
-			packet.addExtension(caps);
-		    } catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		    }
-		}
+		CapsExtension caps = getOwnCapsExtension();
+		if (caps != null)
+		    packet.addExtension(caps);
 	    }
-	}, new PacketTypeFilter(Presence.class));
+	};
+	mConnection.addPacketInterceptor(mCapsInterceptor, new PacketTypeFilter(Presence.class));
     }
 
     /**
-     * Validate the ver attribute of a received capability.
+     * Resolve the capabilities announced by a contact.
+     * If a query for the same node and ver attribute is already pending, the contact waits for its result.
      *
      * @param jid the jid of the sender of the capability.
      * @param node the node attribute of the capability.
      * @param ver the ver attribute of the capability.
+     * @param hashMethod the hash algorithm used to calculate ver
+     */
+    private void resolve(String jid, String node, String ver, String hashMethod) {
+	String key = node + "#" + ver;
+	synchronized (mPendingQueries) {
+	    PendingQuery query = mPendingQueries.get(key);
+	    if (query != null) {
+		query.mJids.add(jid);
+		return;
+	    }
+	    query = new PendingQuery(key, ver, hashMethod, jid);
+	    mPendingQueries.put(key, query);
+	    mResolver.execute(query);
+	}
+    }
+
+    /**
+     * Validate the ver attribute of a received capability.
+     *
+     * @param jids the jids of the senders of the capability.
+     * @param ver the ver attribute of the capability.
      * @param hashMethod the hash algorithm to use to calculate ver
+     * @param info the discover info received for the capability
      * @return true if the ver attribute is valid false otherwise.
      */
-    private boolean validate(String jid, String node, String ver, String hashMethod) {
+    private boolean validate(List<String> jids, String ver, String hashMethod, DiscoverInfo info) {
 	try {
-	    DiscoverInfo info = mSdm.discoverInfo(jid, node + "#" + ver);
 	    if (!mSupportedAlgorithm.contains(hashMethod)) {
-		mJidCache.put(jid, info);
+		for (String jid : jids)
+		    storeJid(jid, ver, info);
 		return false;
 	    }
 	    String v = calculateVer(info, hashMethod);
@@ -223,14 +389,47 @@ public class CapsManager {
 		store(ver, info);
 	    }
 	    return res;
-	} catch (XMPPException e) {
-	    e.printStackTrace();
 	} catch (NoSuchAlgorithmException e) {
 	    e.printStackTrace();
 	}
 	return false;
     }
 
+    /**
+     * Query the discover info of a node of an entity.
+     * Unlike {@link ServiceDiscoveryManager#discoverInfo(String, String)} this
+     * waits at most {@link #RESOLVE_TIMEOUT} and does not throw on error.
+     *
+     * @param jid the jid of the entity
+     * @param node the node to query
+     * @return the discover info or null if it cannot be retrieved
+     */
+    private DiscoverInfo queryInfo(String jid, String node) {
+	DiscoverInfo disco = new DiscoverInfo();
+	disco.setType(IQ.Type.GET);
+	disco.setTo(jid);
+	disco.setNode(node);
+	PacketCollector collector = mConnection.createPacketCollector(new PacketIDFilter(disco.getPacketID()));
+	try {
+	    mConnection.sendPacket(disco);
+	    IQ result = (IQ) collector.nextResult(RESOLVE_TIMEOUT);
+	    if (result == null) {
+		System.err.println("Timeout while querying capabilities " + node + " of " + jid);
+		return null;
+	    }
+	    if (result.getType() == IQ.Type.ERROR) {
+		System.err.println("Error while querying capabilities " + node + " of " + jid + " "
+		    + result.getError());
+		return null;
+	    }
+	    if (result instanceof DiscoverInfo)
+		return (DiscoverInfo) result;
+	    return null;
+	} finally {
+	    collector.cancel();
+	}
+    }
+
     /**
      * Calculate the ver attribute.
      *
@@ -323,19 +522,75 @@ public class CapsManager {
 	return result;
     }
 
+    /**
+     * Get the capability to send in your presences.
+     * It is computed again only if the features, the identity or the node have changed.
+     * The features are compared in the order of the ServiceDiscoveryManager, so they are
+     * only sorted when the capability has to be computed again.
+     *
+     * @return the capability or null if no hash algorithm is supported
+     */
+    private CapsExtension getOwnCapsExtension() {
+	if (mSupportedAlgorithm.isEmpty())
+	    return null;
+	String name = ServiceDiscoveryManager.getIdentityName();
+	String type = ServiceDiscoveryManager.getIdentityType();
+	String node = mNode;
+	OwnCaps own = mOwnCaps;
+	if (own != null && own.isComputedFrom(mSdm.getFeatures(), name, type, node))
+	    return own.mExtension;
+	List<String> features = getOwnFeatures();
+	try {
+	    String algo = mSupportedAlgorithm.get(0);
+	    String ver = calculateVer(getOwnInformation(features, name, type), algo);
+	    own = new OwnCaps(features, name, type, node, new CapsExtension(algo, node, ver));
+	    mOwnCaps = own;
+	    return own.mExtension;
+	} catch (NoSuchAlgorithmException e) {
+	    e.printStackTrace();
+	    return null;
+	}
+    }
+
+    /**
+     * Get a copy of your features, in the order of the ServiceDiscoveryManager.
+     *
+     * @return the list of features
+     */
+    private List<String> getOwnFeatures() {
+	List<String> result = new ArrayList<String>();
+	Iterator<String> it = mSdm.getFeatures();
+	while (it.hasNext())
+	    result.add(it.next());
+	return result;
+    }
+
+    /**
+     * Compare two strings which may be null.
+     *
+     * @param a the first string
+     * @param b the second string
+     * @return true if both are null or equal
+     */
+    private static boolean sameString(String a, String b) {
+	return a == null ? b == null : a.equals(b);
+    }
+
     /**
      * Get the Discover Information send by your own connection.
      *
+     * @param features your features
+     * @param name the identity name
+     * @param type the identity type
      * @return your own DiscoverInfo
      */
-    private DiscoverInfo getOwnInformation() {
+    private DiscoverInfo getOwnInformation(List<String> features, String name, String type) {
 	DiscoverInfo result = new DiscoverInfo();
-	DiscoverInfo.Identity id = new DiscoverInfo.Identity("client", ServiceDiscoveryManager.getIdentityName());
-	id.setType(ServiceDiscoveryManager.getIdentityType());
+	DiscoverInfo.Identity id = new DiscoverInfo.Identity("client", name);
+	id.setType(type);
 	result.addIdentity(id);
-	Iterator<String> it = mSdm.getFeatures();
-	while (it.hasNext()) {
-	    result.addFeature(it.next());
+	for (String feature : features) {
+	    result.addFeature(feature);
 	}
 	return result;
     }
@@ -369,4 +624,164 @@ public class CapsManager {
 	}
     }
 
+    /**
+     * A pending query of the discover info of a capability.
+     * The jids of the contacts announcing the capability while the query runs are parked here.
+     * If a contact does not answer, the next one is queried.
+     */
+    private class PendingQuery implements Runnable {
+	private final String mKey;
+	private final String mVer;
+	private final String mHashMethod;
+	private final LinkedList<String> mJids = new LinkedList<String>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key the node and ver attribute of the capability
+	 * @param ver the ver attribute of the capability
+	 * @param hashMethod the hash algorithm used to calculate ver
+	 * @param jid the jid of the first contact announcing the capability
+	 */
+	public PendingQuery(final String key, final String ver, final String hashMethod, final String jid) {
+	    mKey = key;
+	    mVer = ver;
+	    mHashMethod = hashMethod;
+	    mJids.add(jid);
+	}
+
+	@Override
+	public void run() {
+	    try {
+		query();
+	    } finally {
+		// the query may fail, for example with an IllegalStateException once disconnected
+		synchronized (mPendingQueries) {
+		    if (mPendingQueries.get(mKey) == this)
+			mPendingQueries.remove(mKey);
+		}
+	    }
+	}
+
+	/**
+	 * Query the contacts until one answers and validate its answer.
+	 */
+	private void query() {
+	    List<String> queried = new ArrayList<String>();
+	    while (true) {
+		String jid;
+		synchronized (mPendingQueries) {
+		    jid = mJids.poll();
+		    if (jid == null) {
+			mPendingQueries.remove(mKey);
+			return;
+		    }
+		}
+		queried.add(jid);
+		DiscoverInfo info = queryInfo(jid, mKey);
+		if (info == null)
+		    continue;
+		synchronized (mPendingQueries) {
+		    mPendingQueries.remove(mKey);
+		    queried.addAll(mJids);
+		    mJids.clear();
+		}
+		// the persistent storage may be closed once the manager is shutdown
+		if (mResolver.isShutdown())
+		    return;
+		validate(queried, mVer, mHashMethod, info);
+		return;
+	    }
+	}
+    }
+
+    /**
+     * The DiscoverInfo of a jid.
+     */
+    private static class JidInfo {
+	private final String mVer;
+	private final long mExpiration;
+	private final DiscoverInfo mInfo;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ver the ver attribute announced by the jid
+	 * @param expiration the expiration date in milliseconds
+	 * @param info the DiscoverInfo
+	 */
+	public JidInfo(final String ver, final long expiration, final DiscoverInfo info) {
+	    mVer = ver;
+	    mExpiration = expiration;
+	    mInfo = info;
+	}
+    }
+
+    /**
+     * Your own capability and the information used to compute it.
+     */
+    private static class OwnCaps {
+	private final List<String> mFeatures;
+	private final String mName;
+	private final String mType;
+	private final String mNode;
+	private final CapsExtension mExtension;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param features the features in the order of the ServiceDiscoveryManager
+	 * @param name the identity name
+	 * @param type the identity type
+	 * @param node the node attribute
+	 * @param extension the capability
+	 */
+	public OwnCaps(final List<String> features, final String name, final String type, final String node,
+	    final CapsExtension extension) {
+	    mFeatures = features;
+	    mName = name;
+	    mType = type;
+	    mNode = node;
+	    mExtension = extension;
+	}
+
+	/**
+	 * Check if this capability was computed from some information.
+	 *
+	 * @param features the features in the order of the ServiceDiscoveryManager
+	 * @param name the identity name
+	 * @param type the identity type
+	 * @param node the node attribute
+	 * @return true if the capability is still valid for this information
+	 */
+	public boolean isComputedFrom(Iterator<String> features, String name, String type, String node) {
+	    if (!sameString(mName, name) || !sameString(mType, type) || !sameString(mNode, node))
+		return false;
+	    for (String feature : mFeatures) {
+		if (!features.hasNext() || !feature.equals(features.next()))
+		    return false;
+	    }
+	    return !features.hasNext();
+	}
+    }
+
+    /**
+     * Create the daemon threads resolving the capabilities.
+     */
+    private static class ResolverFactory implements ThreadFactory {
+	private int mCount;
+
+	/**
+	 * Constructor.
+	 */
+	public ResolverFactory() {
+	}
+
+	@Override
+	public synchronized Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "caps-resolver-" + mCount++);
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
 }
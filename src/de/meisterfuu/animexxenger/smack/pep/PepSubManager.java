@@ -43,8 +43,17 @@
 */
 package de.meisterfuu.animexxenger.smack.pep;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.filter.PacketExtensionFilter;
@@ -60,11 +69,28 @@ import org.jivesoftware.smackx.pubsub.LeafNode;
 
 /**
  * Little extension of {@link PubSubManager} which allows to add {@link PEPListener}.
+ * The listeners can be registered for a single node. They are called outside of the packet
+ * reader thread, the events of a same publisher being dispatched one after the other in
+ * the order they were received.
+ * <p>
+ * The last event of each publisher and node is kept. An event with the same item ids is suppressed,
+ * as the servers send again the last items after each reconnection, and an event waiting to be
+ * dispatched is replaced by a newer one of the same node. The manager should be kept across
+ * reconnections, the new listeners getting the last known events with {@link #replayLastEvents}.
  *
  */
 public class PepSubManager extends PubSubManager {
-    private List<PEPListener> mPepListeners = new ArrayList<PEPListener>();
+    private static final int DISPATCH_THREADS = 2;
+
+    private List<PEPListener> mPepListeners = new CopyOnWriteArrayList<PEPListener>();
+    private final Map<String, List<PEPListener>> mNodeListeners = new ConcurrentHashMap<String, List<PEPListener>>();
+    private final Map<String, PublisherQueue> mQueues = new HashMap<String, PublisherQueue>();
+    private final ExecutorService mDispatcher = Executors.newFixedThreadPool(DISPATCH_THREADS, new DispatcherFactory());
     private PacketFilter mPacketFilter = new PacketExtensionFilter("event", "http://jabber.org/protocol/pubsub#event");
+    private PacketListener mPacketListener;
+    private final Map<String, Event> mLastEvents = new HashMap<String, Event>();
+    private long mSuppressed;
+    private long mCoalesced;
 
     /**
      * Create a PepSubManager.
@@ -89,7 +115,7 @@ public class PepSubManager extends PubSubManager {
     }
 
     /**
-     * Add a listener to PEP event.
+     * Add a listener to PEP event of all the nodes.
      *
      * @param listener the listener
      */
@@ -98,6 +124,39 @@ public class PepSubManager extends PubSubManager {
 	    mPepListeners.add(listener);
     }
 
+    /**
+     * Add a listener to PEP event of a node.
+     *
+     * @param node the node
+     * @param listener the listener
+     */
+    public synchronized void addPEPListener(String node, PEPListener listener) {
+	List<PEPListener> listeners = mNodeListeners.get(node);
+	if (listeners == null) {
+	    listeners = new CopyOnWriteArrayList<PEPListener>();
+	    mNodeListeners.put(node, listeners);
+	}
+	if (!listeners.contains(listener))
+	    listeners.add(listener);
+    }
+
+    /**
+     * Dispatch again to a listener the last events received for a node.
+     * This allows a listener registered after a reconnection to receive the events which are
+     * suppressed because the server sent them again.
+     *
+     * @param node the node
+     * @param listener the listener
+     */
+    public void replayLastEvents(String node, PEPListener listener) {
+	synchronized (mQueues) {
+	    for (Event last : mLastEvents.values()) {
+		if (node.equals(last.mNode))
+		    enqueue(new Event(last.mFrom, last.mNode, last.mItems, listener));
+	    }
+	}
+    }
+
     /**
      * Remove a listener to PEP event.
      *
@@ -107,6 +166,21 @@ public class PepSubManager extends PubSubManager {
 	mPepListeners.remove(listener);
     }
 
+    /**
+     * Remove a listener to PEP event of a node.
+     *
+     * @param node the node
+     * @param listener the listener
+     */
+    public synchronized void removePEPListener(String node, PEPListener listener) {
+	List<PEPListener> listeners = mNodeListeners.get(node);
+	if (listeners != null) {
+	    listeners.remove(listener);
+	    if (listeners.isEmpty())
+		mNodeListeners.remove(node);
+	}
+    }
+
     /**
      * Get a PepNode.
      * This node is obtain without checking its existence as PEP should auto create it.
@@ -120,13 +194,47 @@ public class PepSubManager extends PubSubManager {
 	return node;
     }
 
+    /**
+     * Get the number of events suppressed because their items were already received.
+     *
+     * @return the number of suppressed events
+     */
+    public long getSuppressedCount() {
+	synchronized (mQueues) {
+	    return mSuppressed;
+	}
+    }
+
+    /**
+     * Get the number of events replaced by a newer event before being dispatched.
+     *
+     * @return the number of coalesced events
+     */
+    public long getCoalescedCount() {
+	synchronized (mQueues) {
+	    return mCoalesced;
+	}
+    }
+
+    /**
+     * Stop dispatching the PEP events.
+     * The events not yet dispatched are dropped.
+     */
+    public void shutdown() {
+	con.removePacketListener(mPacketListener);
+	mDispatcher.shutdownNow();
+	synchronized (mQueues) {
+	    mQueues.clear();
+	}
+    }
+
     /**
      * Initialize the PepSubManager.
      *
      * @param con the connection
      */
     private void init(Connection con) {
-	PacketListener packetListener = new PacketListener() {
+	mPacketListener = new PacketListener() {
 
 	    @Override
 	    public void processPacket(Packet packet) {
@@ -137,10 +245,65 @@ public class PepSubManager extends PubSubManager {
 		if (it.getItemsElementType() != ItemsExtension.ItemsElementType.items)
 		    return;
 		List<Item> items = (List<Item>) it.getItems();
-		firePEPListeners(packet.getFrom(), it.getNode(), items);
+		dispatch(packet.getFrom(), it.getNode(), items);
 	    }
 	};
-	con.addPacketListener(packetListener, mPacketFilter);
+	con.addPacketListener(mPacketListener, mPacketFilter);
+    }
+
+    /**
+     * Queue an event to be dispatched after the previous events of the same publisher.
+     *
+     * @param from the JID of the user who send the event
+     * @param node the node of the items in the event
+     * @param items the different items of the event
+     */
+    private void dispatch(String from, String node, List<Item> items) {
+	Event event = new Event(from, node, items, null);
+	synchronized (mQueues) {
+	    String key = from + '\n' + node;
+	    Event last = mLastEvents.get(key);
+	    if (last != null && event.mItemIds != null && event.mItemIds.equals(last.mItemIds)) {
+		mSuppressed++;
+		return;
+	    }
+	    mLastEvents.put(key, event);
+	    if (mPepListeners.isEmpty() && !mNodeListeners.containsKey(node))
+		return;
+	    enqueue(event);
+	}
+    }
+
+    /**
+     * Add an event in the queue of its publisher.
+     * If an event of the same node for the same listeners is waiting, it is replaced.
+     * This must be called with the lock on the queues.
+     *
+     * @param event the event
+     */
+    private void enqueue(Event event) {
+	PublisherQueue queue = mQueues.get(event.mFrom);
+	if (queue != null) {
+	    for (ListIterator<Event> it = queue.mEvents.listIterator(); it.hasNext();) {
+		Event waiting = it.next();
+		if (waiting.mNode.equals(event.mNode) && waiting.mTarget == event.mTarget) {
+		    it.set(event);
+		    mCoalesced++;
+		    return;
+		}
+	    }
+	    queue.mEvents.add(event);
+	    return;
+	}
+	queue = new PublisherQueue(event.mFrom);
+	queue.mEvents.add(event);
+	try {
+	    mDispatcher.execute(queue);
+	    mQueues.put(event.mFrom, queue);
+	} catch (RejectedExecutionException e) {
+	    // the manager is shutdown
+	    return;
+	}
     }
 
     /**
@@ -151,8 +314,118 @@ public class PepSubManager extends PubSubManager {
      * @param items the different items of the event
      */
     private void firePEPListeners(String from, String node, List<Item> items) {
+	List<PEPListener> listeners = mNodeListeners.get(node);
+	if (listeners != null) {
+	    for (PEPListener listener : listeners)
+		listener.eventReceived(from, node, items);
+	}
 	for (PEPListener listener : mPepListeners) {
 	    listener.eventReceived(from, node, items);
 	}
     }
+
+    /**
+     * A PEP event waiting to be dispatched.
+     */
+    private static class Event {
+	private final String mFrom;
+	private final String mNode;
+	private final List<Item> mItems;
+	private final String mItemIds;
+	private final PEPListener mTarget;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param from the JID of the user who send the event
+	 * @param node the node of the items in the event
+	 * @param items the different items of the event
+	 * @param target the only listener to notify or null to notify all the listeners
+	 */
+	public Event(final String from, final String node, final List<Item> items, final PEPListener target) {
+	    mFrom = from;
+	    mNode = node;
+	    mItems = items;
+	    mTarget = target;
+	    mItemIds = getItemIds(items);
+	}
+
+	/**
+	 * Get the ids of the items of an event.
+	 *
+	 * @param items the items
+	 * @return the ids separated by spaces or null if an item has no id
+	 */
+	private static String getItemIds(List<Item> items) {
+	    StringBuilder ids = new StringBuilder();
+	    for (Item item : items) {
+		String id = item.getId();
+		if (id == null)
+		    return null;
+		ids.append(id).append(' ');
+	    }
+	    return ids.toString();
+	}
+    }
+
+    /**
+     * The events of a publisher waiting to be dispatched.
+     * The queue is run by a single dispatcher thread until it is empty.
+     */
+    private class PublisherQueue implements Runnable {
+	private final String mPublisher;
+	private final LinkedList<Event> mEvents = new LinkedList<Event>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param publisher the JID of the publisher
+	 */
+	public PublisherQueue(final String publisher) {
+	    mPublisher = publisher;
+	}
+
+	@Override
+	public void run() {
+	    while (true) {
+		Event event;
+		synchronized (mQueues) {
+		    event = mEvents.poll();
+		    if (event == null) {
+			mQueues.remove(mPublisher);
+			return;
+		    }
+		}
+		try {
+		    if (event.mTarget != null)
+			event.mTarget.eventReceived(event.mFrom, event.mNode, event.mItems);
+		    else
+			firePEPListeners(event.mFrom, event.mNode, event.mItems);
+		} catch (RuntimeException e) {
+		    System.err.println("Error in a PEP listener for " + event.mNode + " " + e.getMessage());
+		    e.printStackTrace();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Create the daemon threads dispatching the PEP events.
+     */
+    private static class DispatcherFactory implements ThreadFactory {
+	private int mCount;
+
+	/**
+	 * Constructor.
+	 */
+	public DispatcherFactory() {
+	}
+
+	@Override
+	public synchronized Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "pep-dispatcher-" + mCount++);
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
 }
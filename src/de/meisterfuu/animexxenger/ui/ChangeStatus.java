@@ -344,7 +344,7 @@ public class ChangeStatus extends Activity {
 	    if (mDisableAvatar)
 		mXmppFacade.disableAvatarPublishing();
 	    else if (mAvatarUri != null)
-		mXmppFacade.publishAvatar(mAvatarUri);
+		mXmppFacade.publishAvatar(mAvatarUri, null);
 	} catch (RemoteException e) {
 	    Log.e(TAG, "Error while publishing avatar", e);
 	}
@@ -43,8 +43,6 @@
 */
 package de.meisterfuu.animexxenger.ui;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -63,9 +61,6 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.graphics.drawable.Drawable;
-import android.graphics.drawable.LayerDrawable;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -92,7 +87,6 @@ import android.widget.TextView;
 
 import de.meisterfuu.animexxenger.BeemApplication;
 import de.meisterfuu.animexxenger.R;
-import de.meisterfuu.animexxenger.providers.AvatarProvider;
 import de.meisterfuu.animexxenger.service.Contact;
 import de.meisterfuu.animexxenger.service.Message;
 import de.meisterfuu.animexxenger.service.PresenceAdapter;
@@ -103,6 +97,7 @@ import de.meisterfuu.animexxenger.service.aidl.IChatManagerListener;
 import de.meisterfuu.animexxenger.service.aidl.IMessageListener;
 import de.meisterfuu.animexxenger.service.aidl.IRoster;
 import de.meisterfuu.animexxenger.service.aidl.IXmppFacade;
+import de.meisterfuu.animexxenger.ui.avatar.AvatarLoader;
 import de.meisterfuu.animexxenger.ui.dialogs.builders.ChatList;
 import de.meisterfuu.animexxenger.ui.dialogs.builders.DisplayOtrFingerprint;
 import de.meisterfuu.animexxenger.utils.BeemBroadcastReceiver;
@@ -119,6 +114,7 @@ import org.jivesoftware.smack.util.StringUtils;
 public class Chat extends Activity implements TextView.OnEditorActionListener {
 
     private static final String TAG = "Chat";
+    private static final int AVATAR_SIZE_DIP = 48;
     private static final Intent SERVICE_INTENT = new Intent();
     static {
 	SERVICE_INTENT.setComponent(new ComponentName("de.meisterfuu.animexxenger", "de.meisterfuu.animexxenger.BeemService"));
@@ -132,7 +128,7 @@ public class Chat extends Activity implements TextView.OnEditorActionListener {
     private TextView mContactStatusMsgTextView;
     private TextView mContactChatState;
     private ImageView mContactStatusIcon;
-    private LayerDrawable mAvatarStatusDrawable;
+    private int mAvatarSize;
     private ListView mMessagesListView;
     private EditText mInputField;
     private Button mSendButton;
@@ -150,7 +146,6 @@ public class Chat extends Activity implements TextView.OnEditorActionListener {
     private final BeemBroadcastReceiver mBroadcastReceiver = new BeemBroadcastReceiver();
     private final BeemRosterListener mBeemRosterListener = new BeemRosterListener();
     private IXmppFacade mXmppFacade;
-    private String mCurrentAvatarId;
     private boolean mBinded;
     private boolean mCompact;
 
@@ -182,8 +177,7 @@ public class Chat extends Activity implements TextView.OnEditorActionListener {
 	    mContactStatusMsgTextView = (TextView) findViewById(R.id.chat_contact_status_msg);
 	    mContactChatState = (TextView) findViewById(R.id.chat_contact_chat_state);
 	    mContactStatusIcon = (ImageView) findViewById(R.id.chat_contact_status_icon);
-	    mAvatarStatusDrawable = (LayerDrawable) mContactStatusIcon.getDrawable();
-	    mAvatarStatusDrawable.setLayerInset(1, 36, 36, 0, 0);
+	    mAvatarSize = (int) (AVATAR_SIZE_DIP * getResources().getDisplayMetrics().density + 0.5f);
 	} else {
 	    setContentView(R.layout.chat_compact);
 	}
@@ -493,43 +487,8 @@ public class Chat extends Activity implements TextView.OnEditorActionListener {
     private void updateContactStatusIcon() {
 	if (mCompact)
 	    return;
-	String id = mContact.getAvatarId();
-	if (id == null)
-	    id = "";
-	Log.d(TAG, "update contact icon  : " + id);
-	if (!id.equals(mCurrentAvatarId)) {
-	    Drawable avatar = getAvatarDrawable(mContact.getAvatarId());
-	    mAvatarStatusDrawable.setDrawableByLayerId(R.id.avatar, avatar);
-	    mCurrentAvatarId = id;
-	}
-	mContactStatusIcon.setImageLevel(mContact.getStatus());
-    }
-
-    /**
-     * Get a Drawable containing the avatar icon.
-     * @param avatarId the avatar id to retrieve or null to get default
-     * @return a Drawable
-     */
-    private Drawable getAvatarDrawable(String avatarId) {
-	Drawable avatarDrawable = null;
-	if (avatarId != null) {
-	    Uri uri = AvatarProvider.CONTENT_URI.buildUpon().appendPath(avatarId).build();
-	    InputStream in = null;
-	    try {
-		try {
-		    in = getContentResolver().openInputStream(uri);
-		    avatarDrawable = Drawable.createFromStream(in, avatarId);
-		} finally {
-		    if (in != null)
-			in.close();
-		}
-	    } catch (IOException e) {
-		Log.w(TAG, "Error while setting the avatar", e);
-	    }
-	}
-	if (avatarDrawable == null)
-	    avatarDrawable = getResources().getDrawable(R.drawable.ic_launcher);
-	return avatarDrawable;
+	AvatarLoader.getInstance(this).loadAvatarWithStatus(mContactStatusIcon, mContact.getAvatarId(), mAvatarSize,
+	    mContact.getStatus());
     }
 
     /**
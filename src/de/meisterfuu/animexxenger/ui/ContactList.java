@@ -45,9 +45,11 @@ package de.meisterfuu.animexxenger.ui;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 
 import android.app.Dialog;
 import android.content.ComponentName;
@@ -55,6 +57,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -86,6 +89,7 @@ import de.meisterfuu.animexxenger.service.aidl.IBeemRosterListener;
 import de.meisterfuu.animexxenger.service.aidl.IChatManager;
 import de.meisterfuu.animexxenger.service.aidl.IRoster;
 import de.meisterfuu.animexxenger.service.aidl.IXmppFacade;
+import de.meisterfuu.animexxenger.ui.avatar.AvatarBitmapCache;
 import de.meisterfuu.animexxenger.ui.dialogs.builders.Alias;
 import de.meisterfuu.animexxenger.ui.dialogs.builders.ChatList;
 import de.meisterfuu.animexxenger.ui.dialogs.builders.DeleteContact;
@@ -106,6 +110,7 @@ public class ContactList extends FragmentActivity {
     }
 
     private static final String TAG = "ContactList";
+    private static final int ROSTER_LOAD_BATCH_SIZE = 50;
     private final List<GroupHolder> mListGroup = new ArrayList<GroupHolder>();
 
     /** Map containing a list of the different contacts of a given group.
@@ -127,6 +132,7 @@ public class ContactList extends FragmentActivity {
     private ViewPager viewPager;
     private ListPagerAdapter groupsPagesAdapter;
     private Gallery groupGallery;
+    private RosterLoader mRosterLoader;
 
     /**
      * Constructor.
@@ -217,6 +223,8 @@ public class ContactList extends FragmentActivity {
     @Override
     protected void onPause() {
 	super.onPause();
+	cancelRosterLoading();
+	Log.d(TAG, "Avatar cache hit rate " + AvatarBitmapCache.getInstance(this).getHitRate());
 	try {
 	    if (mRoster != null) {
 		mRoster.removeRosterListener(mBeemRosterListener);
@@ -351,6 +359,31 @@ public class ContactList extends FragmentActivity {
 	groupsPagesAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * Start loading the roster in the different groups.
+     * The contacts of the visible group are loaded first, the other groups are
+     * filled afterwards by batches.
+     */
+    private void loadRoster() {
+	cancelRosterLoading();
+	String visibleGroup = getString(R.string.contact_list_all_contact);
+	int current = viewPager.getCurrentItem();
+	if (current < mListGroup.size())
+	    visibleGroup = mListGroup.get(current).group;
+	mRosterLoader = new RosterLoader(mRoster, visibleGroup);
+	mRosterLoader.execute();
+    }
+
+    /**
+     * Cancel the roster loading if it is running.
+     */
+    private void cancelRosterLoading() {
+	if (mRosterLoader != null) {
+	    mRosterLoader.cancel(false);
+	    mRosterLoader = null;
+	}
+    }
+
     /**
      * Add a contact to the special list No Group and All contacts.
      * The contact will be added if the list is not the current list otherwise
@@ -408,15 +441,17 @@ public class ContactList extends FragmentActivity {
 	    Log.d(TAG, "onEntries deleted " + addresses);
 	    for (String cToDelete : addresses) {
 		final Contact contact = new Contact(cToDelete);
-		for (final ContactListAdapter adapter : contactListAdapters.values()) {
-		    runOnUiThread(new Runnable() {
+		runOnUiThread(new Runnable() {
 
-			@Override
-			public void run() {
+		    @Override
+		    public void run() {
+			if (mRosterLoader != null)
+			    mRosterLoader.contactRemoved(contact.getJID());
+			for (ContactListAdapter adapter : contactListAdapters.values()) {
 			    adapter.remove(contact);
 			}
-		    });
-		}
+		    }
+		});
 	    }
 	    cleanBannerGroup();
 
@@ -546,14 +581,13 @@ public class ContactList extends FragmentActivity {
 	    try {
 		mRoster = mXmppFacade.getRoster();
 		if (mRoster != null) {
-		    List<String> tmpGroupList = mRoster.getGroupsNames();
 		    cleanBannerGroup();
 		    synchronized (contactListAdapters) {
 			for (ContactListAdapter ca : contactListAdapters.values()) {
 			    ca.clear();
 			}
 		    }
-		    assignContactToGroups(mRoster.getContactList(), tmpGroupList);
+		    loadRoster();
 
 		    mRoster.addRosterListener(mBeemRosterListener);
 		    Log.d(TAG, "add roster listener");
@@ -566,6 +600,7 @@ public class ContactList extends FragmentActivity {
 
 	@Override
 	public void onServiceDisconnected(ComponentName name) {
+	    cancelRosterLoading();
 	    try {
 		mRoster.removeRosterListener(mBeemRosterListener);
 	    } catch (RemoteException e) {
@@ -580,28 +615,177 @@ public class ContactList extends FragmentActivity {
 
 	}
 
+    }
+
+
+    /**
+     * Load the roster contacts in the group adapters.
+     * The visible group is filled first, then the contacts of the other groups
+     * are published. Every batch holds at most {@link #ROSTER_LOAD_BATCH_SIZE} contacts
+     * and is sorted in background so the UI thread only has to merge it.
+     */
+    private class RosterLoader extends AsyncTask<Void, RosterBatch, Void> {
+
+	private final IRoster mLoadedRoster;
+	private final String mVisibleGroup;
+	private final String mAllContactsGroup;
+	private final String mNoGroup;
+	// jids removed from the roster while loading, only used on the UI thread
+	private final Set<String> mRemoved = new HashSet<String>();
+
 	/**
-	 * Assign the differents contact to their groups.
-	 * This methods will fill the mContactOnGroup map.
-	 *
-	 * @param contacts list of contacts
-	 * @param groupNames list of existing groups
+	 * Create a {@link RosterLoader}.
+	 * @param roster the roster to load
+	 * @param visibleGroup the group currently displayed
 	 */
-	private void assignContactToGroups(List<Contact> contacts, List<String> groupNames) {
+	public RosterLoader(final IRoster roster, final String visibleGroup) {
+	    mLoadedRoster = roster;
+	    mVisibleGroup = visibleGroup;
+	    mAllContactsGroup = getString(R.string.contact_list_all_contact);
+	    mNoGroup = getString(R.string.contact_list_no_group);
+	}
+
+	@Override
+	protected Void doInBackground(Void... params) {
+	    List<Contact> contacts;
+	    try {
+		contacts = mLoadedRoster.getContactList();
+	    } catch (RemoteException e) {
+		Log.w(TAG, "Unable to load the roster", e);
+		return null;
+	    }
+	    RosterBatch batch = new RosterBatch();
 	    for (Contact c : contacts) {
-		addToSpecialList(c);
+		if (isCancelled())
+		    return null;
+		if (!getDisplayGroups(c).contains(mVisibleGroup))
+		    continue;
+		batch.add(mVisibleGroup, c);
+		if (batch.size() >= ROSTER_LOAD_BATCH_SIZE) {
+		    publish(batch);
+		    batch = new RosterBatch();
+		}
+	    }
+	    if (batch.size() > 0)
+		publish(batch);
 
-		List<String> groups = c.getGroups();
+	    batch = new RosterBatch();
+	    int count = 0;
+	    for (Contact c : contacts) {
+		if (isCancelled())
+		    return null;
+		for (String group : getDisplayGroups(c)) {
+		    if (!group.equals(mVisibleGroup))
+			batch.add(group, c);
+		}
+		if (++count % ROSTER_LOAD_BATCH_SIZE == 0 && batch.size() > 0) {
+		    publish(batch);
+		    batch = new RosterBatch();
+		}
+	    }
+	    if (batch.size() > 0)
+		publish(batch);
+	    return null;
+	}
 
-		for (String currentGroup : groups) {
-		    ContactListAdapter cl = getContactListAdapter(currentGroup);
-		    cl.put(c);
+	/**
+	 * Sort a batch and publish it to the UI thread.
+	 * @param batch the batch
+	 */
+	private void publish(RosterBatch batch) {
+	    for (List<Contact> l : batch.getContacts().values()) {
+		ContactListAdapter.sortContacts(l);
+	    }
+	    publishProgress(batch);
+	}
+
+	/**
+	 * Notify that a contact was removed from the roster.
+	 * The contact will not be added back by the batches loaded before its removal.
+	 * Must be called on the UI thread.
+	 * @param jid the jid of the contact
+	 */
+	public void contactRemoved(String jid) {
+	    mRemoved.add(jid);
+	}
+
+	@Override
+	protected void onProgressUpdate(RosterBatch... batches) {
+	    if (isCancelled())
+		return;
+	    for (RosterBatch batch : batches) {
+		for (Map.Entry<String, List<Contact>> entry : batch.getContacts().entrySet()) {
+		    List<Contact> contacts = entry.getValue();
+		    if (!mRemoved.isEmpty()) {
+			for (ListIterator<Contact> it = contacts.listIterator(); it.hasNext();) {
+			    if (mRemoved.contains(it.next().getJID()))
+				it.remove();
+			}
+		    }
+		    getContactListAdapter(entry.getKey()).putAllIfAbsent(contacts);
 		}
 	    }
 	}
 
+	/**
+	 * Get the names of all the lists in which a contact is displayed.
+	 * @param contact the contact
+	 * @return the groups of the contact and the special groups
+	 */
+	private List<String> getDisplayGroups(Contact contact) {
+	    List<String> groups = new ArrayList<String>(contact.getGroups());
+	    groups.add(mAllContactsGroup);
+	    if (contact.getGroups().isEmpty())
+		groups.add(mNoGroup);
+	    return groups;
+	}
     }
 
+    /**
+     * Contacts published by the {@link RosterLoader}, sorted by group.
+     */
+    private static class RosterBatch {
+
+	private final Map<String, List<Contact>> mContacts = new HashMap<String, List<Contact>>();
+	private int mSize;
+
+	/**
+	 * Constructor.
+	 */
+	public RosterBatch() {
+	}
+
+	/**
+	 * Add a contact to a group of the batch.
+	 * @param group the group
+	 * @param contact the contact
+	 */
+	public void add(String group, Contact contact) {
+	    List<Contact> l = mContacts.get(group);
+	    if (l == null) {
+		l = new ArrayList<Contact>();
+		mContacts.put(group, l);
+	    }
+	    l.add(contact);
+	    mSize++;
+	}
+
+	/**
+	 * Get the number of contacts added to the batch.
+	 * @return the number of contacts
+	 */
+	public int size() {
+	    return mSize;
+	}
+
+	/**
+	 * Get the contacts of the batch.
+	 * @return the contacts by group
+	 */
+	public Map<String, List<Contact>> getContacts() {
+	    return mContacts;
+	}
+    }
 
     /**
      * Listener on page change event.
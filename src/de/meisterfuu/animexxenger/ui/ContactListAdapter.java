@@ -26,17 +26,16 @@
 */
 package de.meisterfuu.animexxenger.ui;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.drawable.Drawable;
-import android.graphics.drawable.LayerDrawable;
-import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -50,8 +49,8 @@ import android.widget.TextView;
 
 import de.meisterfuu.animexxenger.BeemApplication;
 import de.meisterfuu.animexxenger.R;
-import de.meisterfuu.animexxenger.providers.AvatarProvider;
 import de.meisterfuu.animexxenger.service.Contact;
+import de.meisterfuu.animexxenger.ui.avatar.AvatarLoader;
 import de.meisterfuu.animexxenger.utils.SortedList;
 import de.meisterfuu.animexxenger.utils.Status;
 
@@ -62,14 +61,19 @@ import de.meisterfuu.animexxenger.utils.Status;
  */
 public class ContactListAdapter extends BaseAdapter implements Filterable {
     private static final String TAG = ContactListAdapter.class.getSimpleName();
-    private final ComparatorContactListByStatusAndName<Contact> mComparator =
-	new ComparatorContactListByStatusAndName<Contact>();
+    private static final int AVATAR_SIZE_DIP = 48;
+    private static final Comparator<Contact> COMPARATOR = new ComparatorContactListByStatusAndName<Contact>();
     private List<Contact> mCurrentList;
-    private final List<Contact> allContacts = new SortedList<Contact>(new LinkedList<Contact>(), mComparator);
-    private final List<Contact> onlineContacts = new SortedList<Contact>(new LinkedList<Contact>(), mComparator);
+    private final SortedList<Contact> allContacts = new SortedList<Contact>(new LinkedList<Contact>(), COMPARATOR);
+    private final SortedList<Contact> onlineContacts =
+	new SortedList<Contact>(new LinkedList<Contact>(), COMPARATOR);
+    // the jids of allContacts, for constant time membership checks
+    private final Set<String> mJids = new HashSet<String>();
     private final Filter mFilter = new ContactFilter();
     private final Context context;
     private LayoutInflater mInflater;
+    private final AvatarLoader mAvatarLoader;
+    private final int mAvatarSize;
 
     private boolean showOnlineOnly;
 
@@ -81,6 +85,8 @@ public class ContactListAdapter extends BaseAdapter implements Filterable {
     	mCurrentList = allContacts;
     	context = c;
     	mInflater = (LayoutInflater) c.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+	mAvatarLoader = AvatarLoader.getInstance(c);
+	mAvatarSize = (int) (AVATAR_SIZE_DIP * c.getResources().getDisplayMetrics().density + 0.5f);
     }
 
     @Override
@@ -114,18 +120,50 @@ public class ContactListAdapter extends BaseAdapter implements Filterable {
      * @param c the contact
      */
     public void put(Contact c) {
+	mJids.add(c.getJID());
 	put(c, allContacts);
 	if (Status.statusOnline(c.getStatus()))
 	    put(c, onlineContacts);
 	notifyDataSetChanged();
     }
 
+    /**
+     * Put several contacts in the list.
+     * The contacts already in the list are kept as they are more recent,
+     * the others are merged in a single pass and the list is notified only once.
+     * @param contacts the contacts, sorted by {@link #sortContacts(List)}
+     */
+    public void putAllIfAbsent(List<Contact> contacts) {
+	List<Contact> absent = new ArrayList<Contact>(contacts.size());
+	List<Contact> online = new ArrayList<Contact>();
+	for (Contact c : contacts) {
+	    if (!mJids.add(c.getJID()))
+		continue;
+	    absent.add(c);
+	    if (Status.statusOnline(c.getStatus()))
+		online.add(c);
+	}
+	allContacts.mergeSorted(absent);
+	onlineContacts.mergeSorted(online);
+	notifyDataSetChanged();
+    }
+
+    /**
+     * Sort some contacts in the order of the lists.
+     * This can be called outside of the UI thread.
+     * @param contacts the contacts to sort
+     */
+    public static void sortContacts(List<Contact> contacts) {
+	Collections.sort(contacts, COMPARATOR);
+    }
+
     /**
      * Remove a contact from the list.
      *
      * @param c the contact
      */
     public void remove(Contact c) {
+	mJids.remove(c.getJID());
 	allContacts.remove(c);
 	onlineContacts.remove(c);
 	notifyDataSetChanged();
@@ -135,6 +173,7 @@ public class ContactListAdapter extends BaseAdapter implements Filterable {
      * Clear the contact list.
      */
     public void clear() {
+	mJids.clear();
 	allContacts.clear();
 	onlineContacts.clear();
 	notifyDataSetChanged();
@@ -163,41 +202,8 @@ public class ContactListAdapter extends BaseAdapter implements Filterable {
 	    ImageView img = (ImageView) view.findViewById(R.id.avatar);
 	    String avatarId = curContact.getAvatarId();
 	    int contactStatus = curContact.getStatus();
-	    Drawable avatar = getAvatarStatusDrawable(avatarId);
-	    img.setImageDrawable(avatar);
-	    img.setImageLevel(contactStatus);
-	}
-    }
-
-    /**
-     * Get a LayerDrawable containing the avatar and the status icon.
-     * The status icon will change with the level of the drawable.
-     * @param avatarId the avatar id to retrieve or null to get default
-     * @return a LayerDrawable
-     */
-    private Drawable getAvatarStatusDrawable(String avatarId) {
-	Drawable avatarDrawable = null;
-	if (avatarId != null) {
-	    Uri uri = AvatarProvider.CONTENT_URI.buildUpon().appendPath(avatarId).build();
-	    InputStream in = null;
-	    try {
-		try {
-		    in = context.getContentResolver().openInputStream(uri);
-		    avatarDrawable = Drawable.createFromStream(in, avatarId);
-		} finally {
-		    if (in != null)
-			in.close();
-		}
-	    } catch (IOException e) {
-		Log.w(TAG, "Error while setting the avatar " + avatarId, e);
-	    }
+	    mAvatarLoader.loadAvatarWithStatus(img, avatarId, mAvatarSize, contactStatus);
 	}
-	if (avatarDrawable == null)
-	    avatarDrawable = context.getResources().getDrawable(R.drawable.ic_launcher);
-	LayerDrawable ld = (LayerDrawable) context.getResources().getDrawable(R.drawable.avatar_status);
-	ld.setLayerInset(1, 36, 36, 0, 0);
-	ld.setDrawableByLayerId(R.id.avatar, avatarDrawable);
-	return ld;
     }
 
     /**
@@ -0,0 +1,309 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009-2011 by Frederic-Charles Barthelery,
+                               Nikita Kozlov,
+                               Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://www.beem-project.com/
+
+*/
+package de.meisterfuu.animexxenger.ui.avatar;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import de.meisterfuu.animexxenger.R;
+import de.meisterfuu.animexxenger.providers.AvatarProvider;
+
+/**
+ * A memory cache of the decoded avatars.
+ * The avatars are decoded from the thumbnails of the {@link AvatarProvider} and downsampled to the size
+ * they are displayed at. The cache also keeps the avatars composed with a status icon,
+ * so a list does not have to decode and compose the same avatar for each row.
+ * The cache is bounded by the number of bytes used by the bitmaps.
+ */
+public final class AvatarBitmapCache {
+
+    private static final String TAG = AvatarBitmapCache.class.getSimpleName();
+    private static final String DEFAULT_AVATAR_ID = "default";
+    private static final int MEMORY_FRACTION = 8;
+
+    private static AvatarBitmapCache sInstance;
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final LruCache<String, Bitmap> mCache;
+
+    /**
+     * Create an AvatarBitmapCache.
+     *
+     * @param ctx the android context
+     * @param maxBytes the maximum number of bytes used by the cached bitmaps
+     */
+    private AvatarBitmapCache(final Context ctx, final int maxBytes) {
+	mContext = ctx;
+	mContentResolver = ctx.getContentResolver();
+	mCache = new LruCache<String, Bitmap>(maxBytes) {
+	    @Override
+	    protected int sizeOf(String key, Bitmap value) {
+		return value.getRowBytes() * value.getHeight();
+	    }
+	};
+    }
+
+    /**
+     * Get the AvatarBitmapCache of the application.
+     * Its budget is a fraction of the memory available to the application.
+     *
+     * @param ctx an android context
+     * @return the AvatarBitmapCache
+     */
+    public static synchronized AvatarBitmapCache getInstance(Context ctx) {
+	if (sInstance == null) {
+	    int maxBytes = (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+	    sInstance = new AvatarBitmapCache(ctx.getApplicationContext(), maxBytes);
+	}
+	return sInstance;
+    }
+
+    /**
+     * Get an avatar decoded at a specific size.
+     * The avatar is decoded if it is not in the cache. The default avatar is returned
+     * if the avatar cannot be decoded yet.
+     *
+     * @param avatarId the avatar id or null to get the default avatar
+     * @param size the size in pixels of the avatar
+     * @return the avatar bitmap
+     */
+    public Bitmap getAvatar(String avatarId, int size) {
+	Bitmap result = getDecodedAvatar(avatarId, size);
+	if (result == null)
+	    result = getDecodedAvatar(null, size);
+	return result;
+    }
+
+    /**
+     * Get an avatar decoded at a specific size with the status icon drawn over it.
+     * The avatar is decoded and composed if it is not in the cache.
+     *
+     * @param avatarId the avatar id or null to get the default avatar
+     * @param size the size in pixels of the avatar
+     * @param status the status of the contact (see {@link de.meisterfuu.animexxenger.utils.Status})
+     * @return the avatar bitmap with the status icon
+     */
+    public Bitmap getAvatarWithStatus(String avatarId, int size, int status) {
+	String key = makeStatusKey(avatarId, size, status);
+	Bitmap result = mCache.get(key);
+	if (result == null) {
+	    Bitmap avatar = getDecodedAvatar(avatarId, size);
+	    if (avatar == null)
+		return getAvatarWithStatus(null, size, status);
+	    result = composeStatus(avatar, status);
+	    mCache.put(key, result);
+	}
+	return result;
+    }
+
+    /**
+     * Get an avatar with its status icon only if it is already in the cache.
+     * This method never decodes an avatar so it is safe to call on the UI thread.
+     *
+     * @param avatarId the avatar id or null to get the default avatar
+     * @param size the size in pixels of the avatar
+     * @param status the status of the contact
+     * @return the avatar bitmap with the status icon or null if it is not in the cache
+     */
+    public Bitmap peekAvatarWithStatus(String avatarId, int size, int status) {
+	return mCache.get(makeStatusKey(avatarId, size, status));
+    }
+
+    /**
+     * Get the ratio of the requests served by the cache.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public float getHitRate() {
+	int hits = mCache.hitCount();
+	int total = hits + mCache.missCount();
+	if (total == 0)
+	    return 0;
+	return (float) hits / total;
+    }
+
+    /**
+     * Remove all the avatars from the cache.
+     */
+    public void clear() {
+	mCache.evictAll();
+    }
+
+    @Override
+    public String toString() {
+	return TAG + "[size=" + mCache.size() + ", maxSize=" + mCache.maxSize() + ", hits=" + mCache.hitCount()
+	    + ", misses=" + mCache.missCount() + ", evictions=" + mCache.evictionCount() + "]";
+    }
+
+    /**
+     * Make the key of an avatar in the cache.
+     *
+     * @param avatarId the avatar id
+     * @param size the size of the avatar
+     * @return the key
+     */
+    private static String makeKey(String avatarId, int size) {
+	return avatarId + "/" + size;
+    }
+
+    /**
+     * Make the key of an avatar with a status icon in the cache.
+     *
+     * @param avatarId the avatar id or null for the default avatar
+     * @param size the size of the avatar
+     * @param status the status of the contact
+     * @return the key
+     */
+    static String makeStatusKey(String avatarId, int size, int status) {
+	String id = avatarId == null ? DEFAULT_AVATAR_ID : avatarId;
+	return makeKey(id, size) + "/" + status;
+    }
+
+    /**
+     * Get an avatar from the cache or decode it.
+     * Only the avatars successfully decoded are cached, so an avatar which is not
+     * available yet is decoded again on the next request.
+     *
+     * @param avatarId the avatar id or null to get the default avatar
+     * @param size the size in pixels of the avatar
+     * @return the avatar bitmap or null if the avatar cannot be decoded
+     */
+    private Bitmap getDecodedAvatar(String avatarId, int size) {
+	String id = avatarId == null ? DEFAULT_AVATAR_ID : avatarId;
+	String key = makeKey(id, size);
+	Bitmap result = mCache.get(key);
+	if (result == null) {
+	    result = decodeAvatar(avatarId, size);
+	    if (result != null)
+		mCache.put(key, result);
+	}
+	return result;
+    }
+
+    /**
+     * Decode an avatar to the requested size.
+     *
+     * @param avatarId the avatar id or null to decode the default avatar
+     * @param size the size of the resulting bitmap
+     * @return the decoded avatar or null if the avatar cannot be decoded
+     */
+    private Bitmap decodeAvatar(String avatarId, int size) {
+	Bitmap bmp = null;
+	if (avatarId != null) {
+	    Uri uri = AvatarProvider.getAvatarUri(avatarId, size);
+	    try {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		decodeStream(uri, options);
+		options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, size);
+		options.inJustDecodeBounds = false;
+		bmp = decodeStream(uri, options);
+	    } catch (IOException e) {
+		Log.w(TAG, "Error while decoding the avatar " + avatarId, e);
+	    }
+	    if (bmp == null)
+		return null;
+	} else {
+	    bmp = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.ic_launcher);
+	}
+	if (bmp.getWidth() != size || bmp.getHeight() != size) {
+	    Bitmap scaled = Bitmap.createScaledBitmap(bmp, size, size, true);
+	    if (scaled != bmp)
+		bmp.recycle();
+	    bmp = scaled;
+	}
+	return bmp;
+    }
+
+    /**
+     * Decode a bitmap from the content of an uri.
+     *
+     * @param uri the uri
+     * @param options the decoding options
+     * @return the bitmap or null if it could not be decoded
+     * @throws IOException if an error occurs while reading the uri
+     */
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+	InputStream in = mContentResolver.openInputStream(uri);
+	try {
+	    return BitmapFactory.decodeStream(in, null, options);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Compute the largest power of two sample size which keeps the image bigger than the requested size.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param size the requested size
+     * @return the sample size
+     */
+    private int computeSampleSize(int width, int height, int size) {
+	int sample = 1;
+	int min = Math.min(width, height);
+	while (min / (sample * 2) >= size)
+	    sample *= 2;
+	return sample;
+    }
+
+    /**
+     * Draw the status icon over an avatar.
+     * The status icon takes the bottom right quarter of the avatar.
+     *
+     * @param avatar the avatar
+     * @param status the status of the contact
+     * @return a new bitmap with the avatar and the status icon
+     */
+    private Bitmap composeStatus(Bitmap avatar, int status) {
+	int size = avatar.getWidth();
+	Bitmap result = Bitmap.createBitmap(size, avatar.getHeight(), Bitmap.Config.ARGB_8888);
+	Canvas canvas = new Canvas(result);
+	canvas.drawBitmap(avatar, 0, 0, null);
+	Resources res = mContext.getResources();
+	Drawable statusIcon = res.getDrawable(R.drawable.status_icon);
+	statusIcon.setLevel(status);
+	int offset = size * 3 / 4;
+	statusIcon.setBounds(new Rect(offset, offset, size, avatar.getHeight()));
+	statusIcon.draw(canvas);
+	return result;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009-2011 by Frederic-Charles Barthelery,
+                               Nikita Kozlov,
+                               Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://www.beem-project.com/
+
+*/
+package de.meisterfuu.animexxenger.ui.avatar;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ImageView;
+
+/**
+ * Load the avatars in the ImageView asynchronously.
+ * The avatars are read and decoded by a small pool of worker threads. Concurrent requests
+ * for the same avatar are merged, and the request of a view which is rebound to another
+ * avatar before the end of the loading is cancelled.
+ * The methods of this class must be called on the UI thread.
+ */
+public final class AvatarLoader {
+
+    private static final int WORKER_COUNT = 2;
+
+    private static AvatarLoader sInstance;
+
+    private final AvatarBitmapCache mCache;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(WORKER_COUNT, new WorkerFactory());
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, LoadJob> mJobs = new HashMap<String, LoadJob>();
+    private final Map<ImageView, LoadJob> mTargets = new WeakHashMap<ImageView, LoadJob>();
+
+    /**
+     * Create an AvatarLoader.
+     *
+     * @param cache the cache used to store the decoded avatars
+     */
+    private AvatarLoader(final AvatarBitmapCache cache) {
+	mCache = cache;
+    }
+
+    /**
+     * Get the AvatarLoader of the application.
+     *
+     * @param ctx an android context
+     * @return the AvatarLoader
+     */
+    public static synchronized AvatarLoader getInstance(Context ctx) {
+	if (sInstance == null)
+	    sInstance = new AvatarLoader(AvatarBitmapCache.getInstance(ctx));
+	return sInstance;
+    }
+
+    /**
+     * Display an avatar with the status icon in an ImageView.
+     * If the avatar is not in memory, the default avatar is displayed until it is loaded.
+     *
+     * @param view the view which will display the avatar
+     * @param avatarId the avatar id or null to display the default avatar
+     * @param size the size in pixels of the avatar
+     * @param status the status of the contact (see {@link de.meisterfuu.animexxenger.utils.Status})
+     */
+    public void loadAvatarWithStatus(ImageView view, String avatarId, int size, int status) {
+	Bitmap bmp = mCache.peekAvatarWithStatus(avatarId, size, status);
+	if (bmp != null) {
+	    cancel(view);
+	    view.setImageBitmap(bmp);
+	    return;
+	}
+	String key = AvatarBitmapCache.makeStatusKey(avatarId, size, status);
+	LoadJob job = mJobs.get(key);
+	if (job != null && mTargets.get(view) == job)
+	    return;
+	cancel(view);
+	view.setImageBitmap(mCache.getAvatarWithStatus(null, size, status));
+	if (job == null) {
+	    job = new LoadJob(key, avatarId, size, status);
+	    mJobs.put(key, job);
+	    job.mFuture = mExecutor.submit(job);
+	}
+	job.mViews.add(new WeakReference<ImageView>(view));
+	job.mWaitingViews++;
+	mTargets.put(view, job);
+    }
+
+    /**
+     * Cancel the loading of an avatar in a view.
+     * The loading itself is cancelled if no other view is waiting for this avatar.
+     *
+     * @param view the view
+     */
+    public void cancel(ImageView view) {
+	LoadJob job = mTargets.remove(view);
+	if (job == null || --job.mWaitingViews > 0)
+	    return;
+	job.mFuture.cancel(false);
+	mJobs.remove(job.mKey);
+    }
+
+    /**
+     * Deliver a loaded avatar to the views still waiting for it.
+     *
+     * @param job the finished job
+     * @param bmp the loaded avatar
+     */
+    private void deliver(LoadJob job, Bitmap bmp) {
+	if (mJobs.get(job.mKey) == job)
+	    mJobs.remove(job.mKey);
+	for (WeakReference<ImageView> ref : job.mViews) {
+	    ImageView view = ref.get();
+	    if (view != null && mTargets.get(view) == job) {
+		mTargets.remove(view);
+		view.setImageBitmap(bmp);
+	    }
+	}
+    }
+
+    /**
+     * The loading of an avatar by a worker thread.
+     */
+    private class LoadJob implements Runnable {
+	private final String mKey;
+	private final String mAvatarId;
+	private final int mSize;
+	private final int mStatus;
+	private final List<WeakReference<ImageView>> mViews = new ArrayList<WeakReference<ImageView>>();
+	private int mWaitingViews;
+	private Future<?> mFuture;
+
+	/**
+	 * Create a LoadJob.
+	 *
+	 * @param key the key of the avatar in the cache
+	 * @param avatarId the avatar id
+	 * @param size the size of the avatar
+	 * @param status the status of the contact
+	 */
+	public LoadJob(final String key, final String avatarId, final int size, final int status) {
+	    mKey = key;
+	    mAvatarId = avatarId;
+	    mSize = size;
+	    mStatus = status;
+	}
+
+	@Override
+	public void run() {
+	    final Bitmap bmp = mCache.getAvatarWithStatus(mAvatarId, mSize, mStatus);
+	    mHandler.post(new Runnable() {
+		@Override
+		public void run() {
+		    deliver(LoadJob.this, bmp);
+		}
+	    });
+	}
+    }
+
+    /**
+     * Create the low priority worker threads.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+	private int mCount;
+
+	/**
+	 * Create a WorkerFactory.
+	 */
+	public WorkerFactory() {
+	}
+
+	@Override
+	public synchronized Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "AvatarLoader #" + ++mCount);
+	    t.setPriority(Thread.MIN_PRIORITY);
+	    return t;
+	}
+    }
+}
@@ -43,12 +43,15 @@
 */
 package de.meisterfuu.animexxenger.utils;
 
+import java.lang.reflect.Method;
+
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.DetailedState;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
+import android.os.Build;
 import android.telephony.TelephonyManager;
 
 /**
@@ -56,6 +59,9 @@ import android.telephony.TelephonyManager;
  */
 public final class BeemConnectivity {
 
+    /** The API level which added ConnectivityManager.isActiveNetworkMetered(). */
+    private static final int API_ACTIVE_NETWORK_METERED = 16;
+
     /**
      * Private constructor to forbid instantiation.
      */
@@ -114,4 +120,61 @@ public final class BeemConnectivity {
 	return tm.getNetworkType() == TelephonyManager.NETWORK_TYPE_EDGE;
     }
 
+    /**
+     * Checks if the active connection is metered.
+     * The platform is asked when it knows, otherwise the mobile and wimax
+     * connections are considered metered.
+     * @param ctx the ctx
+     * @return true, if is metered
+     */
+    public static boolean isMetered(final Context ctx) {
+	ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(
+	    Context.CONNECTIVITY_SERVICE);
+	if (Build.VERSION.SDK_INT >= API_ACTIVE_NETWORK_METERED) {
+	    try {
+		Method m = ConnectivityManager.class.getMethod("isActiveNetworkMetered");
+		return (Boolean) m.invoke(cm);
+	    } catch (Exception e) {
+		// use the type of the network below
+	    }
+	}
+	NetworkInfo ni = cm.getActiveNetworkInfo();
+	if (ni == null)
+	    return false;
+	switch (ni.getType()) {
+	    case ConnectivityManager.TYPE_MOBILE:
+	    case ConnectivityManager.TYPE_MOBILE_MMS:
+	    case ConnectivityManager.TYPE_MOBILE_SUPL:
+	    case ConnectivityManager.TYPE_MOBILE_DUN:
+	    case ConnectivityManager.TYPE_MOBILE_HIPRI:
+	    case ConnectivityManager.TYPE_WIMAX:
+		return true;
+	    default:
+		return false;
+	}
+    }
+
+    /**
+     * Checks if the active connection is a low bandwidth mobile connection.
+     * @param ctx the ctx
+     * @return true, if is low bandwidth
+     */
+    public static boolean isLowBandwidth(final Context ctx) {
+	ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(
+	    Context.CONNECTIVITY_SERVICE);
+	NetworkInfo ni = cm.getActiveNetworkInfo();
+	if (ni == null || ni.getType() != ConnectivityManager.TYPE_MOBILE)
+	    return false;
+	switch (ni.getSubtype()) {
+	    case TelephonyManager.NETWORK_TYPE_GPRS:
+	    case TelephonyManager.NETWORK_TYPE_EDGE:
+	    case TelephonyManager.NETWORK_TYPE_CDMA:
+	    case TelephonyManager.NETWORK_TYPE_1xRTT:
+	    case TelephonyManager.NETWORK_TYPE_IDEN:
+		return true;
+	    default:
+		return false;
+	}
+    }
+
 }
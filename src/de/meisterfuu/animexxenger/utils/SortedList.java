@@ -172,6 +172,27 @@ public class SortedList<E> implements List<E> {
 	return false;
     }
 
+    /**
+     * Merge some elements already sorted with the comparator of this list.
+     * The list is walked only once whatever the number of elements merged.
+     *
+     * @param sorted the elements to add, sorted with the comparator of this list
+     * @return true if this list changed as a result of the call
+     */
+    public boolean mergeSorted(List<? extends E> sorted) {
+	ListIterator<E> it = mBackend.listIterator();
+	for (E e : sorted) {
+	    while (it.hasNext()) {
+		if (mComparator.compare(e, it.next()) < 0) {
+		    it.previous();
+		    break;
+		}
+	    }
+	    it.add(e);
+	}
+	return !sorted.isEmpty();
+    }
+
     @Override
     public boolean removeAll(Collection<?> c) {
 	return mBackend.removeAll(c);
@@ -0,0 +1,242 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.security.KeyPair;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A pool of D-H key pairs generated in background.
+ * 
+ * The key rotation and the AKE take their key pairs from the pool instead of
+ * generating them while handling a message. The pool is refilled up to its
+ * target size by a low priority thread and a key pair is generated
+ * synchronously if the pool is empty. Each key pair is handed out only once.
+ * 
+ */
+public class DHKeyPairPool {
+
+	/** The default number of key pairs kept in the pool. */
+	public static final int DEFAULT_TARGET_SIZE = 4;
+
+	private static final long REFILL_KEEP_ALIVE = 30;
+
+	private static final Logger logger = Logger.getLogger(DHKeyPairPool.class
+			.getName());
+
+	private static DHKeyPairPool instance;
+
+	private final OtrCryptoEngine engine = new OtrCryptoEngineImpl();
+	private final LinkedList<KeyPair> pairs = new LinkedList<KeyPair>();
+	private final ExecutorService refiller;
+	private int targetSize;
+	private boolean refilling;
+	private long hits;
+	private long misses;
+	private long generated;
+
+	/**
+	 * Create a pool.
+	 * 
+	 * @param targetSize
+	 *            the number of key pairs to keep in the pool
+	 */
+	public DHKeyPairPool(int targetSize) {
+		this.targetSize = targetSize;
+		refiller = new ThreadPoolExecutor(0, 1, REFILL_KEEP_ALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "otr-dh-pool");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Get the pool shared by the sessions.
+	 * 
+	 * @return the shared pool
+	 */
+	public static synchronized DHKeyPairPool getInstance() {
+		if (instance == null)
+			instance = new DHKeyPairPool(DEFAULT_TARGET_SIZE);
+		return instance;
+	}
+
+	/**
+	 * Shut down the pool shared by the sessions. A new pool is created the
+	 * next time it is needed.
+	 */
+	public static synchronized void shutdownInstance() {
+		if (instance != null) {
+			instance.shutdown();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Take a key pair from the pool. If the pool is empty, the key pair is
+	 * generated by the calling thread.
+	 * 
+	 * @return a key pair which was never handed out before
+	 * @throws OtrCryptoException
+	 *             if the key pair cannot be generated
+	 */
+	public KeyPair take() throws OtrCryptoException {
+		KeyPair pair;
+		synchronized (this) {
+			pair = pairs.poll();
+			if (pair != null)
+				hits++;
+			else
+				misses++;
+			scheduleRefill();
+		}
+		if (pair == null) {
+			logger.finest("D-H key pair pool empty, generating synchronously.");
+			pair = engine.generateDHKeyPair();
+		}
+		return pair;
+	}
+
+	/**
+	 * Start filling the pool in background.
+	 */
+	public synchronized void prefill() {
+		scheduleRefill();
+	}
+
+	/**
+	 * Set the number of key pairs to keep in the pool.
+	 * 
+	 * @param targetSize
+	 *            the number of key pairs
+	 */
+	public synchronized void setTargetSize(int targetSize) {
+		this.targetSize = targetSize;
+		while (pairs.size() > targetSize)
+			pairs.removeLast();
+		scheduleRefill();
+	}
+
+	/**
+	 * Stop filling the pool and drop its key pairs. The statistics of the
+	 * pool are logged. Key pairs taken afterwards are generated by the
+	 * calling thread.
+	 */
+	public synchronized void shutdown() {
+		refiller.shutdownNow();
+		refilling = false;
+		pairs.clear();
+		logger.info("D-H key pair pool shut down, hits: " + getHits()
+				+ ", misses: " + getMisses() + ", generated: "
+				+ getGeneratedCount());
+	}
+
+	/**
+	 * Get the number of key pairs taken from the pool.
+	 * 
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of key pairs generated synchronously because the pool
+	 * was empty.
+	 * 
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of key pairs generated in background.
+	 * 
+	 * @return the number of key pairs
+	 */
+	public synchronized long getGeneratedCount() {
+		return generated;
+	}
+
+	/**
+	 * Get the number of key pairs ready in the pool.
+	 * 
+	 * @return the number of key pairs
+	 */
+	public synchronized int size() {
+		return pairs.size();
+	}
+
+	/**
+	 * Start the refill if the pool is not full. Must be called with the lock
+	 * on the pool.
+	 */
+	private void scheduleRefill() {
+		if (refilling || pairs.size() >= targetSize)
+			return;
+		refilling = true;
+		try {
+			refiller.execute(new Runnable() {
+				public void run() {
+					refill();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refilling = false;
+		}
+	}
+
+	/**
+	 * Generate key pairs until the pool is full.
+	 */
+	private void refill() {
+		while (true) {
+			synchronized (this) {
+				if (pairs.size() >= targetSize || refiller.isShutdown()) {
+					refilling = false;
+					return;
+				}
+			}
+			KeyPair pair;
+			try {
+				pair = engine.generateDHKeyPair();
+			} catch (OtrCryptoException e) {
+				logger.warning("Unable to generate a D-H key pair: "
+						+ e.getMessage());
+				synchronized (this) {
+					refilling = false;
+				}
+				return;
+			}
+			synchronized (this) {
+				if (refiller.isShutdown())
+					return;
+				pairs.add(pair);
+				generated++;
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DHKeyPairPool size=" + pairs.size() + " hits=" + hits
+				+ " misses=" + misses + " generated=" + generated;
+	}
+}
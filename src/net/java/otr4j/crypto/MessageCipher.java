@@ -0,0 +1,127 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.otr4j.crypto;
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle2.crypto.engines.AESFastEngine;
+import org.bouncycastle2.crypto.params.KeyParameter;
+
+/**
+ * The AES-CTR cipher and the HMAC-SHA1 of one direction of a set of session
+ * keys.
+ * 
+ * The cipher and the MAC are keyed once when the session keys are derived and
+ * used as they are for every data message, so a message only allocates its
+ * cipher text and its MAC. They must be wiped when the session keys rotate or
+ * when the session ends.
+ * 
+ */
+public class MessageCipher {
+
+	private final AESFastEngine aes = new AESFastEngine();
+	private final byte[] counter = new byte[OtrCryptoEngineImpl.AES_BLOCK_SIZE];
+	private final byte[] keyStream = new byte[OtrCryptoEngineImpl.AES_BLOCK_SIZE];
+	private javax.crypto.Mac sha1Hmac;
+	private boolean keyed;
+
+	/**
+	 * Key the cipher and the MAC.
+	 * 
+	 * @param aesKey
+	 *            the AES key
+	 * @param macKey
+	 *            the HMAC-SHA1 key
+	 * @throws OtrCryptoException
+	 *             if a key is invalid
+	 */
+	public synchronized void init(byte[] aesKey, byte[] macKey)
+			throws OtrCryptoException {
+		if (sha1Hmac == null)
+			sha1Hmac = OtrCryptoEngineImpl.createMac("HmacSHA1");
+		try {
+			aes.init(true, new KeyParameter(aesKey));
+		} catch (IllegalArgumentException e) {
+			throw new OtrCryptoException(e);
+		}
+		OtrCryptoEngineImpl.initMac(sha1Hmac, macKey);
+		keyed = true;
+	}
+
+	/**
+	 * Check if the cipher and the MAC are keyed.
+	 * 
+	 * @return true if {@link #init(byte[], byte[])} was called since the last
+	 *         {@link #wipe()}
+	 */
+	public synchronized boolean isKeyed() {
+		return keyed;
+	}
+
+	/**
+	 * Encrypt or decrypt with AES in counter mode. The input and the output
+	 * may be the same array.
+	 * 
+	 * @return the number of bytes written
+	 * @throws OtrCryptoException
+	 *             if the cipher is not keyed or the counter is invalid
+	 */
+	public synchronized int aesCtr(byte[] ctr, byte[] in, int inOff, int len,
+			byte[] out, int outOff) throws OtrCryptoException {
+		checkKeyed();
+		try {
+			return OtrCryptoEngineImpl.aesCtr(aes, counter, keyStream, ctr, in,
+					inOff, len, out, outOff);
+		} finally {
+			Arrays.fill(keyStream, (byte) 0);
+		}
+	}
+
+	/**
+	 * Compute the HMAC-SHA1 of some data.
+	 * 
+	 * @param b
+	 *            the data
+	 * @param length
+	 *            the length of the result or 0 for the full MAC
+	 * @return the MAC
+	 * @throws OtrCryptoException
+	 *             if the MAC is not keyed
+	 */
+	public synchronized byte[] sha1Hmac(byte[] b, int length)
+			throws OtrCryptoException {
+		checkKeyed();
+		return OtrCryptoEngineImpl.macResult(sha1Hmac, b, length);
+	}
+
+	/**
+	 * Replace the keys of the cipher and of the MAC by a zero key. The
+	 * instances are kept to be keyed again.
+	 */
+	public synchronized void wipe() {
+		if (!keyed)
+			return;
+		keyed = false;
+		aes.init(true, new KeyParameter(OtrCryptoEngineImpl.WIPE_KEY));
+		Arrays.fill(counter, (byte) 0);
+		try {
+			sha1Hmac.init(new SecretKeySpec(OtrCryptoEngineImpl.WIPE_KEY,
+					sha1Hmac.getAlgorithm()));
+		} catch (InvalidKeyException e) {
+			// the MAC keeps the previous key until it is keyed again
+		}
+	}
+
+	private void checkKeyed() throws OtrCryptoException {
+		if (!keyed)
+			throw new OtrCryptoException(new IllegalStateException(
+					"The message cipher is not keyed"));
+	}
+}
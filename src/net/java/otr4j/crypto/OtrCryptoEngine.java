@@ -69,6 +69,24 @@ public interface OtrCryptoEngine {
 	public abstract byte[] aesEncrypt(byte[] key, byte[] ctr, byte[] b)
 			throws OtrCryptoException;
 
+	/**
+	 * Decrypt with AES in counter mode into an output buffer.
+	 * 
+	 * @return the number of bytes written in out
+	 */
+	public abstract int aesDecrypt(byte[] key, byte[] ctr, byte[] in,
+			int inOff, int len, byte[] out, int outOff)
+			throws OtrCryptoException;
+
+	/**
+	 * Encrypt with AES in counter mode into an output buffer.
+	 * 
+	 * @return the number of bytes written in out
+	 */
+	public abstract int aesEncrypt(byte[] key, byte[] ctr, byte[] in,
+			int inOff, int len, byte[] out, int outOff)
+			throws OtrCryptoException;
+
 	public abstract BigInteger generateSecret(PrivateKey privKey,
 			PublicKey pubKey) throws OtrCryptoException;
 
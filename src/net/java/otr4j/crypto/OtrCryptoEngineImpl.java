@@ -20,6 +20,7 @@ import java.security.SecureRandom;
 import java.security.interfaces.DSAParams;
 import java.security.interfaces.DSAPrivateKey;
 import java.security.interfaces.DSAPublicKey;
+import java.util.Arrays;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPrivateKey;
@@ -31,10 +32,8 @@ import javax.crypto.spec.SecretKeySpec;
 import net.java.otr4j.io.SerializationUtils;
 
 import org.bouncycastle2.crypto.AsymmetricCipherKeyPair;
-import org.bouncycastle2.crypto.BufferedBlockCipher;
 import org.bouncycastle2.crypto.engines.AESFastEngine;
 import org.bouncycastle2.crypto.generators.DHKeyPairGenerator;
-import org.bouncycastle2.crypto.modes.SICBlockCipher;
 import org.bouncycastle2.crypto.params.DHKeyGenerationParameters;
 import org.bouncycastle2.crypto.params.DHParameters;
 import org.bouncycastle2.crypto.params.DHPrivateKeyParameters;
@@ -43,7 +42,6 @@ import org.bouncycastle2.crypto.params.DSAParameters;
 import org.bouncycastle2.crypto.params.DSAPrivateKeyParameters;
 import org.bouncycastle2.crypto.params.DSAPublicKeyParameters;
 import org.bouncycastle2.crypto.params.KeyParameter;
-import org.bouncycastle2.crypto.params.ParametersWithIV;
 import org.bouncycastle2.crypto.signers.DSASigner;
 import org.bouncycastle2.util.BigIntegers;
 
@@ -54,6 +52,11 @@ import org.bouncycastle2.util.BigIntegers;
  */
 public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 
+	static final int AES_BLOCK_SIZE = 16;
+
+	/** The key replacing the keys of the cipher and MAC once used. */
+	static final byte[] WIPE_KEY = new byte[AES_KEY_BYTE_LENGTH];
+
 	public KeyPair generateDHKeyPair() throws OtrCryptoException {
 
 		// Generate a AsymmetricCipherKeyPair using BC.
@@ -113,122 +116,258 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 
 	public byte[] sha256Hmac(byte[] b, byte[] key, int length)
 			throws OtrCryptoException {
-
-		SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSHA256");
-		javax.crypto.Mac mac;
+		CryptoContext context = getContext();
+		javax.crypto.Mac mac = context.getSha256Hmac(key);
 		try {
-			mac = javax.crypto.Mac.getInstance("HmacSHA256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new OtrCryptoException(e);
+			return macResult(mac, b, length);
+		} finally {
+			context.wipeMac(mac);
 		}
+	}
+
+	public byte[] sha1Hmac(byte[] b, byte[] key, int length)
+			throws OtrCryptoException {
+		CryptoContext context = getContext();
+		javax.crypto.Mac mac = context.getSha1Hmac(key);
 		try {
-			mac.init(keyspec);
-		} catch (InvalidKeyException e) {
-			throw new OtrCryptoException(e);
+			return macResult(mac, b, length);
+		} finally {
+			context.wipeMac(mac);
 		}
+	}
 
-		byte[] macBytes = mac.doFinal(b);
+	public byte[] sha256Hmac160(byte[] b, byte[] key) throws OtrCryptoException {
+		return sha256Hmac(b, key, 20);
+	}
 
-		if (length > 0) {
-			byte[] bytes = new byte[length];
-			ByteBuffer buff = ByteBuffer.wrap(macBytes);
-			buff.get(bytes);
-			return bytes;
-		} else {
-			return macBytes;
-		}
+	public byte[] sha256Hash(byte[] b) throws OtrCryptoException {
+		MessageDigest sha256 = getContext().getSha256();
+		sha256.update(b, 0, b.length);
+		return sha256.digest();
 	}
 
-	public byte[] sha1Hmac(byte[] b, byte[] key, int length)
+	public byte[] sha1Hash(byte[] b) throws OtrCryptoException {
+		MessageDigest sha1 = getContext().getSha1();
+		sha1.update(b, 0, b.length);
+		return sha1.digest();
+	}
+
+	public byte[] aesDecrypt(byte[] key, byte[] ctr, byte[] b)
 			throws OtrCryptoException {
+		byte[] aesOutLwDec = new byte[b.length];
+		aesDecrypt(key, ctr, b, 0, b.length, aesOutLwDec, 0);
+		return aesOutLwDec;
+	}
 
-		try {
-			SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSHA1");
-			javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA1");
-			mac.init(keyspec);
+	public byte[] aesEncrypt(byte[] key, byte[] ctr, byte[] b)
+			throws OtrCryptoException {
+		byte[] aesOutLwEnc = new byte[b.length];
+		aesEncrypt(key, ctr, b, 0, b.length, aesOutLwEnc, 0);
+		return aesOutLwEnc;
+	}
 
-			byte[] macBytes = mac.doFinal(b);
+	public int aesDecrypt(byte[] key, byte[] ctr, byte[] in, int inOff,
+			int len, byte[] out, int outOff) throws OtrCryptoException {
+		// In counter mode the decryption is the encryption.
+		return getContext().aesCtr(key, ctr, in, inOff, len, out, outOff);
+	}
 
-			if (length > 0) {
-				byte[] bytes = new byte[length];
-				ByteBuffer buff = ByteBuffer.wrap(macBytes);
-				buff.get(bytes);
-				return bytes;
-			} else {
-				return macBytes;
+	public int aesEncrypt(byte[] key, byte[] ctr, byte[] in, int inOff,
+			int len, byte[] out, int outOff) throws OtrCryptoException {
+		return getContext().aesCtr(key, ctr, in, inOff, len, out, outOff);
+	}
+
+	/**
+	 * Compute a MAC and truncate it.
+	 * 
+	 * @param mac
+	 *            the MAC initialized with its key
+	 * @param b
+	 *            the data
+	 * @param length
+	 *            the length of the result or 0 for the full MAC
+	 * @return the MAC
+	 * @throws OtrCryptoException
+	 *             if the MAC cannot be computed
+	 */
+	static byte[] macResult(javax.crypto.Mac mac, byte[] b, int length)
+			throws OtrCryptoException {
+		mac.update(b);
+		if (length <= 0)
+			return mac.doFinal();
+		byte[] bytes = new byte[length];
+		if (length == mac.getMacLength()) {
+			try {
+				mac.doFinal(bytes, 0);
+			} catch (Exception e) {
+				throw new OtrCryptoException(e);
 			}
-		} catch (Exception e) {
-			throw new OtrCryptoException(e);
+			return bytes;
 		}
+		System.arraycopy(mac.doFinal(), 0, bytes, 0, length);
+		return bytes;
 	}
 
-	public byte[] sha256Hmac160(byte[] b, byte[] key) throws OtrCryptoException {
-		return sha256Hmac(b, key, 20);
+	/**
+	 * Encrypt or decrypt with AES in counter mode, the counter being
+	 * incremented as a 128 bits big endian integer like SICBlockCipher.
+	 * 
+	 * @param aes
+	 *            the AES engine initialized with its key
+	 * @param counter
+	 *            a block used as the counter
+	 * @param keyStream
+	 *            a block used for the key stream
+	 * @return the number of bytes written
+	 * @throws OtrCryptoException
+	 *             if the initial counter is not a block
+	 */
+	static int aesCtr(AESFastEngine aes, byte[] counter, byte[] keyStream,
+			byte[] ctr, byte[] in, int inOff, int len, byte[] out, int outOff)
+			throws OtrCryptoException {
+		if (ctr == null)
+			ctr = ZERO_CTR;
+		if (ctr.length != AES_BLOCK_SIZE)
+			throw new OtrCryptoException(new IllegalArgumentException(
+					"Counter must be " + AES_BLOCK_SIZE + " bytes"));
+		System.arraycopy(ctr, 0, counter, 0, AES_BLOCK_SIZE);
+		for (int done = 0; done < len; done += AES_BLOCK_SIZE) {
+			aes.processBlock(counter, 0, keyStream, 0);
+			int n = Math.min(AES_BLOCK_SIZE, len - done);
+			for (int i = 0; i < n; i++)
+				out[outOff + done + i] = (byte) (in[inOff + done + i] ^ keyStream[i]);
+			for (int i = AES_BLOCK_SIZE - 1; i >= 0 && ++counter[i] == 0; i--)
+				;
+		}
+		return len;
 	}
 
-	public byte[] sha256Hash(byte[] b) throws OtrCryptoException {
+	static javax.crypto.Mac createMac(String algorithm)
+			throws OtrCryptoException {
 		try {
-			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-			sha256.update(b, 0, b.length);
-			return sha256.digest();
-		} catch (Exception e) {
+			return javax.crypto.Mac.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
 			throw new OtrCryptoException(e);
 		}
 	}
 
-	public byte[] sha1Hash(byte[] b) throws OtrCryptoException {
+	static void initMac(javax.crypto.Mac mac, byte[] key)
+			throws OtrCryptoException {
 		try {
-			MessageDigest sha256 = MessageDigest.getInstance("SHA-1");
-			sha256.update(b, 0, b.length);
-			return sha256.digest();
-		} catch (Exception e) {
+			mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
+		} catch (InvalidKeyException e) {
 			throw new OtrCryptoException(e);
 		}
 	}
 
-	public byte[] aesDecrypt(byte[] key, byte[] ctr, byte[] b)
-			throws OtrCryptoException {
+	/**
+	 * Get the crypto contexts of the calling thread.
+	 * 
+	 * @return the contexts
+	 */
+	private static CryptoContext getContext() {
+		return CONTEXTS.get();
+	}
 
-		AESFastEngine aesDec = new AESFastEngine();
-		SICBlockCipher sicAesDec = new SICBlockCipher(aesDec);
-		BufferedBlockCipher bufSicAesDec = new BufferedBlockCipher(sicAesDec);
+	private static final ThreadLocal<CryptoContext> CONTEXTS = new ThreadLocal<CryptoContext>() {
+		@Override
+		protected CryptoContext initialValue() {
+			return new CryptoContext();
+		}
+	};
+
+	/**
+	 * The cipher, MAC and digest instances of a thread. They are created once
+	 * so the AKE does not look up providers. The keys are set for each
+	 * operation and replaced by a zero key afterwards, so the contexts of
+	 * long-lived threads never keep the keys alive. The data messages use the
+	 * {@link MessageCipher} of their session keys instead.
+	 */
+	private static class CryptoContext {
+
+		private final AESFastEngine aes = new AESFastEngine();
+		private final byte[] counter = new byte[AES_BLOCK_SIZE];
+		private final byte[] keyStream = new byte[AES_BLOCK_SIZE];
+
+		private javax.crypto.Mac sha1Hmac;
+		private javax.crypto.Mac sha256Hmac;
+		private MessageDigest sha1;
+		private MessageDigest sha256;
+
+		/**
+		 * Encrypt or decrypt with AES in counter mode.
+		 */
+		int aesCtr(byte[] key, byte[] ctr, byte[] in, int inOff, int len,
+				byte[] out, int outOff) throws OtrCryptoException {
+			try {
+				aes.init(true, new KeyParameter(key));
+			} catch (IllegalArgumentException e) {
+				throw new OtrCryptoException(e);
+			}
+			try {
+				return OtrCryptoEngineImpl.aesCtr(aes, counter, keyStream, ctr,
+						in, inOff, len, out, outOff);
+			} finally {
+				// drop the key schedule and the last key stream block
+				aes.init(true, new KeyParameter(WIPE_KEY));
+				Arrays.fill(counter, (byte) 0);
+				Arrays.fill(keyStream, (byte) 0);
+			}
+		}
 
-		// Create initial counter value 0.
-		if (ctr == null)
-			ctr = ZERO_CTR;
-		bufSicAesDec.init(false, new ParametersWithIV(new KeyParameter(key),
-				ctr));
-		byte[] aesOutLwDec = new byte[b.length];
-		int done = bufSicAesDec.processBytes(b, 0, b.length, aesOutLwDec, 0);
-		try {
-			bufSicAesDec.doFinal(aesOutLwDec, done);
-		} catch (Exception e) {
-			throw new OtrCryptoException(e);
+		/**
+		 * Get the HMAC-SHA1 of this thread, initialized with a key. It must be
+		 * passed to {@link #wipeMac(javax.crypto.Mac)} once used.
+		 */
+		javax.crypto.Mac getSha1Hmac(byte[] key) throws OtrCryptoException {
+			if (sha1Hmac == null)
+				sha1Hmac = createMac("HmacSHA1");
+			initMac(sha1Hmac, key);
+			return sha1Hmac;
 		}
 
-		return aesOutLwDec;
-	}
+		/**
+		 * Get the HMAC-SHA256 of this thread, initialized with a key. It must
+		 * be passed to {@link #wipeMac(javax.crypto.Mac)} once used.
+		 */
+		javax.crypto.Mac getSha256Hmac(byte[] key) throws OtrCryptoException {
+			if (sha256Hmac == null)
+				sha256Hmac = createMac("HmacSHA256");
+			initMac(sha256Hmac, key);
+			return sha256Hmac;
+		}
 
-	public byte[] aesEncrypt(byte[] key, byte[] ctr, byte[] b)
-			throws OtrCryptoException {
+		/**
+		 * Replace the key of a MAC by a zero key.
+		 */
+		void wipeMac(javax.crypto.Mac mac) {
+			try {
+				mac.init(new SecretKeySpec(WIPE_KEY, mac.getAlgorithm()));
+			} catch (InvalidKeyException e) {
+				// the MAC keeps the previous key until the next operation
+			}
+		}
 
-		AESFastEngine aesEnc = new AESFastEngine();
-		SICBlockCipher sicAesEnc = new SICBlockCipher(aesEnc);
-		BufferedBlockCipher bufSicAesEnc = new BufferedBlockCipher(sicAesEnc);
+		MessageDigest getSha1() throws OtrCryptoException {
+			if (sha1 == null)
+				sha1 = createDigest("SHA-1");
+			return sha1;
+		}
 
-		// Create initial counter value 0.
-		if (ctr == null)
-			ctr = ZERO_CTR;
-		bufSicAesEnc.init(true,
-				new ParametersWithIV(new KeyParameter(key), ctr));
-		byte[] aesOutLwEnc = new byte[b.length];
-		int done = bufSicAesEnc.processBytes(b, 0, b.length, aesOutLwEnc, 0);
-		try {
-			bufSicAesEnc.doFinal(aesOutLwEnc, done);
-		} catch (Exception e) {
-			throw new OtrCryptoException(e);
+		MessageDigest getSha256() throws OtrCryptoException {
+			if (sha256 == null)
+				sha256 = createDigest("SHA-256");
+			return sha256;
+		}
+
+		private static MessageDigest createDigest(String algorithm)
+				throws OtrCryptoException {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new OtrCryptoException(e);
+			}
 		}
-		return aesOutLwEnc;
 	}
 
 	public BigInteger generateSecret(PrivateKey privKey, PublicKey pubKey)
@@ -359,9 +498,9 @@ public class OtrCryptoEngineImpl implements OtrCryptoEngine {
 			if (pubKey.getAlgorithm().equals("DSA")) {
 				byte[] trimmed = new byte[bRemotePubKey.length - 2];
 				System.arraycopy(bRemotePubKey, 2, trimmed, 0, trimmed.length);
-				b = new OtrCryptoEngineImpl().sha1Hash(trimmed);
+				b = this.sha1Hash(trimmed);
 			} else
-				b = new OtrCryptoEngineImpl().sha1Hash(bRemotePubKey);
+				b = this.sha1Hash(bRemotePubKey);
 		} catch (IOException e) {
 			throw new OtrCryptoException(e);
 		}
@@ -0,0 +1,118 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.otr4j.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+
+/**
+ * Read the OTR wire types from a ByteBuffer.
+ * 
+ * This is the counterpart of OtrInputStream for data already in memory.
+ * Numbers are read directly from the buffer, so only the values kept by the
+ * caller are copied.
+ * 
+ */
+public class OtrBufferReader implements SerializationConstants {
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Create a reader starting at the position of the buffer. The reader
+	 * moves the position of the buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer to read
+	 */
+	public OtrBufferReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Get the number of bytes left to read.
+	 * 
+	 * @return the number of bytes left
+	 */
+	public int remaining() {
+		return buffer.remaining();
+	}
+
+	public int readByte() throws IOException {
+		ensure(TYPE_LEN_BYTE);
+		return buffer.get() & 0xFF;
+	}
+
+	public int readShort() throws IOException {
+		ensure(TYPE_LEN_SHORT);
+		return buffer.getShort() & 0xFFFF;
+	}
+
+	public int readInt() throws IOException {
+		ensure(TYPE_LEN_INT);
+		return buffer.getInt();
+	}
+
+	public byte[] readCtr() throws IOException {
+		return readBytes(TYPE_LEN_CTR);
+	}
+
+	public byte[] readMac() throws IOException {
+		return readBytes(TYPE_LEN_MAC);
+	}
+
+	public BigInteger readBigInt() throws IOException {
+		return new BigInteger(1, readData());
+	}
+
+	public byte[] readData() throws IOException {
+		return readBytes(readLength(DATA_LEN));
+	}
+
+	public DHPublicKey readDHPublicKey() throws IOException {
+		BigInteger gyMpi = readBigInt();
+		try {
+			return new OtrCryptoEngineImpl().getDHPublicKey(gyMpi);
+		} catch (Exception ex) {
+			throw new IOException();
+		}
+	}
+
+	public byte[] readTlvData() throws IOException {
+		return readBytes(readLength(TLV_LEN));
+	}
+
+	private int readLength(int size) throws IOException {
+		int len = (size == TYPE_LEN_INT) ? readInt() : readShort();
+		if (len < 0)
+			throw new IOException("Illegal length: " + len);
+		return len;
+	}
+
+	private byte[] readBytes(int length) throws IOException {
+		ensure(length);
+		byte[] b = new byte[length];
+		try {
+			buffer.get(b);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	private void ensure(int length) throws EOFException {
+		if (buffer.remaining() < length)
+			throw new EOFException("Need " + length + " bytes, "
+					+ buffer.remaining() + " left");
+	}
+}
@@ -1,5 +1,6 @@
 package net.java.otr4j.io;
 
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -25,13 +26,12 @@ public class OtrInputStream extends FilterInputStream implements
 	}
 
 	private int readNumber(int length) throws IOException {
-		byte[] b = new byte[length];
-		read(b);
-
 		int value = 0;
-		for (int i = 0; i < b.length; i++) {
-			int shift = (b.length - 1 - i) * 8;
-			value += (b[i] & 0x000000FF) << shift;
+		for (int i = 0; i < length; i++) {
+			int b = read();
+			if (b < 0)
+				throw new EOFException();
+			value = (value << 8) | b;
 		}
 
 		return value;
@@ -108,7 +108,7 @@ public class OtrInputStream extends FilterInputStream implements
 	}
 
 	public byte[] readTlvData() throws IOException {
-		int len = readNumber(TYPE_LEN_BYTE);
+		int len = readNumber(TLV_LEN);
 
 		byte[] b = new byte[len];
 		in.read(b);
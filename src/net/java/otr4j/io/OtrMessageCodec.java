@@ -0,0 +1,401 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.otr4j.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Vector;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.io.messages.AbstractEncodedMessage;
+import net.java.otr4j.io.messages.AbstractMessage;
+import net.java.otr4j.io.messages.DHCommitMessage;
+import net.java.otr4j.io.messages.DHKeyMessage;
+import net.java.otr4j.io.messages.DataMessage;
+import net.java.otr4j.io.messages.ErrorMessage;
+import net.java.otr4j.io.messages.PlainTextMessage;
+import net.java.otr4j.io.messages.QueryMessage;
+import net.java.otr4j.io.messages.RevealSignatureMessage;
+import net.java.otr4j.io.messages.SignatureMessage;
+
+/**
+ * Convert OTR messages from and to their text form.
+ * 
+ * The text is scanned as a CharSequence without substrings nor regular
+ * expressions, and the base64 payload of encoded messages is decoded into a
+ * buffer kept by each thread and read in place by an OtrBufferReader. The
+ * payload of outgoing messages is built in a per thread buffer as well and
+ * base64 encoded straight into the resulting text.
+ * 
+ */
+public class OtrMessageCodec implements SerializationConstants {
+
+	/** Buffers larger than this are not kept for the next message. */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private static final String TAG_BASE = " \t  \t\t\t\t \t \t \t  ";
+	private static final String TAG_V1 = "  \t\t  \t ";
+	private static final String TAG_V2 = " \t \t  \t ";
+
+	private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		for (int i = 0; i < BASE64_VALUES.length; i++)
+			BASE64_VALUES[i] = -1;
+		for (int i = 0; i < BASE64_CHARS.length; i++)
+			BASE64_VALUES[BASE64_CHARS[i]] = (byte) i;
+	}
+
+	private static final ThreadLocal<ByteBuffer> decodeBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+	};
+
+	private static final ThreadLocal<WireBuffer> encodeBuffer = new ThreadLocal<WireBuffer>() {
+		@Override
+		protected WireBuffer initialValue() {
+			return new WireBuffer();
+		}
+	};
+
+	private OtrMessageCodec() {
+	}
+
+	/**
+	 * Parse a message.
+	 * 
+	 * @param s
+	 *            the text of the message
+	 * @return the message or null if the text is null or too short
+	 * @throws IOException
+	 *             if the message is malformed
+	 */
+	public static AbstractMessage toMessage(CharSequence s) throws IOException {
+		if (s == null || s.length() <= 1)
+			return null;
+
+		int headLen = HEAD.length();
+		if (s.length() <= headLen || !startsWith(s, HEAD, 0))
+			return toPlainTextMessage(s);
+
+		char contentType = s.charAt(headLen);
+		int content = headLen + 1;
+		switch (contentType) {
+		case HEAD_ENCODED:
+			return toEncodedMessage(decodeBase64(s, content, s.length()));
+		case HEAD_ERROR:
+			return new ErrorMessage(AbstractMessage.MESSAGE_ERROR, s
+					.subSequence(content, s.length()).toString());
+		case HEAD_QUERY_V:
+		case HEAD_QUERY_Q:
+			List<Integer> versions = new Vector<Integer>();
+			int start = -1;
+			if (contentType == HEAD_QUERY_Q) {
+				versions.add(1);
+				if (content < s.length() && s.charAt(content) == 'v')
+					start = content + 1;
+			} else {
+				start = content;
+			}
+
+			if (start >= 0) {
+				for (int i = start; i < s.length(); i++) {
+					char c = s.charAt(i);
+					if (c == '?')
+						break;
+					if (c < '0' || c > '9')
+						continue;
+					Integer version = c - '0';
+					if (!versions.contains(version))
+						versions.add(version);
+				}
+			}
+			return new QueryMessage(versions);
+		default:
+			throw new IOException("Uknown message type.");
+		}
+	}
+
+	/**
+	 * Decode the base64 payload of an encoded message into the buffer of the
+	 * calling thread. The payload ends at the first '.' or at the end and
+	 * whitespaces are ignored.
+	 * 
+	 * The buffer is reused by the next call on the same thread.
+	 * 
+	 * @param s
+	 *            the text
+	 * @param start
+	 *            the index of the first base64 character
+	 * @param end
+	 *            the index after the last character to consider
+	 * @return the buffer holding the decoded bytes between its position and
+	 *         limit
+	 * @throws IOException
+	 *             if the payload is not valid base64
+	 */
+	public static ByteBuffer decodeBase64(CharSequence s, int start, int end)
+			throws IOException {
+		int needed = (end - start) / 4 * 3 + 3;
+		ByteBuffer out = decodeBuffer.get();
+		if (out.capacity() < needed) {
+			out = ByteBuffer.allocate(Math.max(needed, out.capacity() * 2));
+			if (out.capacity() <= MAX_RETAINED_BUFFER_SIZE)
+				decodeBuffer.set(out);
+		}
+		out.clear();
+		decodeBase64(s, start, end, out);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Decode base64 text into a buffer.
+	 * 
+	 * @param s
+	 *            the text
+	 * @param start
+	 *            the index of the first base64 character
+	 * @param end
+	 *            the index after the last character to consider
+	 * @param out
+	 *            the buffer receiving the decoded bytes at its position
+	 * @return the number of decoded bytes
+	 * @throws IOException
+	 *             if the text is not valid base64
+	 */
+	public static int decodeBase64(CharSequence s, int start, int end,
+			ByteBuffer out) throws IOException {
+		int begin = out.position();
+		int bits = 0;
+		int count = 0;
+		boolean padding = false;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == '.')
+				break;
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n')
+				continue;
+			if (c == '=') {
+				padding = true;
+				continue;
+			}
+			int v = (c < BASE64_VALUES.length) ? BASE64_VALUES[c] : -1;
+			if (v < 0 || padding)
+				throw new IOException("Illegal base64 character at " + i);
+			bits = (bits << 6) | v;
+			if (++count == 4) {
+				out.put((byte) (bits >> 16));
+				out.put((byte) (bits >> 8));
+				out.put((byte) bits);
+				bits = 0;
+				count = 0;
+			}
+		}
+		switch (count) {
+		case 0:
+			break;
+		case 2:
+			out.put((byte) (bits >> 4));
+			break;
+		case 3:
+			out.put((byte) (bits >> 10));
+			out.put((byte) (bits >> 2));
+			break;
+		default:
+			throw new IOException("Truncated base64 data.");
+		}
+		return out.position() - begin;
+	}
+
+	/**
+	 * Encode bytes in base64.
+	 * 
+	 * @param b
+	 *            the bytes
+	 * @param off
+	 *            the offset of the first byte
+	 * @param len
+	 *            the number of bytes
+	 * @param out
+	 *            the text receiving the encoded bytes
+	 */
+	public static void encodeBase64(byte[] b, int off, int len,
+			StringBuilder out) {
+		out.ensureCapacity(out.length() + (len + 2) / 3 * 4);
+		int end = off + len;
+		int i = off;
+		for (; i + 2 < end; i += 3) {
+			int bits = ((b[i] & 0xFF) << 16) | ((b[i + 1] & 0xFF) << 8)
+					| (b[i + 2] & 0xFF);
+			out.append(BASE64_CHARS[bits >>> 18]);
+			out.append(BASE64_CHARS[(bits >>> 12) & 0x3F]);
+			out.append(BASE64_CHARS[(bits >>> 6) & 0x3F]);
+			out.append(BASE64_CHARS[bits & 0x3F]);
+		}
+		if (end - i == 1) {
+			int bits = (b[i] & 0xFF) << 16;
+			out.append(BASE64_CHARS[bits >>> 18]);
+			out.append(BASE64_CHARS[(bits >>> 12) & 0x3F]);
+			out.append("==");
+		} else if (end - i == 2) {
+			int bits = ((b[i] & 0xFF) << 16) | ((b[i + 1] & 0xFF) << 8);
+			out.append(BASE64_CHARS[bits >>> 18]);
+			out.append(BASE64_CHARS[(bits >>> 12) & 0x3F]);
+			out.append(BASE64_CHARS[(bits >>> 6) & 0x3F]);
+			out.append('=');
+		}
+	}
+
+	/**
+	 * Get the empty payload buffer of the calling thread.
+	 * 
+	 * @return the buffer
+	 */
+	static WireBuffer getEncodeBuffer() {
+		WireBuffer buffer = encodeBuffer.get();
+		if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			buffer = new WireBuffer();
+			encodeBuffer.set(buffer);
+		}
+		buffer.reset();
+		return buffer;
+	}
+
+	private static AbstractMessage toEncodedMessage(ByteBuffer payload)
+			throws IOException {
+		OtrBufferReader otr = new OtrBufferReader(payload);
+		int protocolVersion = otr.readShort();
+		int messageType = otr.readByte();
+		switch (messageType) {
+		case AbstractEncodedMessage.MESSAGE_DATA:
+			int flags = otr.readByte();
+			int senderKeyID = otr.readInt();
+			int recipientKeyID = otr.readInt();
+			DHPublicKey nextDH = otr.readDHPublicKey();
+			byte[] ctr = otr.readCtr();
+			byte[] encryptedMessage = otr.readData();
+			byte[] mac = otr.readMac();
+			byte[] oldMacKeys = otr.readData();
+			return new DataMessage(protocolVersion, flags, senderKeyID,
+					recipientKeyID, nextDH, ctr, encryptedMessage, mac,
+					oldMacKeys);
+		case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+			byte[] dhPublicKeyEncrypted = otr.readData();
+			byte[] dhPublicKeyHash = otr.readData();
+			return new DHCommitMessage(protocolVersion, dhPublicKeyHash,
+					dhPublicKeyEncrypted);
+		case AbstractEncodedMessage.MESSAGE_DHKEY:
+			DHPublicKey dhPublicKey = otr.readDHPublicKey();
+			return new DHKeyMessage(protocolVersion, dhPublicKey);
+		case AbstractEncodedMessage.MESSAGE_REVEALSIG: {
+			byte[] revealedKey = otr.readData();
+			byte[] xEncrypted = otr.readData();
+			byte[] xEncryptedMac = otr.readMac();
+			return new RevealSignatureMessage(protocolVersion, xEncrypted,
+					xEncryptedMac, revealedKey);
+		}
+		case AbstractEncodedMessage.MESSAGE_SIGNATURE: {
+			byte[] xEncryted = otr.readData();
+			byte[] xEncryptedMac = otr.readMac();
+			return new SignatureMessage(protocolVersion, xEncryted,
+					xEncryptedMac);
+		}
+		default:
+			throw new IOException("Illegal message type.");
+		}
+	}
+
+	private static PlainTextMessage toPlainTextMessage(CharSequence s) {
+		int tag = indexOf(s, TAG_BASE, 0);
+		if (tag < 0)
+			return new PlainTextMessage(null, s.toString());
+
+		boolean v1 = false;
+		boolean v2 = false;
+		StringBuilder cleanText = new StringBuilder(s.length());
+		int from = 0;
+		while (tag >= 0) {
+			cleanText.append(s, from, tag);
+			int i = tag + TAG_BASE.length();
+			if (startsWith(s, TAG_V1, i)) {
+				v1 = true;
+				i += TAG_V1.length();
+			}
+			if (startsWith(s, TAG_V2, i)) {
+				v2 = true;
+				i += TAG_V2.length();
+			}
+			from = i;
+			tag = indexOf(s, TAG_BASE, i);
+		}
+		cleanText.append(s, from, s.length());
+
+		List<Integer> versions;
+		if (v1 && v2) {
+			versions = new Vector<Integer>(2);
+			versions.add(0, 1);
+			versions.add(0, 2);
+		} else if (v1) {
+			versions = new Vector<Integer>(1);
+			versions.add(0, 1);
+		} else if (v2) {
+			versions = new Vector<Integer>(1);
+			versions.add(2);
+		} else
+			versions = null;
+
+		return new PlainTextMessage(versions, cleanText.toString());
+	}
+
+	private static boolean startsWith(CharSequence s, String prefix, int from) {
+		int len = prefix.length();
+		if (from + len > s.length())
+			return false;
+		for (int i = 0; i < len; i++) {
+			if (s.charAt(from + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static int indexOf(CharSequence s, String str, int from) {
+		char first = str.charAt(0);
+		int last = s.length() - str.length();
+		for (int i = from; i <= last; i++) {
+			if (s.charAt(i) == first && startsWith(s, str, i))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A ByteArrayOutputStream giving access to its content without copy.
+	 */
+	static class WireBuffer extends ByteArrayOutputStream {
+
+		WireBuffer() {
+			super(INITIAL_BUFFER_SIZE);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+}
@@ -24,12 +24,10 @@ public class OtrOutputStream extends FilterOutputStream implements
 	}
 
 	private void writeNumber(int value, int length) throws IOException {
-		byte[] b = new byte[length];
 		for (int i = 0; i < length; i++) {
-			int offset = (b.length - 1 - i) * 8;
-			b[i] = (byte) ((value >>> offset) & 0xFF);
+			int offset = (length - 1 - i) * 8;
+			out.write((value >>> offset) & 0xFF);
 		}
-		write(b);
 	}
 
 	public void writeBigInt(BigInteger bi) throws IOException {
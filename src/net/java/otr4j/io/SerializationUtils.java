@@ -9,18 +9,8 @@ package net.java.otr4j.io;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.math.BigInteger;
 import java.security.PublicKey;
-import java.util.List;
-import java.util.Vector;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.crypto.interfaces.DHPublicKey;
-
-import org.bouncycastle2.util.encoders.Base64;
 
 import net.java.otr4j.io.messages.AbstractEncodedMessage;
 import net.java.otr4j.io.messages.AbstractMessage;
@@ -119,39 +109,39 @@ public class SerializationUtils {
 
 	// Message IO.
 	public static String toString(AbstractMessage m) throws IOException {
-		StringWriter writer = new StringWriter();
-		writer.write(SerializationConstants.HEAD);
+		StringBuilder writer = new StringBuilder();
+		writer.append(SerializationConstants.HEAD);
 
 		switch (m.messageType) {
 		case AbstractMessage.MESSAGE_ERROR:
 			ErrorMessage error = (ErrorMessage) m;
-			writer.write(SerializationConstants.HEAD_ERROR);
-			writer.write(error.error);
+			writer.append(SerializationConstants.HEAD_ERROR);
+			writer.append(error.error);
 			break;
 		case AbstractMessage.MESSAGE_PLAINTEXT:
 			PlainTextMessage plaintxt = (PlainTextMessage) m;
-			writer.write(plaintxt.cleanText);
+			writer.append(plaintxt.cleanText);
 			if (plaintxt.versions != null && plaintxt.versions.size() > 0) {
-				writer.write(" \\t  \\t\\t\\t\\t \\t \\t \\t  ");
+				writer.append(" \\t  \\t\\t\\t\\t \\t \\t \\t  ");
 				for (int version : plaintxt.versions) {
 					if (version == 1)
-						writer.write("  \\t\\t  \\t ");
+						writer.append("  \\t\\t  \\t ");
 
 					if (version == 2)
-						writer.write(" \\t \\t  \\t ");
+						writer.append(" \\t \\t  \\t ");
 				}
 			}
 			break;
 		case AbstractMessage.MESSAGE_QUERY:
 			QueryMessage query = (QueryMessage) m;
 			if (query.versions.size() == 1 && query.versions.get(0) == 1) {
-				writer.write(SerializationConstants.HEAD_QUERY_Q);
+				writer.append(SerializationConstants.HEAD_QUERY_Q);
 			} else {
-				writer.write(SerializationConstants.HEAD_QUERY_V);
+				writer.append(SerializationConstants.HEAD_QUERY_V);
 				for (int version : query.versions)
-					writer.write(String.valueOf(version));
+					writer.append(String.valueOf(version));
 
-				writer.write(SerializationConstants.HEAD_QUERY_Q);
+				writer.append(SerializationConstants.HEAD_QUERY_Q);
 			}
 			break;
 		case AbstractEncodedMessage.MESSAGE_DHKEY:
@@ -159,7 +149,7 @@ public class SerializationUtils {
 		case AbstractEncodedMessage.MESSAGE_SIGNATURE:
 		case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
 		case AbstractEncodedMessage.MESSAGE_DATA:
-			ByteArrayOutputStream o = new ByteArrayOutputStream();
+			OtrMessageCodec.WireBuffer o = OtrMessageCodec.getEncodeBuffer();
 			OtrOutputStream s = new OtrOutputStream(o);
 
 			switch (m.messageType) {
@@ -206,9 +196,9 @@ public class SerializationUtils {
 				break;
 			}
 
-			writer.write(SerializationConstants.HEAD_ENCODED);
-			writer.write(new String(Base64.encode(o.toByteArray())));
-			writer.write(".");
+			writer.append(SerializationConstants.HEAD_ENCODED);
+			OtrMessageCodec.encodeBase64(o.array(), 0, o.size(), writer);
+			writer.append('.');
 			break;
 		default:
 			throw new IOException("Illegal message type.");
@@ -217,125 +207,7 @@ public class SerializationUtils {
 		return writer.toString();
 	}
 
-	static final Pattern patternWhitespace = Pattern
-			.compile("( \\t  \\t\\t\\t\\t \\t \\t \\t  )(  \\t\\t  \\t )?( \\t \\t  \\t )?");
-
 	public static AbstractMessage toMessage(String s) throws IOException {
-		if (s == null || s.length() <= 1)
-			return null;
-
-		if (s.indexOf(SerializationConstants.HEAD) != 0
-				|| s.length() <= SerializationConstants.HEAD.length()) {
-			// Try to detect whitespace tag.
-			final Matcher matcher = patternWhitespace.matcher(s);
-
-			boolean v1 = false;
-			boolean v2 = false;
-			while (matcher.find()) {
-				if (!v1 && matcher.start(2) > -1)
-					v1 = true;
-
-				if (!v2 && matcher.start(3) > -1)
-					v2 = true;
-
-				if (v1 && v2)
-					break;
-			}
-
-			String cleanText = matcher.replaceAll("");
-			List<Integer> versions;
-			if (v1 && v2) {
-				versions = new Vector<Integer>(2);
-				versions.add(0, 1);
-				versions.add(0, 2);
-			} else if (v1) {
-				versions = new Vector<Integer>(1);
-				versions.add(0, 1);
-			} else if (v2) {
-				versions = new Vector<Integer>(1);
-				versions.add(2);
-			} else
-				versions = null;
-
-			return new PlainTextMessage(versions, cleanText);
-		} else {
-			char contentType = s.charAt(SerializationConstants.HEAD.length());
-			String content = s
-					.substring(SerializationConstants.HEAD.length() + 1);
-			switch (contentType) {
-			case SerializationConstants.HEAD_ENCODED:
-				ByteArrayInputStream bin = new ByteArrayInputStream(Base64
-						.decode(content.getBytes()));
-				OtrInputStream otr = new OtrInputStream(bin);
-				// We have an encoded message.
-				int protocolVersion = otr.readShort();
-				int messageType = otr.readByte();
-				switch (messageType) {
-				case AbstractEncodedMessage.MESSAGE_DATA:
-					int flags = otr.readByte();
-					int senderKeyID = otr.readInt();
-					int recipientKeyID = otr.readInt();
-					DHPublicKey nextDH = otr.readDHPublicKey();
-					byte[] ctr = otr.readCtr();
-					byte[] encryptedMessage = otr.readData();
-					byte[] mac = otr.readMac();
-					byte[] oldMacKeys = otr.readMac();
-					return new DataMessage(protocolVersion, flags, senderKeyID,
-							recipientKeyID, nextDH, ctr, encryptedMessage, mac,
-							oldMacKeys);
-				case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
-					byte[] dhPublicKeyEncrypted = otr.readData();
-					byte[] dhPublicKeyHash = otr.readData();
-					return new DHCommitMessage(protocolVersion,
-							dhPublicKeyHash, dhPublicKeyEncrypted);
-				case AbstractEncodedMessage.MESSAGE_DHKEY:
-					DHPublicKey dhPublicKey = otr.readDHPublicKey();
-					return new DHKeyMessage(protocolVersion, dhPublicKey);
-				case AbstractEncodedMessage.MESSAGE_REVEALSIG: {
-					byte[] revealedKey = otr.readData();
-					byte[] xEncrypted = otr.readData();
-					byte[] xEncryptedMac = otr.readMac();
-					return new RevealSignatureMessage(protocolVersion,
-							xEncrypted, xEncryptedMac, revealedKey);
-				}
-				case AbstractEncodedMessage.MESSAGE_SIGNATURE: {
-					byte[] xEncryted = otr.readData();
-					byte[] xEncryptedMac = otr.readMac();
-					return new SignatureMessage(protocolVersion, xEncryted,
-							xEncryptedMac);
-				}
-				default:
-					throw new IOException("Illegal message type.");
-				}
-			case SerializationConstants.HEAD_ERROR:
-				return new ErrorMessage(AbstractMessage.MESSAGE_ERROR, content);
-			case SerializationConstants.HEAD_QUERY_V:
-			case SerializationConstants.HEAD_QUERY_Q:
-				List<Integer> versions = new Vector<Integer>();
-				String versionString = null;
-				if (SerializationConstants.HEAD_QUERY_Q == contentType) {
-					versions.add(1);
-					if (content.charAt(0) == 'v') {
-						versionString = content.substring(1, content
-								.indexOf('?'));
-					}
-				} else if (SerializationConstants.HEAD_QUERY_V == contentType) {
-					versionString = content.substring(0, content.indexOf('?'));
-				}
-
-				if (versionString != null) {
-					StringReader sr = new StringReader(versionString);
-					int c;
-					while ((c = sr.read()) != -1)
-						if (!versions.contains(c))
-							versions.add(Integer.parseInt(String
-									.valueOf((char) c)));
-				}
-				QueryMessage query = new QueryMessage(versions);
-				return query;
-			default:
-				throw new IOException("Uknown message type.");
-			}
-		}
+		return OtrMessageCodec.toMessage(s);
 	}
 }
@@ -20,6 +20,7 @@ import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
 import net.java.otr4j.crypto.OtrCryptoEngine;
+import net.java.otr4j.crypto.DHKeyPairPool;
 import net.java.otr4j.crypto.OtrCryptoEngineImpl;
 import net.java.otr4j.io.SerializationUtils;
 import net.java.otr4j.io.messages.DHCommitMessage;
@@ -254,7 +255,7 @@ class AuthContextImpl implements AuthContext {
 
 	public KeyPair getLocalDHKeyPair() throws OtrException {
 		if (localDHKeyPair == null) {
-			localDHKeyPair = new OtrCryptoEngineImpl().generateDHKeyPair();
+			localDHKeyPair = DHKeyPairPool.getInstance().take();
 			logger.finest("Generated local D-H key pair.");
 		}
 		return localDHKeyPair;
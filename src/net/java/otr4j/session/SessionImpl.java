@@ -7,7 +7,6 @@
 
 package net.java.otr4j.session;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -24,9 +23,8 @@ import net.java.otr4j.OtrEngineHost;
 import net.java.otr4j.OtrEngineListener;
 import net.java.otr4j.OtrException;
 import net.java.otr4j.OtrPolicy;
-import net.java.otr4j.crypto.OtrCryptoEngine;
-import net.java.otr4j.crypto.OtrCryptoEngineImpl;
-import net.java.otr4j.io.OtrInputStream;
+import net.java.otr4j.crypto.DHKeyPairPool;
+import net.java.otr4j.io.OtrBufferReader;
 import net.java.otr4j.io.OtrOutputStream;
 import net.java.otr4j.io.SerializationConstants;
 import net.java.otr4j.io.SerializationUtils;
@@ -191,7 +189,7 @@ public class SessionImpl implements Session {
 				SessionKeys.Previous);
 		sess2.setLocalPair(sess4.getLocalPair(), sess4.getLocalKeyID());
 
-		KeyPair newPair = new OtrCryptoEngineImpl().generateDHKeyPair();
+		KeyPair newPair = DHKeyPairPool.getInstance().take();
 		sess3.setLocalPair(newPair, sess3.getLocalKeyID() + 1);
 		sess4.setLocalPair(newPair, sess4.getLocalKeyID() + 1);
 	}
@@ -227,7 +225,7 @@ public class SessionImpl implements Session {
 				current.setS(auth.getS());
 			}
 
-			KeyPair nextDH = new OtrCryptoEngineImpl().generateDHKeyPair();
+			KeyPair nextDH = DHKeyPairPool.getInstance().take();
 			for (int i = 0; i < this.getSessionKeys()[1].length; i++) {
 				SessionKeys current = getSessionKeysByIndex(1, i);
 				current.setRemoteDHPublicKey(auth.getRemoteDHPublicKey(), 1);
@@ -238,6 +236,17 @@ public class SessionImpl implements Session {
 
 			auth.reset();
 			break;
+		case PLAINTEXT:
+		case FINISHED:
+			logger.finest("Wiping the session ciphers.");
+			for (int i = 0; i < this.getSessionKeys().length; i++) {
+				for (int j = 0; j < this.getSessionKeys()[i].length; j++) {
+					SessionKeys current = this.getSessionKeys()[i][j];
+					if (current != null)
+						current.wipe();
+				}
+			}
+			break;
 		}
 
 		this.sessionStatus = sessionStatus;
@@ -422,11 +431,8 @@ public class SessionImpl implements Session {
 				throw new OtrException(e);
 			}
 
-			OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
-
-			byte[] computedMAC = otrCryptoEngine.sha1Hmac(serializedT,
-					matchingKeys.getReceivingMACKey(),
-					SerializationConstants.TYPE_LEN_MAC);
+			byte[] computedMAC = matchingKeys.getReceivingCipher().sha1Hmac(
+					serializedT, SerializationConstants.TYPE_LEN_MAC);
 
 			if (!Arrays.equals(computedMAC, data.mac)) {
 				logger.finest("MAC verification failed, ignoring message");
@@ -440,13 +446,19 @@ public class SessionImpl implements Session {
 
 			matchingKeys.setReceivingCtr(data.ctr);
 
-			byte[] dmc = otrCryptoEngine.aesDecrypt(matchingKeys
-					.getReceivingAESKey(), matchingKeys.getReceivingCtr(),
-					data.encryptedMessage);
+			byte[] dmc = new byte[data.encryptedMessage.length];
+			matchingKeys.getReceivingCipher().aesCtr(
+					matchingKeys.getReceivingCtr(), data.encryptedMessage, 0,
+					dmc.length, dmc, 0);
+			// The message text ends at the first NUL byte, the TLVs follow.
+			int tlvIndex = 0;
+			while (tlvIndex < dmc.length && dmc[tlvIndex] != 0)
+				tlvIndex++;
+
 			String decryptedMsgContent;
 			try {
 				// Expect bytes to be text encoded in UTF-8.
-				decryptedMsgContent = new String(dmc, "UTF-8");
+				decryptedMsgContent = new String(dmc, 0, tlvIndex, "UTF-8");
 			} catch (UnsupportedEncodingException e) {
 				throw new OtrException(e);
 			}
@@ -461,26 +473,19 @@ public class SessionImpl implements Session {
 			if (mostRecent.getRemoteKeyID() == senderKeyID)
 				this.rotateRemoteSessionKeys(data.nextDH);
 
-			// Handle TLVs
+			// Handle TLVs, read in place from the decrypted bytes.
 			List<TLV> tlvs = null;
-			int tlvIndex = decryptedMsgContent.indexOf((char) 0x0);
-			if (tlvIndex > -1) {
-				decryptedMsgContent = decryptedMsgContent
-						.substring(0, tlvIndex);
+			if (tlvIndex < dmc.length) {
 				tlvIndex++;
-				byte[] tlvsb = new byte[dmc.length - tlvIndex];
-				System.arraycopy(dmc, tlvIndex, tlvsb, 0, tlvsb.length);
-
 				tlvs = new Vector<TLV>();
-				ByteArrayInputStream tin = new ByteArrayInputStream(tlvsb);
-				while (tin.available() > 0) {
+				OtrBufferReader tin = new OtrBufferReader(ByteBuffer.wrap(dmc,
+						tlvIndex, dmc.length - tlvIndex));
+				while (tin.remaining() > 0) {
 					int type;
 					byte[] tdata;
-					OtrInputStream eois = new OtrInputStream(tin);
 					try {
-						type = eois.readShort();
-						tdata = eois.readTlvData();
-						eois.close();
+						type = tin.readShort();
+						tdata = tin.readTlvData();
 					} catch (IOException e) {
 						throw new OtrException(e);
 					}
@@ -649,15 +654,13 @@ public class SessionImpl implements Session {
 				}
 			}
 
-			OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
-
-			byte[] data = out.toByteArray();
-			// Encrypt message.
+			byte[] encryptedMsg = out.toByteArray();
+			// Encrypt message in place, the plain text copy is not needed.
 			logger
 					.finest("Encrypting message with keyids (localKeyID, remoteKeyID) = ("
 							+ senderKeyID + ", " + receipientKeyID + ")");
-			byte[] encryptedMsg = otrCryptoEngine.aesEncrypt(encryptionKeys
-					.getSendingAESKey(), ctr, data);
+			encryptionKeys.getSendingCipher().aesCtr(ctr, encryptedMsg, 0,
+					encryptedMsg.length, encryptedMsg, 0);
 
 			// Get most recent keys to get the next D-H public key.
 			SessionKeys mostRecentKeys = this.getMostRecentSessionKeys();
@@ -669,8 +672,6 @@ public class SessionImpl implements Session {
 					nextDH, ctr, encryptedMsg);
 
 			// Calculate T hash.
-			byte[] sendingMACKey = encryptionKeys.getSendingMACKey();
-
 			logger
 					.finest("Transforming T to byte[] to calculate it's HmacSHA1.");
 			byte[] serializedT;
@@ -680,8 +681,8 @@ public class SessionImpl implements Session {
 				throw new OtrException(e);
 			}
 
-			byte[] mac = otrCryptoEngine.sha1Hmac(serializedT, sendingMACKey,
-					SerializationConstants.TYPE_LEN_MAC);
+			byte[] mac = encryptionKeys.getSendingCipher().sha1Hmac(
+					serializedT, SerializationConstants.TYPE_LEN_MAC);
 
 			// Get old MAC keys to be revealed.
 			byte[] oldKeys = this.collectOldMacKeys();
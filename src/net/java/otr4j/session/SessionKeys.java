@@ -6,6 +6,7 @@ import java.security.KeyPair;
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.MessageCipher;
 
 interface SessionKeys {
 
@@ -37,6 +38,12 @@ interface SessionKeys {
 
 	public abstract byte[] getReceivingMACKey() throws OtrException;
 
+	public abstract MessageCipher getSendingCipher() throws OtrException;
+
+	public abstract MessageCipher getReceivingCipher() throws OtrException;
+
+	public abstract void wipe();
+
 	public abstract void setS(BigInteger s);
 
 	public abstract void setIsUsedReceivingMACKey(Boolean isUsedReceivingMACKey);
@@ -15,6 +15,7 @@ import java.util.logging.Logger;
 import javax.crypto.interfaces.DHPublicKey;
 
 import net.java.otr4j.OtrException;
+import net.java.otr4j.crypto.MessageCipher;
 import net.java.otr4j.crypto.OtrCryptoEngine;
 import net.java.otr4j.crypto.OtrCryptoEngineImpl;
 import net.java.otr4j.io.SerializationUtils;
@@ -27,6 +28,7 @@ class SessionKeysImpl implements SessionKeys {
 
 	private static Logger logger = Logger.getLogger(SessionKeysImpl.class
 			.getName());
+	private static final OtrCryptoEngine otrCryptoEngine = new OtrCryptoEngineImpl();
 	private String keyDescription;
 
 	public SessionKeysImpl(int localKeyIndex, int remoteKeyIndex) {
@@ -92,6 +94,8 @@ class SessionKeysImpl implements SessionKeys {
 		logger.finest("Resetting " + keyDescription + " session keys.");
 		Arrays.fill(this.sendingCtr, (byte) 0x00);
 		Arrays.fill(this.receivingCtr, (byte) 0x00);
+		this.sendingCipher.wipe();
+		this.receivingCipher.wipe();
 		this.sendingAESKey = null;
 		this.receivingAESKey = null;
 		this.sendingMACKey = null;
@@ -114,7 +118,7 @@ class SessionKeysImpl implements SessionKeys {
 			ByteBuffer buff = ByteBuffer.allocate(len);
 			buff.put(b);
 			buff.put(secbytes);
-			byte[] result = new OtrCryptoEngineImpl().sha1Hash(buff.array());
+			byte[] result = otrCryptoEngine.sha1Hash(buff.array());
 			return result;
 		} catch (Exception e) {
 			throw new OtrException(e);
@@ -162,23 +166,40 @@ class SessionKeysImpl implements SessionKeys {
 		if (sendingMACKey != null)
 			return sendingMACKey;
 
-		sendingMACKey = new OtrCryptoEngineImpl().sha1Hash(getSendingAESKey());
+		sendingMACKey = otrCryptoEngine.sha1Hash(getSendingAESKey());
 		logger.finest("Calculated sending MAC key.");
 		return sendingMACKey;
 	}
 
 	public byte[] getReceivingMACKey() throws OtrException {
 		if (receivingMACKey == null) {
-			receivingMACKey = new OtrCryptoEngineImpl()
-					.sha1Hash(getReceivingAESKey());
+			receivingMACKey = otrCryptoEngine.sha1Hash(getReceivingAESKey());
 			logger.finest("Calculated receiving AES key.");
 		}
 		return receivingMACKey;
 	}
 
+	public MessageCipher getSendingCipher() throws OtrException {
+		if (!sendingCipher.isKeyed())
+			sendingCipher.init(getSendingAESKey(), getSendingMACKey());
+		return sendingCipher;
+	}
+
+	public MessageCipher getReceivingCipher() throws OtrException {
+		if (!receivingCipher.isKeyed())
+			receivingCipher.init(getReceivingAESKey(), getReceivingMACKey());
+		return receivingCipher;
+	}
+
+	public void wipe() {
+		logger.finest("Wiping " + keyDescription + " session ciphers.");
+		this.sendingCipher.wipe();
+		this.receivingCipher.wipe();
+	}
+
 	private BigInteger getS() throws OtrException {
 		if (s == null) {
-			s = new OtrCryptoEngineImpl().generateSecret(getLocalPair()
+			s = otrCryptoEngine.generateSecret(getLocalPair()
 					.getPrivate(), getRemoteKey());
 			logger.finest("Calculating shared secret S.");
 		}
@@ -234,6 +255,8 @@ class SessionKeysImpl implements SessionKeys {
 	private byte[] receivingAESKey;
 	private byte[] sendingMACKey;
 	private byte[] receivingMACKey;
+	private final MessageCipher sendingCipher = new MessageCipher();
+	private final MessageCipher receivingCipher = new MessageCipher();
 	private Boolean isUsedReceivingMACKey;
 	private BigInteger s;
 	private Boolean isHigh;
@@ -0,0 +1,383 @@
+/*
+    This Software(Animexxenger) is based on BEEM:\n\nBEEM is a videoconference application on the Android Platform.
+
+    Copyright (C) 2009 by Frederic-Charles Barthelery,
+                          Jean-Manuel Da Silva,
+                          Nikita Kozlov,
+                          Philippe Lago,
+                          Jean Baptiste Vergely,
+                          Vincent Veronis.
+
+    This file is part of BEEM.
+
+    BEEM is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    BEEM is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with BEEM.  If not, see <http://www.gnu.org/licenses/>.
+
+    Please send bug reports with examples or suggestions to
+    contact@beem-project.com or http://dev.beem-project.com/
+
+    Epitech, hereby disclaims all copyright interest in the program "Beem"
+    written by Frederic-Charles Barthelery,
+               Jean-Manuel Da Silva,
+               Nikita Kozlov,
+               Philippe Lago,
+               Jean Baptiste Vergely,
+               Vincent Veronis.
+
+    Nicolas Sadirac, November 26, 2009
+    President of Epitech.
+
+    Flavien Astraud, November 26, 2009
+    Head of the EIP Laboratory.
+
+*/
+package de.meisterfuu.animexxenger.smack.avatar;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link HttpAvatarClient} against a local HTTP server.
+ */
+public class HttpAvatarClientTest extends TestCase {
+
+    private static final long TIMEOUT = 10000;
+    private static final byte[] AVATAR = "an avatar".getBytes();
+
+    private LocalServer mServer;
+    private HttpAvatarClient mClient;
+    private MapAvatarCache mCache;
+
+    /**
+     * Constructor.
+     */
+    public HttpAvatarClientTest() {
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+	super.setUp();
+	mServer = new LocalServer();
+	mClient = new HttpAvatarClient();
+	mCache = new MapAvatarCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+	mClient.closeIdleConnections();
+	mServer.close();
+	super.tearDown();
+    }
+
+    /**
+     * An avatar is stored with the key requested.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testStore() throws Exception {
+	mServer.respond(ok(AVATAR, "ETag: \"1\""));
+	mClient.store(mServer.getUrl(), mCache, "key");
+	assertEquals(new String(AVATAR), new String(mCache.get("key")));
+    }
+
+    /**
+     * A second download of the same url is revalidated and the cached avatar is reused.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testNotModified() throws Exception {
+	mServer.respond(ok(AVATAR, "ETag: \"1\""));
+	mServer.respond("HTTP/1.1 304 Not Modified\r\nContent-Length: 0\r\n\r\n".getBytes());
+	mClient.store(mServer.getUrl(), mCache, "key");
+	mClient.store(mServer.getUrl(), mCache, "other");
+	assertEquals(new String(AVATAR), new String(mCache.get("other")));
+	assertTrue(mServer.getRequest(1).contains("If-None-Match: \"1\""));
+    }
+
+    /**
+     * The avatar is downloaded again if it left the cache before a Not Modified response.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testNotModifiedEvicted() throws Exception {
+	mServer.respond(ok(AVATAR, "ETag: \"1\""));
+	mServer.respond("HTTP/1.1 304 Not Modified\r\nContent-Length: 0\r\n\r\n".getBytes());
+	mServer.respond(ok(AVATAR, "ETag: \"1\""));
+	mClient.store(mServer.getUrl(), mCache, "key");
+	mCache.mEvicted = "key";
+	mClient.store(mServer.getUrl(), mCache, "other");
+	assertEquals(new String(AVATAR), new String(mCache.get("other")));
+	assertEquals(3, mServer.getRequestCount());
+	assertFalse(mServer.getRequest(2).contains("If-None-Match"));
+    }
+
+    /**
+     * An avatar announced bigger than the limit is refused.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testTooBig() throws Exception {
+	mClient.setMaxSize(4);
+	mServer.respond(ok(AVATAR));
+	try {
+	    mClient.store(mServer.getUrl(), mCache, "key");
+	    fail("the avatar is bigger than the limit");
+	} catch (IOException e) {
+	    assertFalse(mCache.contains("key"));
+	}
+    }
+
+    /**
+     * An endless chunked response is aborted when the limit is reached instead of being read
+     * until its end.
+     *
+     * @throws Exception if the test fails
+     */
+    public void testEndlessResponse() throws Exception {
+	mClient.setMaxSize(1024);
+	mServer.respondEndless();
+	final IOException[] error = new IOException[1];
+	Thread t = new Thread() {
+	    @Override
+	    public void run() {
+		try {
+		    mClient.store(mServer.getUrl(), mCache, "key");
+		} catch (IOException e) {
+		    error[0] = e;
+		}
+	    }
+	};
+	t.start();
+	t.join(TIMEOUT);
+	assertFalse("the download is still running", t.isAlive());
+	assertNotNull(error[0]);
+	assertFalse(mCache.contains("key"));
+    }
+
+    /**
+     * Build a 200 response.
+     *
+     * @param body the body of the response
+     * @param headers the additional headers
+     * @return the response
+     */
+    private static byte[] ok(byte[] body, String... headers) {
+	StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Length: ").append(body.length).append("\r\n");
+	for (String h : headers)
+	    sb.append(h).append("\r\n");
+	sb.append("\r\n");
+	byte[] head = sb.toString().getBytes();
+	byte[] res = new byte[head.length + body.length];
+	System.arraycopy(head, 0, res, 0, head.length);
+	System.arraycopy(body, 0, res, head.length, body.length);
+	return res;
+    }
+
+    /**
+     * An AvatarCache in a map which can pretend an avatar was evicted.
+     */
+    private static class MapAvatarCache implements AvatarCache {
+	private final Map<String, byte[]> mData = new HashMap<String, byte[]>();
+	private volatile String mEvicted;
+
+	/**
+	 * Constructor.
+	 */
+	public MapAvatarCache() {
+	}
+
+	@Override
+	public synchronized void put(String id, byte[] data) {
+	    mData.put(id, data);
+	}
+
+	@Override
+	public void put(String id, InputStream data) throws IOException {
+	    try {
+		byte[] buffer = new byte[1024];
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		int n;
+		while ((n = data.read(buffer)) != -1)
+		    os.write(buffer, 0, n);
+		put(id, os.toByteArray());
+	    } finally {
+		data.close();
+	    }
+	}
+
+	@Override
+	public synchronized byte[] get(String id) {
+	    // the avatar is still reported by contains()
+	    if (id.equals(mEvicted))
+		return null;
+	    return mData.get(id);
+	}
+
+	@Override
+	public synchronized boolean contains(String id) {
+	    return mData.containsKey(id);
+	}
+
+	@Override
+	public AvatarCacheStats getStats() {
+	    return new AvatarCacheStats(0, 0, 0, 0, 0);
+	}
+    }
+
+    /**
+     * A minimal HTTP server sending prepared responses, one per connection.
+     */
+    private static class LocalServer implements Runnable {
+	private final ServerSocket mSocket;
+	private final List<byte[]> mResponses = new ArrayList<byte[]>();
+	private final List<String> mRequests = new ArrayList<String>();
+	private final Thread mThread;
+	private boolean mEndless;
+
+	/**
+	 * Start a server on the loopback interface.
+	 *
+	 * @throws IOException if the server cannot be started
+	 */
+	public LocalServer() throws IOException {
+	    mSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+	    mThread = new Thread(this, "local-http-server");
+	    mThread.setDaemon(true);
+	    mThread.start();
+	}
+
+	/**
+	 * Get the url of the avatar served.
+	 *
+	 * @return the url
+	 */
+	public String getUrl() {
+	    return "http://127.0.0.1:" + mSocket.getLocalPort() + "/avatar.png";
+	}
+
+	/**
+	 * Add a response to send.
+	 *
+	 * @param response the raw response
+	 */
+	public synchronized void respond(byte[] response) {
+	    mResponses.add(response);
+	}
+
+	/**
+	 * Answer the next request with a chunked response which never ends.
+	 */
+	public synchronized void respondEndless() {
+	    mEndless = true;
+	}
+
+	/**
+	 * Get the number of requests received.
+	 *
+	 * @return the number of requests
+	 */
+	public synchronized int getRequestCount() {
+	    return mRequests.size();
+	}
+
+	/**
+	 * Get the headers of a request.
+	 *
+	 * @param index the index of the request
+	 * @return the request line and headers
+	 */
+	public synchronized String getRequest(int index) {
+	    return mRequests.get(index);
+	}
+
+	/**
+	 * Stop the server.
+	 *
+	 * @throws IOException if an error occurs while closing the socket
+	 */
+	public void close() throws IOException {
+	    mSocket.close();
+	}
+
+	@Override
+	public void run() {
+	    while (!mSocket.isClosed()) {
+		try {
+		    Socket s = mSocket.accept();
+		    try {
+			serve(s);
+		    } finally {
+			s.close();
+		    }
+		} catch (IOException e) {
+		    // the client closed the connection or the server is stopped
+		    continue;
+		}
+	    }
+	}
+
+	/**
+	 * Serve the requests of a connection.
+	 *
+	 * @param s the connection
+	 * @throws IOException if the connection fails
+	 */
+	private void serve(Socket s) throws IOException {
+	    BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+	    OutputStream out = s.getOutputStream();
+	    while (true) {
+		StringBuilder request = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null && line.length() > 0)
+		    request.append(line).append("\n");
+		if (line == null)
+		    return;
+		byte[] response;
+		boolean endless;
+		synchronized (this) {
+		    mRequests.add(request.toString());
+		    endless = mEndless;
+		    response = mResponses.isEmpty() ? null : mResponses.remove(0);
+		}
+		if (endless) {
+		    out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes());
+		    byte[] chunk = "400\r\n".getBytes();
+		    byte[] data = new byte[0x400];
+		    while (true) {
+			out.write(chunk);
+			out.write(data);
+			out.write("\r\n".getBytes());
+			out.flush();
+		    }
+		}
+		if (response == null)
+		    response = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes();
+		out.write(response);
+		out.flush();
+	    }
+	}
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.otr4j.io;
+
+import java.util.Random;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.io.messages.DataMessage;
+
+/**
+ * A small benchmark of the parsing and the serialization of a data message,
+ * compared with the stream based parser of {@link OtrMessageCodecTest}.
+ * 
+ * It is run on a desktop JVM with the classes of the application and of the
+ * tests in the classpath:
+ * <pre>java net.java.otr4j.io.OtrMessageCodecBenchmark [iterations]</pre>
+ */
+public class OtrMessageCodecBenchmark {
+
+	private static final int MESSAGE_LENGTH = 300;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Random random = new Random(1);
+		byte[] ctr = new byte[8];
+		byte[] encrypted = new byte[MESSAGE_LENGTH];
+		byte[] mac = new byte[20];
+		random.nextBytes(ctr);
+		random.nextBytes(encrypted);
+		random.nextBytes(mac);
+		DHPublicKey dh = (DHPublicKey) new OtrCryptoEngineImpl()
+				.generateDHKeyPair().getPublic();
+		DataMessage m = new DataMessage(2, 0, 5, 6, dh, ctr, encrypted, mac,
+				new byte[0]);
+		String s = SerializationUtils.toString(m);
+		if (!m.equals(SerializationUtils.toMessage(s))
+				|| !m.equals(OtrMessageCodecTest.parseReference(s)))
+			throw new IllegalStateException("The parsers disagree");
+		// the first rounds warm up the JIT
+		for (int r = 0; r < ROUNDS; r++) {
+			long t0 = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				OtrMessageCodecTest.parseReference(s);
+			long t1 = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				SerializationUtils.toMessage(s);
+			long t2 = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				SerializationUtils.toString(m);
+			long t3 = System.nanoTime();
+			System.out.println("parse stream " + micros(t1 - t0, iterations)
+					+ "us, parse codec " + micros(t2 - t1, iterations)
+					+ "us, toString " + micros(t3 - t2, iterations) + "us");
+		}
+	}
+
+	private static String micros(long nanos, int iterations) {
+		return String.valueOf(Math.round(nanos / 10.0 / iterations) / 100.0);
+	}
+}
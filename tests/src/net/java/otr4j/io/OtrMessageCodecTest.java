@@ -0,0 +1,199 @@
+/*
+ * otr4j, the open source java otr library.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.otr4j.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.interfaces.DHPublicKey;
+
+import junit.framework.TestCase;
+import net.java.otr4j.crypto.OtrCryptoEngineImpl;
+import net.java.otr4j.io.messages.AbstractEncodedMessage;
+import net.java.otr4j.io.messages.AbstractMessage;
+import net.java.otr4j.io.messages.DHCommitMessage;
+import net.java.otr4j.io.messages.DHKeyMessage;
+import net.java.otr4j.io.messages.DataMessage;
+import net.java.otr4j.io.messages.ErrorMessage;
+import net.java.otr4j.io.messages.PlainTextMessage;
+import net.java.otr4j.io.messages.QueryMessage;
+import net.java.otr4j.io.messages.RevealSignatureMessage;
+import net.java.otr4j.io.messages.SignatureMessage;
+
+import org.bouncycastle2.util.encoders.Base64;
+
+/**
+ * Check that the OtrMessageCodec gives the same results as the stream based
+ * parser it replaced.
+ * 
+ * The reference parser decodes the base64 payload with bouncycastle and reads
+ * it with an OtrInputStream, like SerializationUtils did before the codec.
+ */
+public class OtrMessageCodecTest extends TestCase {
+
+	private final Random random = new Random(42);
+	private DHPublicKey dhKey;
+
+	@Override
+	protected void setUp() throws Exception {
+		dhKey = (DHPublicKey) new OtrCryptoEngineImpl().generateDHKeyPair()
+				.getPublic();
+	}
+
+	public void testDataMessage() throws Exception {
+		DataMessage m = new DataMessage(2, 1, 5, 6, dhKey, bytes(8),
+				bytes(300), bytes(20), bytes(40));
+		String s = SerializationUtils.toString(m);
+		DataMessage codec = (DataMessage) SerializationUtils.toMessage(s);
+		DataMessage reference = (DataMessage) parseReference(s);
+		for (DataMessage d : new DataMessage[] { codec, reference }) {
+			assertEquals(m.protocolVersion, d.protocolVersion);
+			assertEquals(m.flags, d.flags);
+			assertEquals(m.senderKeyID, d.senderKeyID);
+			assertEquals(m.recipientKeyID, d.recipientKeyID);
+			assertEquals(m.nextDH.getY(), d.nextDH.getY());
+			assertTrue(Arrays.equals(m.ctr, d.ctr));
+			assertTrue(Arrays.equals(m.encryptedMessage, d.encryptedMessage));
+			assertTrue(Arrays.equals(m.mac, d.mac));
+			assertTrue(Arrays.equals(m.oldMACKeys, d.oldMACKeys));
+		}
+	}
+
+	public void testDHKeyMessage() throws Exception {
+		String s = SerializationUtils.toString(new DHKeyMessage(2, dhKey));
+		DHKeyMessage codec = (DHKeyMessage) SerializationUtils.toMessage(s);
+		DHKeyMessage reference = (DHKeyMessage) parseReference(s);
+		assertEquals(dhKey.getY(), codec.dhPublicKey.getY());
+		assertEquals(dhKey.getY(), reference.dhPublicKey.getY());
+	}
+
+	public void testHandshakeMessages() throws Exception {
+		AbstractMessage[] messages = {
+				new DHCommitMessage(2, bytes(32), bytes(192)),
+				new RevealSignatureMessage(2, bytes(500), bytes(20), bytes(16)),
+				new SignatureMessage(2, bytes(500), bytes(20)) };
+		for (AbstractMessage m : messages) {
+			String s = SerializationUtils.toString(m);
+			assertEquals(m, SerializationUtils.toMessage(s));
+			assertEquals(m, parseReference(s));
+		}
+	}
+
+	public void testTextMessages() throws Exception {
+		AbstractMessage[] messages = {
+				new ErrorMessage(AbstractMessage.MESSAGE_ERROR, "oops"),
+				new QueryMessage(Arrays.asList(2)) };
+		for (AbstractMessage m : messages)
+			assertEquals(m, SerializationUtils.toMessage(SerializationUtils
+					.toString(m)));
+		assertEquals(new PlainTextMessage(null, "hi"),
+				SerializationUtils.toMessage("hi"));
+		String tagged = "hello \t  \t\t\t\t \t \t \t   \t \t  \t ";
+		assertEquals(new PlainTextMessage(Arrays.asList(2), "hello"),
+				SerializationUtils.toMessage(tagged));
+	}
+
+	public void testBase64() throws Exception {
+		for (int length = 0; length < 50; length++) {
+			byte[] b = bytes(length);
+			StringBuilder s = new StringBuilder();
+			OtrMessageCodec.encodeBase64(b, 0, length, s);
+			assertEquals(new String(Base64.encode(b)), s.toString());
+			ByteBuffer decoded = OtrMessageCodec.decodeBase64(s, 0, s.length());
+			byte[] d = new byte[decoded.remaining()];
+			decoded.get(d);
+			assertTrue(Arrays.equals(b, d));
+		}
+	}
+
+	public void testReaders() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		OtrOutputStream out = new OtrOutputStream(bos);
+		out.writeByte(0xfe);
+		out.writeShort(0xfffe);
+		out.writeInt(-2);
+		out.writeCtr(bytes(8));
+		out.writeMac(bytes(20));
+		out.writeBigInt(new BigInteger(1, bytes(64)));
+		out.writeData(bytes(100));
+		out.writeTlvData(bytes(10));
+		byte[] encoded = bos.toByteArray();
+		OtrBufferReader reader = new OtrBufferReader(ByteBuffer.wrap(encoded));
+		OtrInputStream in = new OtrInputStream(new ByteArrayInputStream(
+				encoded));
+		assertEquals(in.readByte(), reader.readByte());
+		assertEquals(in.readShort(), reader.readShort());
+		assertEquals(in.readInt(), reader.readInt());
+		assertTrue(Arrays.equals(in.readCtr(), reader.readCtr()));
+		assertTrue(Arrays.equals(in.readMac(), reader.readMac()));
+		assertEquals(in.readBigInt(), reader.readBigInt());
+		assertTrue(Arrays.equals(in.readData(), reader.readData()));
+		assertTrue(Arrays.equals(in.readTlvData(), reader.readTlvData()));
+		assertEquals(0, reader.remaining());
+		try {
+			reader.readByte();
+			fail("The buffer is empty");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private byte[] bytes(int length) {
+		byte[] b = new byte[length];
+		random.nextBytes(b);
+		return b;
+	}
+
+	/**
+	 * Parse an encoded message with an OtrInputStream.
+	 */
+	static AbstractMessage parseReference(String s) throws IOException {
+		String content = s.substring(SerializationConstants.HEAD.length() + 1);
+		OtrInputStream otr = new OtrInputStream(new ByteArrayInputStream(
+				Base64.decode(content.substring(0, content.length() - 1)
+						.getBytes())));
+		int protocolVersion = otr.readShort();
+		int messageType = otr.readByte();
+		switch (messageType) {
+		case AbstractEncodedMessage.MESSAGE_DATA:
+			int flags = otr.readByte();
+			int senderKeyID = otr.readInt();
+			int recipientKeyID = otr.readInt();
+			DHPublicKey nextDH = otr.readDHPublicKey();
+			byte[] ctr = otr.readCtr();
+			byte[] encryptedMessage = otr.readData();
+			byte[] mac = otr.readMac();
+			byte[] oldMacKeys = otr.readData();
+			return new DataMessage(protocolVersion, flags, senderKeyID,
+					recipientKeyID, nextDH, ctr, encryptedMessage, mac,
+					oldMacKeys);
+		case AbstractEncodedMessage.MESSAGE_DH_COMMIT:
+			byte[] dhPublicKeyEncrypted = otr.readData();
+			byte[] dhPublicKeyHash = otr.readData();
+			return new DHCommitMessage(protocolVersion, dhPublicKeyHash,
+					dhPublicKeyEncrypted);
+		case AbstractEncodedMessage.MESSAGE_DHKEY:
+			return new DHKeyMessage(protocolVersion, otr.readDHPublicKey());
+		case AbstractEncodedMessage.MESSAGE_REVEALSIG:
+			byte[] revealedKey = otr.readData();
+			byte[] xEncrypted = otr.readData();
+			return new RevealSignatureMessage(protocolVersion, xEncrypted,
+					otr.readMac(), revealedKey);
+		case AbstractEncodedMessage.MESSAGE_SIGNATURE:
+			byte[] xEncryted = otr.readData();
+			return new SignatureMessage(protocolVersion, xEncryted,
+					otr.readMac());
+		default:
+			throw new IOException("Illegal message type.");
+		}
+	}
+}